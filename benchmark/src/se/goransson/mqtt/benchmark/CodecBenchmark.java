@@ -0,0 +1,168 @@
+package se.goransson.mqtt.benchmark;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.goransson.mqtt.MQTT;
+import se.goransson.mqtt.MQTTMessage;
+import se.goransson.mqtt.Messages;
+import se.goransson.mqtt.PacketReader;
+import se.goransson.mqtt.PacketView;
+import se.goransson.mqtt.PublishTopic;
+
+/**
+ * Encoding and decoding PUBLISH packages of different sizes, with the
+ * single pass encoder and the zero copy view next to the original
+ * byte[] based methods.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({ "16", "1024", "65536", "1048576" })
+	int payloadSize;
+
+	private final String topic = "site/42/sensor/temperature";
+
+	private final PublishTopic encodedTopic = new PublishTopic(topic);
+
+	private byte[] payload;
+
+	/** The encoded package. */
+	private byte[] packet;
+
+	private ByteBuffer dst;
+
+	private final PacketReader reader = new PacketReader();
+
+	private final PacketView view = new PacketView();
+
+	private ReplayChannel channel;
+
+	@Setup
+	public void setup() throws IOException {
+		payload = new byte[payloadSize];
+		new Random(42).nextBytes(payload);
+		packet = Messages.publish(topic, payload);
+		dst = ByteBuffer.allocate(Messages.publishLength(topic, payloadSize,
+				MQTT.AT_MOST_ONCE));
+		channel = new ReplayChannel(packet);
+	}
+
+	@Benchmark
+	public ByteBuffer encode() {
+		dst.clear();
+		Messages.encodePublish(dst, topic, payload, 0, payload.length,
+				MQTT.AT_MOST_ONCE, 0, false);
+		return dst;
+	}
+
+	/** Like encode, with the topic encoded once. */
+	@Benchmark
+	public ByteBuffer encodeCachedTopic() {
+		dst.clear();
+		Messages.encodePublish(dst, encodedTopic, payload, 0, payload.length,
+				MQTT.AT_MOST_ONCE, 0, false);
+		return dst;
+	}
+
+	@Benchmark
+	public byte[] encodeLegacy() throws IOException {
+		return Messages.publish(topic, payload);
+	}
+
+	/** Framing from a channel, then reading the topic and payload. */
+	@Benchmark
+	public void decode(Blackhole bh) throws IOException {
+		channel.rewind();
+		while (!reader.next())
+			reader.fill(channel);
+		view.wrap(reader.buffer(), reader.offset(), reader.length());
+		bh.consume(view.topic());
+		bh.consume(view.payload());
+	}
+
+	/** Like decode, but copied into an MQTTMessage as listeners get it. */
+	@Benchmark
+	public MQTTMessage decodeToMessage() {
+		return view.wrap(packet, 0, packet.length).toMessage();
+	}
+
+	@Benchmark
+	public MQTTMessage decodeLegacy() {
+		return Messages.decode(packet);
+	}
+
+	/**
+	 * Hands out the same package over and over, as a socket would.
+	 */
+	static class ReplayChannel implements ReadableByteChannel {
+
+		private final ByteBuffer src;
+
+		ReplayChannel(byte[] packet) {
+			src = ByteBuffer.wrap(packet);
+		}
+
+		void rewind() {
+			src.rewind();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!src.hasRemaining())
+				return -1;
+			int n = Math.min(dst.remaining(), src.remaining());
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			dst.put(part);
+			src.position(src.position() + n);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
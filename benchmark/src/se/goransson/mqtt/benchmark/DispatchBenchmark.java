@@ -0,0 +1,101 @@
+package se.goransson.mqtt.benchmark;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.goransson.mqtt.Dispatcher;
+import se.goransson.mqtt.FrameDispatcher;
+
+/**
+ * Handing received messages to the listeners through each kind of
+ * {@link Dispatcher}. The queued dispatchers block when full, so the rate
+ * is the rate the listeners are actually called at.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({ "inline", "ordered", "striped", "frame" })
+	String kind;
+
+	private Dispatcher dispatcher;
+
+	/** Drained by hand every so often, as draw() would. */
+	private FrameDispatcher frame;
+
+	private final String[] topics = new String[16];
+
+	private final AtomicLong delivered = new AtomicLong();
+
+	private final Runnable delivery = new Runnable() {
+		@Override
+		public void run() {
+			delivered.incrementAndGet();
+		}
+	};
+
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		for (int i = 0; i < topics.length; i++)
+			topics[i] = "site/" + i + "/sensor";
+
+		if (kind.equals("inline")) {
+			dispatcher = Dispatcher.inline();
+		} else if (kind.equals("ordered")) {
+			dispatcher = Dispatcher.ordered(1024, Dispatcher.Overflow.BLOCK);
+		} else if (kind.equals("striped")) {
+			dispatcher = Dispatcher.striped(Runtime.getRuntime()
+					.availableProcessors(), 1024, Dispatcher.Overflow.BLOCK);
+		} else {
+			frame = new FrameDispatcher(null, 1024, false);
+			dispatcher = frame;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Benchmark
+	public void dispatch() {
+		dispatcher.dispatch(topics[next++ & 15], delivery);
+		if (frame != null && (next & 511) == 0)
+			frame.drain(Integer.MAX_VALUE);
+	}
+}
@@ -0,0 +1,151 @@
+package se.goransson.mqtt.benchmark;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.goransson.mqtt.EmbeddedBroker;
+import se.goransson.mqtt.EventLoop;
+import se.goransson.mqtt.MQTT;
+import se.goransson.mqtt.MQTTMessage;
+
+/**
+ * A client publishing to an {@link EmbeddedBroker} in the same process,
+ * over local TCP, blocking or not, or an in-memory pipe.
+ *
+ * <ul>
+ * <li>publish: messages per second, with up to {@link #WINDOW} messages
+ * waiting for completion at once.</li>
+ * <li>roundTrip: publish and wait for the broker to deliver the message
+ * back, sampled for the p50, p99 and p99.9 latencies.</li>
+ * </ul>
+ *
+ * Run with <code>-prof gc</code> for the allocation rate per message.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	/** Messages waiting for completion at once in publish. */
+	static final int WINDOW = 256;
+
+	@Param({ "tcp", "nio", "pipe" })
+	String transport;
+
+	@Param({ "0", "1" })
+	int qos;
+
+	@Param({ "64", "4096" })
+	int payloadSize;
+
+	private EmbeddedBroker broker;
+
+	private MQTT client;
+
+	private byte[] payload;
+
+	@SuppressWarnings("unchecked")
+	private final CompletableFuture<Void>[] window = new CompletableFuture[WINDOW];
+
+	private int next = 0;
+
+	/** Released by every message delivered back. */
+	private final Semaphore echoes = new Semaphore(0);
+
+	@Setup
+	public void setup() throws Exception {
+		payload = new byte[payloadSize];
+		broker = new EmbeddedBroker();
+
+		client = new MQTT();
+		client.setMaxPending(WINDOW * 2);
+		if (transport.equals("pipe")) {
+			client.connect(broker.connect(), "loopback");
+		} else {
+			if (transport.equals("nio"))
+				client.setEventLoop(EventLoop.getDefault());
+			client.connect("127.0.0.1", broker.listen(0), "loopback");
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!client.isConnected()) {
+			if (System.currentTimeMillis() > deadline)
+				throw new IOException("No CONNACK from the embedded broker");
+			Thread.sleep(10);
+		}
+
+		client.subscribe(Collections.singletonMap("bench/echo", qos),
+				new Consumer<MQTTMessage>() {
+					@Override
+					public void accept(MQTTMessage msg) {
+						echoes.release();
+					}
+				}).get(5, TimeUnit.SECONDS);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		for (int i = 0; i < window.length; i++) {
+			if (window[i] != null)
+				window[i].join();
+		}
+		client.disconnect();
+		broker.stop();
+	}
+
+	/**
+	 * Publish to a topic no one subscribes to, waiting for the message sent
+	 * {@link #WINDOW} messages earlier to complete.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void publish() {
+		int slot = next++ & (WINDOW - 1);
+		if (window[slot] != null)
+			window[slot].join();
+		window[slot] = client.publishAsync("bench/sink", payload, qos);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void roundTrip() throws InterruptedException {
+		client.publish("bench/echo", payload, qos, false);
+		echoes.acquire();
+	}
+}
@@ -0,0 +1,89 @@
+package se.goransson.mqtt.benchmark;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.goransson.mqtt.TopicTree;
+
+/**
+ * Finding the subscriptions matching a topic among many, for topics that
+ * were seen recently and for more topics than the match cache holds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicTreeBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	int filters;
+
+	/** Whether half of the filters use + and # wildcards. */
+	@Param({ "false", "true" })
+	boolean wildcards;
+
+	private final TopicTree<Integer> tree = new TopicTree<Integer>();
+
+	/** Published topics, more than the match cache holds. */
+	private final String[] topics = new String[16384];
+
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		for (int i = 0; i < filters; i++) {
+			String filter;
+			if (wildcards && i % 4 == 1)
+				filter = "site/" + i + "/+/temperature";
+			else if (wildcards && i % 4 == 3)
+				filter = "site/" + i + "/#";
+			else
+				filter = "site/" + i + "/sensor/temperature";
+			tree.put(filter, i);
+		}
+		for (int i = 0; i < topics.length; i++)
+			topics[i] = "site/" + (i * 7919 % filters) + "/sensor/temperature";
+	}
+
+	/** The same few topics over and over, answered from the cache. */
+	@Benchmark
+	public List<Integer> matchHot() {
+		return tree.match(topics[next++ & 15]);
+	}
+
+	/** Topics rotating through more than the cache holds. */
+	@Benchmark
+	public List<Integer> matchCold() {
+		return tree.match(topics[next++ & (topics.length - 1)]);
+	}
+}
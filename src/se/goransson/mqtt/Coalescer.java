@@ -0,0 +1,186 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps only the latest value published to each topic with
+ * {@link MQTT#publishLatest(String, byte[])} and publishes them together,
+ * so a sketch publishing a sensor reading every frame sends at most one
+ * message per topic per flush.
+ *
+ * Each topic has a slot holding its latest value and a dirty flag; a slot
+ * is queued for the flush only when it turns dirty, so a flush costs one
+ * message per changed topic however many values were published meanwhile.
+ * Flushes run one at a time, so values of a topic are never sent out of
+ * order.
+ */
+public class Coalescer {
+
+	private final MQTT mClient;
+
+	private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+	/** Slots that turned dirty since the last flush, in that order. */
+	private final ConcurrentLinkedQueue<Slot> dirty = new ConcurrentLinkedQueue<Slot>();
+
+	private volatile long interval = 0;
+
+	/** Set from scheduling a flush until it starts. */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/** Requests to flush, only one flush runs at a time. */
+	private final AtomicInteger flush_requests = new AtomicInteger();
+
+	/** Values replaced before they were sent. */
+	private final LongAdder coalesced = new LongAdder();
+
+	private final Runnable mFlushLater = new Runnable() {
+		@Override
+		public void run() {
+			// Publishing may block, keep it off the timer thread
+			if (flush_requests.getAndIncrement() == 0)
+				ForkJoinPool.commonPool().execute(mFlush);
+		}
+	};
+
+	private final Runnable mFlush = new Runnable() {
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				flush();
+				missed = flush_requests.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	};
+
+	Coalescer(MQTT client) {
+		mClient = client;
+	}
+
+	/**
+	 * Set how long values are collected before they are published.
+	 *
+	 * @param millis
+	 *            With 0 a flush starts as soon as the one before is done,
+	 *            values published while it's being written are collected.
+	 */
+	public void setInterval(long millis) {
+		interval = Math.max(millis, 0);
+	}
+
+	/**
+	 * Replace the value of a topic, published with the next flush.
+	 *
+	 * @param topic
+	 * @param payload
+	 *            Copied.
+	 * @param qos
+	 * @param retain
+	 */
+	public void put(String topic, byte[] payload, int qos, boolean retain) {
+		Slot slot = slots.get(topic);
+		if (slot == null) {
+			Slot created = new Slot(topic);
+			slot = slots.putIfAbsent(topic, created);
+			if (slot == null)
+				slot = created;
+		}
+
+		// The value first, the flush clears the flag before reading it
+		slot.value = new Value(payload.clone(), qos, retain);
+		if (!slot.dirty.compareAndSet(false, true)) {
+			coalesced.increment();
+			return;
+		}
+		dirty.add(slot);
+
+		if (scheduled.compareAndSet(false, true)) {
+			long wait = interval;
+			if (wait > 0)
+				TimerWheel.getDefault().schedule(mFlushLater, wait);
+			else
+				mFlushLater.run();
+		}
+	}
+
+	/**
+	 * @return The number of topics waiting to be published.
+	 */
+	public int pending() {
+		return dirty.size();
+	}
+
+	/**
+	 * @return The number of values replaced by a newer one before they were
+	 *         published.
+	 */
+	public long coalesced() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Flush on the calling thread, without waiting for the interval. If a
+	 * flush is running already, that one flushes once more instead.
+	 */
+	void flushNow() {
+		if (flush_requests.getAndIncrement() == 0)
+			mFlush.run();
+	}
+
+	private void flush() {
+		scheduled.set(false);
+		Slot slot;
+		while ((slot = dirty.poll()) != null) {
+			slot.dirty.set(false);
+			Value value = slot.value;
+			mClient.publish(slot.topic, value.payload, value.qos, value.retain);
+		}
+	}
+
+	private static class Slot {
+
+		final String topic;
+
+		volatile Value value;
+
+		final AtomicBoolean dirty = new AtomicBoolean();
+
+		Slot(String topic) {
+			this.topic = topic;
+		}
+	}
+
+	private static class Value {
+
+		final byte[] payload;
+		final int qos;
+		final boolean retain;
+
+		Value(byte[] payload, int qos, boolean retain) {
+			this.payload = payload;
+			this.qos = qos;
+			this.retain = retain;
+		}
+	}
+}
@@ -16,18 +16,151 @@ package se.goransson.mqtt;
  * limitations under the License.
  */
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class Connection {
 
 	public static final int STATUS_CLOSED = 1;
 	public static final int STATUS_OPENED = 0;
 
+	/**
+	 * Receives the incoming data of a connection that isn't read through a
+	 * blocking stream, see {@link Connection#start(Receiver)}.
+	 */
+	public interface Receiver {
+
+		/**
+		 * Called when there is data to read on the channel. Should read until
+		 * the channel has no more data.
+		 * 
+		 * @param channel
+		 * @throws IOException
+		 *             If reading failed, or an {@link java.io.EOFException}
+		 *             at the end of the stream. The connection is then
+		 *             closed.
+		 */
+		void received(ReadableByteChannel channel) throws IOException;
+
+		/**
+		 * Called once when the connection has been closed by the other end
+		 * or because of an error.
+		 * 
+		 * @param cause
+		 *            The error, or null at the end of the stream.
+		 */
+		void closed(IOException cause);
+	}
+
+	/**
+	 * Blocking connections are read from their own thread through
+	 * {@link #getInputStream()}, others deliver their data to a
+	 * {@link Receiver} set with {@link #start(Receiver)}.
+	 * 
+	 * @return true if the connection must be read through its input stream.
+	 */
+	public boolean isBlocking() {
+		return true;
+	}
+
+	/**
+	 * Start delivering incoming data to the receiver. Only supported by
+	 * connections that aren't blocking.
+	 * 
+	 * @param receiver
+	 * @throws IOException
+	 */
+	public void start(Receiver receiver) throws IOException {
+		throw new UnsupportedOperationException(getClass().getSimpleName()
+				+ " is read through its input stream");
+	}
+
 	public abstract InputStream getInputStream() throws IOException;
 
 	public abstract OutputStream getOutputStream() throws IOException;
 
+	/**
+	 * Write the bytes between position and limit with as few calls to the
+	 * socket as possible. The default writes through the output stream.
+	 * 
+	 * @param src
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		OutputStream out = getOutputStream();
+		if (src.hasArray()) {
+			out.write(src.array(), src.arrayOffset() + src.position(),
+					src.remaining());
+			src.position(src.limit());
+		} else {
+			byte[] chunk = new byte[Math.min(src.remaining(), 8192)];
+			while (src.hasRemaining()) {
+				int len = Math.min(src.remaining(), chunk.length);
+				src.get(chunk, 0, len);
+				out.write(chunk, 0, len);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Complete futures once everything written so far has been handed to the
+	 * network. A blocking connection has done so when
+	 * {@link #write(ByteBuffer)} returns, so the default completes them
+	 * right away.
+	 * 
+	 * @param done
+	 */
+	public void whenWritten(List<CompletableFuture<Void>> done) {
+		for (int i = 0; i < done.size(); i++)
+			done.get(i).complete(null);
+	}
+
+	/**
+	 * Wait while too much of what was written is still buffered, waiting
+	 * for the network. Called by publishers, without holding any lock. The
+	 * default returns right away, a blocking connection never buffers.
+	 * 
+	 * @throws IOException
+	 *             If the connection is closed while waiting.
+	 */
+	public void throttle() throws IOException {
+	}
+
+	/**
+	 * Write a region of a file. The default reads it in chunks and writes
+	 * them with {@link #write(ByteBuffer)}; connections over a socket
+	 * channel can send it without copying it through the heap.
+	 * 
+	 * @param src
+	 * @param position
+	 *            Where in the file the region starts.
+	 * @param count
+	 *            The length of the region.
+	 * @throws IOException
+	 */
+	public void transferFrom(FileChannel src, long position, long count)
+			throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(count, 65536));
+		long end = position + count;
+		while (position < end) {
+			chunk.clear();
+			chunk.limit((int) Math.min(chunk.capacity(), end - position));
+			int n = src.read(chunk, position);
+			if (n < 0)
+				throw new EOFException("File ended at " + position);
+			position += n;
+			chunk.flip();
+			write(chunk);
+		}
+	}
+
 	public abstract void close() throws IOException;
 }
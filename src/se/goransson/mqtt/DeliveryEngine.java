@@ -0,0 +1,530 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Runs the QoS handshakes in both directions.
+ *
+ * Outgoing messages with QoS {@link Messages#AT_LEAST_ONCE} or
+ * {@link Messages#EXACTLY_ONCE} are kept, by message id, until the broker
+ * has acknowledged them. Up to a maximum number of them are in flight at
+ * once without waiting for each other's acknowledgements; the rest wait for
+ * a free slot. Messages that aren't acknowledged in time are sent again with
+ * the DUP flag set.
+ *
+ * Incoming messages are acknowledged with PUBACK, or PUBREC followed by
+ * PUBCOMP, and redelivered QoS 2 messages are only passed on once.
+ */
+public class DeliveryEngine {
+
+	/** Default number of unacknowledged messages at once. */
+	public static final int DEFAULT_MAX_INFLIGHT = 20;
+
+	/**
+	 * Most unacknowledged messages at once, one id short of all of them so
+	 * there's always a free id to find.
+	 */
+	public static final int MAX_INFLIGHT = 65534;
+
+	/** Default time before an unacknowledged message is sent again. */
+	public static final long DEFAULT_RETRY_INTERVAL = 20000;
+
+	/** Where packages are written, null while disconnected. */
+	private OutboundQueue mQueue;
+
+	/** Sent messages waiting for an acknowledgement, by message id. */
+	private final IntMap<Message> outbound = new IntMap<Message>();
+
+	/** Messages waiting for a free slot in the window. */
+	private final ArrayDeque<Message> waiting = new ArrayDeque<Message>();
+
+	/** Ids of received QoS 2 messages waiting for PUBREL. */
+	private final IntMap<Boolean> inbound = new IntMap<Boolean>();
+
+	private int maxInflight = DEFAULT_MAX_INFLIGHT;
+
+	private long retryInterval = DEFAULT_RETRY_INTERVAL;
+
+	private int lastId = 0;
+
+	/** Times the encoding of PUBLISH packages, may be null. */
+	private Metrics mMetrics;
+
+	/** Runs retransmit() when the oldest message is due, guarded by this. */
+	private TimerWheel.Timeout retryTimer;
+
+	private final Runnable mRetry = new Runnable() {
+		@Override
+		public void run() {
+			// Never block the timer on the socket
+			OutboundQueue queue = resendDue(false);
+			if (queue != null)
+				queue.flushLater();
+		}
+	};
+
+	/**
+	 * Start writing to the queue of a new connection.
+	 *
+	 * @param queue
+	 */
+	public synchronized void attach(OutboundQueue queue) {
+		mQueue = queue;
+	}
+
+	/**
+	 * Stop writing, the connection is gone. Unacknowledged messages are kept.
+	 */
+	public synchronized void detach() {
+		mQueue = null;
+	}
+
+	/**
+	 * Time the encoding of PUBLISH packages in a set of metrics.
+	 *
+	 * @param metrics
+	 */
+	public synchronized void setMetrics(Metrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/**
+	 * @param max
+	 *            The number of messages that can be waiting for an
+	 *            acknowledgement at once, between 1 and
+	 *            {@link #MAX_INFLIGHT}.
+	 */
+	public synchronized void setMaxInflight(int max) {
+		maxInflight = Math.min(Math.max(max, 1), MAX_INFLIGHT);
+	}
+
+	/**
+	 * @param millis
+	 *            How long to wait for an acknowledgement before sending a
+	 *            message again.
+	 */
+	public synchronized void setRetryInterval(long millis) {
+		retryInterval = millis;
+	}
+
+	/**
+	 * @return The number of messages waiting for an acknowledgement.
+	 */
+	public synchronized int inflight() {
+		return outbound.size();
+	}
+
+	/**
+	 * @return The number of messages waiting for a slot in the window.
+	 */
+	public synchronized int waiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * Get an unused message id, between 1 and 65535.
+	 *
+	 * @return The id.
+	 */
+	public synchronized int nextMessageId() {
+		do {
+			lastId = lastId % 65535 + 1;
+		} while (outbound.containsKey(lastId));
+		return lastId;
+	}
+
+	/**
+	 * Publish a message. With QoS {@link Messages#AT_MOST_ONCE} it is added
+	 * to the queue right away, otherwise as soon as there's room in the
+	 * window. The caller flushes the queue.
+	 *
+	 * @param topic
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @param qos
+	 * @param retain
+	 * @param done
+	 *            Completed once the message has been written for QoS 0, on
+	 *            PUBACK for QoS 1 and on PUBCOMP for QoS 2. May be null.
+	 * @return true if the queue should be flushed.
+	 * @throws IOException
+	 *             If a QoS 0 message is published while disconnected, or
+	 *             while the queue is full, see
+	 *             {@link OutboundQueue#hasRoom(int)}.
+	 */
+	public synchronized boolean publish(String topic, byte[] payload,
+			int offset, int length, int qos, boolean retain,
+			CompletableFuture<Void> done) throws IOException {
+		return publish(Messages.TOPIC_NAME, topic, payload, offset, length,
+				qos, retain, done);
+	}
+
+	/**
+	 * Publish a message on a pre-encoded topic.
+	 *
+	 * @see #publish(String, byte[], int, int, int, boolean,
+	 *      CompletableFuture)
+	 */
+	public synchronized boolean publish(PublishTopic topic, byte[] payload,
+			int offset, int length, int qos, boolean retain,
+			CompletableFuture<Void> done) throws IOException {
+		return publish(Messages.PUBLISH_TOPIC, topic, payload, offset, length,
+				qos, retain, done);
+	}
+
+	/**
+	 * Encodes straight into the queue, or into the package kept until the
+	 * message gets an id, without converting the topic first.
+	 */
+	private <T> boolean publish(Messages.PublishHeader<T> header, T topic,
+			byte[] payload, int offset, int length, int qos, boolean retain,
+			CompletableFuture<Void> done) throws IOException {
+		int packetLength = header.length(topic, length, qos);
+		if (qos == Messages.AT_MOST_ONCE) {
+			if (mQueue == null)
+				throw new IOException("Not connected");
+			synchronized (mQueue) {
+				// At most once, so better dropped than piled up
+				if (!mQueue.hasRoom(packetLength))
+					throw new IOException("The outbound queue is full");
+				long start = mMetrics != null ? mMetrics.start() : 0;
+				ByteBuffer dst = mQueue.reserve(packetLength);
+				header.put(dst, topic, length, qos, 0, retain);
+				dst.put(payload, offset, length);
+				if (mMetrics != null)
+					mMetrics.record(mMetrics.encode, start);
+				if (done != null)
+					mQueue.completeOnWrite(done);
+				return mQueue.commit();
+			}
+		}
+
+		// Kept encoded, the id is filled in once it gets a slot
+		long start = mMetrics != null ? mMetrics.start() : 0;
+		byte[] packet = new byte[packetLength];
+		ByteBuffer dst = ByteBuffer.wrap(packet);
+		header.put(dst, topic, length, qos, 0, retain);
+		dst.put(payload, offset, length);
+		if (mMetrics != null)
+			mMetrics.record(mMetrics.encode, start);
+		waiting.add(new Message(qos, packet, packet.length - length - 2, done));
+		return sendWaiting();
+	}
+
+	/**
+	 * Publish a PUBLISH package that has already been encoded, with message
+	 * id 0, for example one read back from a {@link SegmentStore}. Sent as
+	 * soon as there's room in the window; the caller flushes the queue.
+	 *
+	 * @param packet
+	 *            The package, kept and written to when the id is assigned.
+	 * @param qos
+	 *            {@link Messages#AT_LEAST_ONCE} or
+	 *            {@link Messages#EXACTLY_ONCE}.
+	 * @param done
+	 *            Completed on PUBACK or PUBCOMP. May be null.
+	 * @return true if the queue should be flushed.
+	 * @throws IOException
+	 */
+	public synchronized boolean publishEncoded(byte[] packet, int qos,
+			CompletableFuture<Void> done) throws IOException {
+		// Skip the fixed header and the topic to find the id
+		int i = 1;
+		while ((packet[i++] & 0x80) != 0)
+			;
+		int topicLength = ((packet[i] & 0xFF) << 8) | (packet[i + 1] & 0xFF);
+		waiting.add(new Message(qos, packet, i + 2 + topicLength, done));
+		return sendWaiting();
+	}
+
+	/**
+	 * Drop every unacknowledged message, failing their futures.
+	 *
+	 * @param cause
+	 */
+	public void clear(final IOException cause) {
+		final ArrayList<Message> dropped = new ArrayList<Message>();
+
+		synchronized (this) {
+			outbound.forEach(new ObjIntConsumer<Message>() {
+				@Override
+				public void accept(Message message, int msgId) {
+					dropped.add(message);
+				}
+			});
+			dropped.addAll(waiting);
+			outbound.clear();
+			waiting.clear();
+			inbound.clear();
+			if (retryTimer != null) {
+				retryTimer.cancel();
+				retryTimer = null;
+			}
+		}
+
+		// Outside the lock, the futures run their callbacks
+		for (int i = 0; i < dropped.size(); i++) {
+			if (dropped.get(i).done != null)
+				dropped.get(i).done.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Acknowledge a received PUBLISH.
+	 *
+	 * @param qos
+	 *            The QoS of the message.
+	 * @param msgId
+	 *            Its message id.
+	 * @return true if the message should be passed on to the listeners,
+	 *         false if it's a QoS 2 message that has already been.
+	 * @throws IOException
+	 */
+	public boolean received(int qos, int msgId) throws IOException {
+		if (qos == Messages.AT_MOST_ONCE)
+			return true;
+
+		OutboundQueue queue;
+		boolean flush;
+		boolean deliver = true;
+
+		synchronized (this) {
+			queue = mQueue;
+			if (qos == Messages.AT_LEAST_ONCE) {
+				flush = writeAck(Messages.PUBACK, msgId);
+			} else {
+				deliver = inbound.put(msgId, Boolean.TRUE) == null;
+				flush = writeAck(Messages.PUBREC, msgId);
+			}
+		}
+
+		if (flush)
+			queue.flush();
+		return deliver;
+	}
+
+	/**
+	 * Handle a PUBACK, PUBREC, PUBREL or PUBCOMP from the broker.
+	 *
+	 * @param type
+	 * @param msgId
+	 * @throws IOException
+	 */
+	public void acknowledged(int type, int msgId) throws IOException {
+		OutboundQueue queue;
+		boolean flush = false;
+		Message completed = null;
+
+		synchronized (this) {
+			queue = mQueue;
+			Message message;
+
+			switch (type) {
+			case Messages.PUBACK:
+			case Messages.PUBCOMP:
+				completed = outbound.remove(msgId);
+				if (completed != null)
+					flush = sendWaiting();
+				break;
+			case Messages.PUBREC:
+				message = outbound.get(msgId);
+				if (message != null) {
+					// Only the PUBREL is sent from now on
+					message.released = true;
+					message.sentAt = System.currentTimeMillis();
+				}
+				flush = writeAck(Messages.PUBREL, msgId);
+				break;
+			case Messages.PUBREL:
+				inbound.remove(msgId);
+				flush = writeAck(Messages.PUBCOMP, msgId);
+				break;
+			}
+		}
+
+		if (completed != null && completed.done != null)
+			completed.done.complete(null);
+		if (flush)
+			queue.flush();
+	}
+
+	/**
+	 * Send again the messages that haven't been acknowledged in time. Called
+	 * from a timer whenever a message is due.
+	 *
+	 * @throws IOException
+	 */
+	public void retransmit() throws IOException {
+		OutboundQueue queue = resendDue(false);
+		if (queue != null)
+			queue.flush();
+	}
+
+	/**
+	 * Send every unacknowledged message again, and the waiting ones that fit
+	 * in the window, after reconnecting.
+	 *
+	 * @throws IOException
+	 */
+	public void resume() throws IOException {
+		OutboundQueue queue = resendDue(true);
+		if (queue != null)
+			queue.flush();
+	}
+
+	/**
+	 * Add the messages that are due to the queue, the caller flushes it.
+	 *
+	 * @return The queue if it should be flushed, otherwise null.
+	 */
+	private OutboundQueue resendDue(final boolean all) {
+		final OutboundQueue queue;
+		final boolean[] flush = { false };
+
+		synchronized (this) {
+			queue = mQueue;
+			if (retryTimer != null)
+				retryTimer.cancel(); // Rescheduled below
+			retryTimer = null;
+			if (queue == null)
+				return null;
+
+			final long now = System.currentTimeMillis();
+			final long[] nextDue = { Long.MAX_VALUE };
+			outbound.forEach(new ObjIntConsumer<Message>() {
+				@Override
+				public void accept(Message message, int msgId) {
+					if (all || now - message.sentAt >= retryInterval) {
+						flush[0] |= resend(message);
+						message.sentAt = now;
+					}
+					nextDue[0] = Math.min(nextDue[0], message.sentAt
+							+ retryInterval);
+				}
+			});
+
+			if (all)
+				flush[0] |= sendWaiting();
+			if (retryTimer == null && nextDue[0] != Long.MAX_VALUE)
+				retryTimer = TimerWheel.getDefault().schedule(mRetry,
+						nextDue[0] - now);
+		}
+
+		return flush[0] ? queue : null;
+	}
+
+	/**
+	 * Move waiting messages into the window while there's room. Must be
+	 * called while holding this.
+	 *
+	 * @return true if the queue should be flushed.
+	 */
+	private boolean sendWaiting() {
+		boolean flush = false;
+		while (mQueue != null && !waiting.isEmpty()
+				&& outbound.size() < maxInflight) {
+			Message message = waiting.poll();
+			message.setId(nextMessageId());
+			outbound.put(message.id, message);
+			flush |= write(message.packet);
+			message.sentAt = System.currentTimeMillis();
+		}
+
+		if (retryTimer == null && !outbound.isEmpty())
+			retryTimer = TimerWheel.getDefault().schedule(mRetry,
+					retryInterval);
+		return flush;
+	}
+
+	/** Must be called while holding this. */
+	private boolean resend(Message message) {
+		if (message.released)
+			return writeAck(Messages.PUBREL, message.id);
+
+		message.packet[0] |= 0x08; // DUP
+		return write(message.packet);
+	}
+
+	/** Must be called while holding this. */
+	private boolean writeAck(int type, int msgId) {
+		if (mQueue == null)
+			return false;
+
+		synchronized (mQueue) {
+			ByteBuffer dst = mQueue.reserve(Messages.ACK_LENGTH);
+			Messages.encodeAck(dst, type, msgId);
+			return mQueue.commit();
+		}
+	}
+
+	/** Must be called while holding this. */
+	private boolean write(byte[] packet) {
+		if (mQueue == null)
+			return false;
+
+		synchronized (mQueue) {
+			mQueue.reserve(packet.length).put(packet);
+			return mQueue.commit();
+		}
+	}
+
+	/**
+	 * An outgoing message with QoS above {@link Messages#AT_MOST_ONCE}.
+	 */
+	private static class Message {
+
+		final int qos;
+
+		/** The encoded PUBLISH. */
+		final byte[] packet;
+
+		/** Where the message id goes in the packet. */
+		final int idOffset;
+
+		int id;
+
+		/** Set when PUBREC has been received for a QoS 2 message. */
+		boolean released = false;
+
+		long sentAt;
+
+		/** Completed when acknowledged, may be null. */
+		final CompletableFuture<Void> done;
+
+		Message(int qos, byte[] packet, int idOffset,
+				CompletableFuture<Void> done) {
+			this.qos = qos;
+			this.packet = packet;
+			this.idOffset = idOffset;
+			this.done = done;
+		}
+
+		void setId(int id) {
+			this.id = id;
+			packet[idOffset] = (byte) ((id >> 8) & 0xFF);
+			packet[idOffset + 1] = (byte) (id & 0xFF);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.goransson.mqtt.Logger.Level;
+
+/**
+ * Decides which thread calls the listeners of a received message, so that
+ * slow listeners don't hold up the reading of the connection.
+ *
+ * <ul>
+ * <li>{@link #inline()} calls them on the reading thread, as before. This is
+ * the default.</li>
+ * <li>{@link #ordered(int, Overflow)} calls them on one thread of its own,
+ * in the order the messages arrived.</li>
+ * <li>{@link #striped(int, int, Overflow)} spreads topics over several
+ * threads, messages on the same topic are still delivered in order.</li>
+ * <li>{@link FrameDispatcher} calls them on the animation thread of the
+ * sketch.</li>
+ * </ul>
+ *
+ * Set with {@link MQTT#setDispatcher(Dispatcher)}.
+ *
+ * With an {@link NIOConnection} the reading thread is the {@link EventLoop},
+ * shared by every client on it. Listeners called inline then hold up the
+ * reads, writes and pings of all of those clients, not only their own. Any
+ * listener that might block or take long should go through another
+ * dispatcher. One {@link #striped(int, int, Overflow)} dispatcher can be
+ * shared by all the clients of a loop, which keeps the thread count from
+ * growing with the number of clients.
+ */
+public abstract class Dispatcher {
+
+	/** What to do with a message when the queue is full. */
+	public enum Overflow {
+		/** Wait for room, which stops the reading meanwhile. */
+		BLOCK,
+		/** Drop the oldest queued message to make room. */
+		DROP_OLDEST,
+		/** Drop the new message. */
+		DROP_NEWEST
+	}
+
+	private static final Dispatcher INLINE = new Dispatcher() {
+		@Override
+		public void dispatch(String topic, Runnable delivery) {
+			delivery.run();
+		}
+	};
+
+	private volatile Logger mLogger = Logger.none();
+
+	/**
+	 * @return A dispatcher that calls the listeners on the reading thread,
+	 *         for an {@link NIOConnection} the thread of its
+	 *         {@link EventLoop}.
+	 */
+	public static Dispatcher inline() {
+		return INLINE;
+	}
+
+	/**
+	 * @param capacity
+	 *            The number of messages that can be queued.
+	 * @param overflow
+	 * @return A dispatcher that calls the listeners on a single thread.
+	 */
+	public static Dispatcher ordered(int capacity, Overflow overflow) {
+		return new Striped(1, capacity, overflow);
+	}
+
+	/**
+	 * @param threads
+	 *            The number of threads, for example the number of cores.
+	 * @param capacity
+	 *            The number of messages that can be queued per thread.
+	 * @param overflow
+	 * @return A dispatcher that calls the listeners of each topic on one of
+	 *         several threads.
+	 */
+	public static Dispatcher striped(int threads, int capacity,
+			Overflow overflow) {
+		return new Striped(threads, capacity, overflow);
+	}
+
+	/**
+	 * Set where failing listeners are reported. A listener called by
+	 * {@link #inline()} fails on the reading thread, and is reported by the
+	 * client instead.
+	 *
+	 * Default is {@link Logger#none()}.
+	 *
+	 * @param logger
+	 */
+	public void setLogger(Logger logger) {
+		mLogger = logger != null ? logger : Logger.none();
+	}
+
+	/**
+	 * @return Where failing listeners are reported.
+	 */
+	protected Logger log() {
+		return mLogger;
+	}
+
+	/**
+	 * Have the listeners of a message called.
+	 *
+	 * @param topic
+	 *            The topic of the message.
+	 * @param delivery
+	 *            Calls the listeners.
+	 */
+	public abstract void dispatch(String topic, Runnable delivery);
+
+	/**
+	 * @return The number of messages dropped because the queue was full.
+	 */
+	public long dropped() {
+		return 0;
+	}
+
+	/**
+	 * Stop the threads, queued messages are dropped.
+	 */
+	public void shutdown() {
+	}
+
+	private static class Striped extends Dispatcher {
+
+		private final Worker[] workers;
+
+		private final Overflow overflow;
+
+		private final AtomicLong dropped = new AtomicLong();
+
+		Striped(int threads, int capacity, Overflow overflow) {
+			this.overflow = overflow;
+			workers = new Worker[Math.max(threads, 1)];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Worker(this, capacity);
+				Thread thread = new Thread(null, workers[i], "Dispatcher-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		@Override
+		public void dispatch(String topic, Runnable delivery) {
+			int h = topic.hashCode();
+			h ^= h >>> 16;
+			ArrayBlockingQueue<Runnable> queue = workers[(h & 0x7fffffff)
+					% workers.length].queue;
+
+			switch (overflow) {
+			case BLOCK:
+				try {
+					queue.put(delivery);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					dropped.incrementAndGet();
+				}
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(delivery)) {
+					if (queue.poll() != null)
+						dropped.incrementAndGet();
+				}
+				break;
+			case DROP_NEWEST:
+				if (!queue.offer(delivery))
+					dropped.incrementAndGet();
+				break;
+			}
+		}
+
+		@Override
+		public long dropped() {
+			return dropped.get();
+		}
+
+		@Override
+		public void shutdown() {
+			for (int i = 0; i < workers.length; i++)
+				workers[i].stop();
+		}
+	}
+
+	private static class Worker implements Runnable {
+
+		final ArrayBlockingQueue<Runnable> queue;
+
+		private final Dispatcher mOwner;
+
+		private volatile boolean finished = false;
+
+		/** Queued to wake the thread up when stopping. */
+		private static final Runnable STOP = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+
+		Worker(Dispatcher owner, int capacity) {
+			mOwner = owner;
+			queue = new ArrayBlockingQueue<Runnable>(Math.max(capacity, 1));
+		}
+
+		void stop() {
+			finished = true;
+			queue.clear();
+			queue.offer(STOP);
+		}
+
+		@Override
+		public void run() {
+			while (!finished) {
+				try {
+					queue.take().run();
+				} catch (InterruptedException e) {
+					return;
+				} catch (RuntimeException e) {
+					// A failing listener must not stop the others
+					mOwner.log().log(Level.ERROR, "A listener failed", e);
+				}
+			}
+		}
+	}
+}
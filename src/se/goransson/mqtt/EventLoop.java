@@ -0,0 +1,214 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import se.goransson.mqtt.Logger.Level;
+
+/**
+ * A single thread running a {@link Selector} for any number of
+ * {@link NIOConnection}s, so that many clients can share one I/O thread.
+ * Tasks submitted to the loop run on that same thread; timers are kept on
+ * the {@link TimerWheel}.
+ *
+ * Nothing run on the loop may block, that stalls every connection on it.
+ * That includes the listeners of the clients, which the default
+ * {@link Dispatcher#inline()} calls on this thread.
+ *
+ * If selecting keeps failing, the loop gives up: its connections fail, so
+ * their clients can reconnect, and {@link #getDefault()} starts a new loop.
+ */
+public class EventLoop implements Runnable {
+
+	/** Failures to select in a row before the loop gives up. */
+	static final int MAX_SELECT_FAILURES = 5;
+
+	private static EventLoop defaultLoop;
+
+	private final Selector mSelector;
+
+	private final Thread mThread;
+
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private volatile boolean finished = false;
+
+	/** Set once the selector is closed, tasks then run on the caller. */
+	private volatile boolean terminated = false;
+
+	private volatile Logger mLogger = Logger.none();
+
+	/**
+	 * The loop shared by every connection that doesn't ask for its own one.
+	 *
+	 * @return The default loop, started on first use.
+	 * @throws IOException
+	 */
+	public static synchronized EventLoop getDefault() throws IOException {
+		if (defaultLoop == null || defaultLoop.finished)
+			defaultLoop = new EventLoop("EventLoop");
+		return defaultLoop;
+	}
+
+	/**
+	 * Create and start a new loop on its own daemon thread.
+	 *
+	 * @param name
+	 *            The name of the thread.
+	 * @throws IOException
+	 */
+	public EventLoop(String name) throws IOException {
+		this(name, Selector.open());
+	}
+
+	EventLoop(String name, Selector selector) {
+		mSelector = selector;
+		mThread = new Thread(null, this, name);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Set where failing tasks and selector errors are
+	 * reported.
+	 *
+	 * Default is {@link Logger#none()}.
+	 *
+	 * @param logger
+	 */
+	public void setLogger(Logger logger) {
+		mLogger = logger != null ? logger : Logger.none();
+	}
+
+	/**
+	 * Run a task on the loop thread.
+	 *
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (terminated)
+			runTasks(); // Nobody else will, registering then fails
+		else if (Thread.currentThread() != mThread)
+			mSelector.wakeup();
+	}
+
+	/**
+	 * @return true if called from the loop thread.
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == mThread;
+	}
+
+	/**
+	 * Register a channel for the given operations, must be called on the
+	 * loop thread.
+	 */
+	SelectionKey register(NIOConnection connection, int ops)
+			throws IOException {
+		try {
+			return connection.channel().register(mSelector, ops, connection);
+		} catch (ClosedSelectorException e) {
+			throw new IOException("The event loop has stopped", e);
+		}
+	}
+
+	/**
+	 * Stop the loop, the registered connections are left open.
+	 */
+	public void stop() {
+		finished = true;
+		mSelector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		int failures = 0;
+		while (!finished) {
+			runTasks();
+
+			try {
+				if (!tasks.isEmpty())
+					mSelector.selectNow();
+				else
+					mSelector.select();
+				failures = 0;
+			} catch (IOException e) {
+				mLogger.log(Level.ERROR, "Selecting failed", e);
+				if (++failures >= MAX_SELECT_FAILURES) {
+					abandon(e);
+					break;
+				}
+				// Don't spin on a selector that keeps failing
+				LockSupport.parkNanos(this, 1000000L << failures);
+				continue;
+			}
+
+			Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				((NIOConnection) key.attachment()).process(key);
+			}
+		}
+
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			mLogger.log(Level.WARN, "Closing the selector failed", e);
+		}
+		terminated = true;
+		runTasks();
+	}
+
+	/**
+	 * Stop the loop and fail every connection on it.
+	 */
+	private void abandon(IOException cause) {
+		finished = true;
+		ArrayList<SelectionKey> keys = new ArrayList<SelectionKey>(
+				mSelector.keys());
+		for (int i = 0; i < keys.size(); i++)
+			((NIOConnection) keys.get(i).attachment()).fail(cause);
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			runSafely(task);
+	}
+
+	/**
+	 * A failing task must not take the loop, and every connection on it, down
+	 * with it.
+	 */
+	private void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			mLogger.log(Level.ERROR, "A task on the event loop failed", e);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.BiConsumer;
+
+import se.goransson.mqtt.Logger.Level;
+
+/**
+ * Spills streamed messages to temporary files, and passes each file on once
+ * the whole message has been written to it. The receiver owns the file and
+ * should delete it when done.
+ *
+ * <pre>
+ * client.subscribe("camera/frame", new FileStreamListener(null,
+ * 		(topic, file) -&gt; frame = loadImage(file.getPath())));
+ * </pre>
+ */
+public class FileStreamListener implements StreamListener {
+
+	private final File mDirectory;
+
+	private final BiConsumer<String, File> mDone;
+
+	/** The message being written, null between messages. */
+	private String topic;
+	private File file;
+	private FileChannel channel;
+
+	private volatile Logger mLogger = Logger.none();
+
+	/**
+	 * @param directory
+	 *            Where to put the files, or null for the default temporary
+	 *            directory.
+	 * @param done
+	 *            Called on the reading thread with the topic and the file of
+	 *            every complete message.
+	 */
+	public FileStreamListener(File directory, BiConsumer<String, File> done) {
+		mDirectory = directory;
+		mDone = done;
+	}
+
+	/**
+	 * Set where failing to write a file is reported, the message is then
+	 * dropped.
+	 *
+	 * Default is {@link Logger#none()}.
+	 *
+	 * @param logger
+	 */
+	public void setLogger(Logger logger) {
+		mLogger = logger != null ? logger : Logger.none();
+	}
+
+	@Override
+	public void onStart(String topic, int totalLength) {
+		discard();
+		try {
+			this.topic = topic;
+			file = File.createTempFile("mqtt", ".part", mDirectory);
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		} catch (IOException e) {
+			mLogger.log(Level.WARN, "Can't create a file for {0}", topic, e);
+			discard();
+		}
+	}
+
+	@Override
+	public void onChunk(ByteBuffer chunk) {
+		if (channel == null)
+			return; // Failed earlier in this message
+		try {
+			while (chunk.hasRemaining())
+				channel.write(chunk);
+		} catch (IOException e) {
+			mLogger.log(Level.WARN, "Can't write {0}", file, e);
+			discard();
+		}
+	}
+
+	@Override
+	public void onEnd() {
+		if (channel == null)
+			return;
+		String topic = this.topic;
+		File file = this.file;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			mLogger.log(Level.WARN, "Can't write {0}", file, e);
+			discard();
+			return;
+		}
+		channel = null;
+		this.file = null;
+		this.topic = null;
+		mDone.accept(topic, file);
+	}
+
+	@Override
+	public void onAbort(IOException cause) {
+		discard();
+	}
+
+	/**
+	 * Drop the message being written, and its file.
+	 */
+	private void discard() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			channel = null;
+		}
+		if (file != null) {
+			file.delete();
+			file = null;
+		}
+		topic = null;
+	}
+}
@@ -0,0 +1,155 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import processing.core.PApplet;
+import se.goransson.mqtt.Logger.Level;
+
+/**
+ * Delivers the messages on the animation thread of the sketch, right before
+ * each draw(), so the subscription methods can draw and change the sketch's
+ * variables without synchronizing.
+ *
+ * Messages are queued in a lock-free {@link RingBuffer} and at most a budget
+ * of them is delivered per frame. When coalescing, only the newest message
+ * per topic is kept, so a sketch fed faster than its frame rate shows the
+ * latest value instead of falling behind.
+ *
+ * <pre>
+ * client.setDispatcher(new FrameDispatcher(this, 1024, true));
+ * </pre>
+ */
+public class FrameDispatcher extends Dispatcher {
+
+	/** Default number of messages delivered per frame. */
+	public static final int DEFAULT_BUDGET = 256;
+
+	private final PApplet mPApplet;
+
+	private final boolean coalesce;
+
+	/** The deliveries, or the topics with a delivery when coalescing. */
+	private final RingBuffer<Object> inbox;
+
+	/** The newest delivery per topic when coalescing. */
+	private final ConcurrentHashMap<String, Runnable> latest;
+
+	private volatile int budget = DEFAULT_BUDGET;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Deliver on the animation thread of a sketch.
+	 *
+	 * @param theParent
+	 *            The sketch, or null to call {@link #drain(int)} by hand.
+	 * @param capacity
+	 *            The number of messages, or topics when coalescing, that can
+	 *            be queued between two frames.
+	 * @param coalesce
+	 *            Only deliver the newest message per topic.
+	 */
+	public FrameDispatcher(PApplet theParent, int capacity, boolean coalesce) {
+		mPApplet = theParent;
+		this.coalesce = coalesce;
+		inbox = new RingBuffer<Object>(capacity);
+		latest = coalesce ? new ConcurrentHashMap<String, Runnable>() : null;
+
+		if (mPApplet != null)
+			mPApplet.registerMethod("pre", this);
+	}
+
+	/**
+	 * @param budget
+	 *            The most messages delivered per frame, the rest wait for
+	 *            the next one.
+	 */
+	public void setBudget(int budget) {
+		this.budget = budget;
+	}
+
+	@Override
+	public void dispatch(String topic, Runnable delivery) {
+		if (!coalesce) {
+			if (!inbox.offer(delivery))
+				dropped.incrementAndGet();
+			return;
+		}
+
+		if (latest.put(topic, delivery) != null) {
+			// Replaced an older message that hadn't been delivered yet
+			dropped.incrementAndGet();
+		} else if (!inbox.offer(topic)) {
+			latest.remove(topic, delivery);
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Called by Processing before every draw().
+	 */
+	public void pre() {
+		drain(budget);
+	}
+
+	/**
+	 * Deliver queued messages on the calling thread. Must always be called
+	 * from the same thread.
+	 *
+	 * @param max
+	 *            The most messages to deliver.
+	 * @return The number delivered.
+	 */
+	public int drain(int max) {
+		int delivered = 0;
+		Object next;
+		while (delivered < max && (next = inbox.poll()) != null) {
+			Runnable delivery = coalesce ? latest.remove(next)
+					: (Runnable) next;
+			if (delivery == null)
+				continue;
+			try {
+				delivery.run();
+			} catch (RuntimeException e) {
+				log().log(Level.ERROR, "A listener failed", e);
+			}
+			delivered++;
+		}
+		return delivered;
+	}
+
+	/**
+	 * @return The number of messages waiting for a frame.
+	 */
+	public int size() {
+		return inbox.size();
+	}
+
+	@Override
+	public long dropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void shutdown() {
+		if (mPApplet != null)
+			mPApplet.unregisterMethod("pre", this);
+	}
+}
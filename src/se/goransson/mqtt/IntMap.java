@@ -0,0 +1,168 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A hash map from int keys to values, without boxing the keys. Used to look
+ * up messages by their message id. Not thread safe.
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+public class IntMap<V> {
+
+	private int[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	public IntMap() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity
+	 *            The expected number of entries.
+	 */
+	public IntMap(int capacity) {
+		int n = 4;
+		while (n < capacity * 2)
+			n <<= 1;
+		keys = new int[n];
+		values = new Object[n];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(int key) {
+		return values[indexOf(key)] != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		return (V) values[indexOf(key)];
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 *            Must not be null.
+	 * @return The previous value, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null)
+			throw new NullPointerException();
+
+		int i = indexOf(key);
+		V previous = (V) values[i];
+		keys[i] = key;
+		values[i] = value;
+		if (previous == null && ++size * 2 > keys.length)
+			resize(keys.length * 2);
+		return previous;
+	}
+
+	/**
+	 * @param key
+	 * @return The removed value, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int mask = keys.length - 1;
+		int i = indexOf(key);
+		V previous = (V) values[i];
+		if (previous == null)
+			return null;
+
+		values[i] = null;
+		size--;
+
+		// Shift back the entries that probed past the removed one
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (values[j] == null)
+				break;
+			int home = hash(keys[j]) & mask;
+			boolean between = i <= j ? (i < home && home <= j)
+					: (i < home || home <= j);
+			if (!between) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+		}
+		return previous;
+	}
+
+	public void clear() {
+		for (int i = 0; i < values.length; i++)
+			values[i] = null;
+		size = 0;
+	}
+
+	/**
+	 * Visit every entry. The map must not be changed meanwhile.
+	 *
+	 * @param visitor
+	 *            Called with each value and its key.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(ObjIntConsumer<V> visitor) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				visitor.accept((V) values[i], keys[i]);
+		}
+	}
+
+	/** The slot holding the key, or the empty slot where it would go. */
+	private int indexOf(int key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (values[i] != null && keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int j = indexOf(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,425 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Where a client reports what it does and what goes wrong, set with
+ * {@link MQTT#setLogger(Logger)}.
+ *
+ * <ul>
+ * <li>{@link #none()} drops everything, the default.</li>
+ * <li>{@link #console(Level)} prints on the calling thread.</li>
+ * <li>{@link #async(PrintStream, Level, int)} hands events to a thread of
+ * its own through a ring buffer, so tracing every package doesn't hold up
+ * the reading.</li>
+ * </ul>
+ *
+ * Events are a format and up to three arguments, only formatted once they
+ * are written: {0} and {1} are replaced by the two objects and {2} by the
+ * number, so logging a message id or a length doesn't box it.
+ *
+ * To send the events elsewhere, for example to SLF4J, extend this class and
+ * implement {@link #isEnabled(Level)} and
+ * {@link #log(Level, String, Object, Object, long, Throwable)}.
+ */
+public abstract class Logger {
+
+	/** How much an event matters, from least to most. */
+	public enum Level {
+		/** Every package sent and received. */
+		TRACE,
+		/** Connecting, subscribing and the like. */
+		DEBUG,
+		INFO,
+		/** Something failed, the client carries on. */
+		WARN,
+		ERROR,
+		/** Nothing at all. */
+		OFF
+	}
+
+	private static final Logger NONE = new Logger() {
+		@Override
+		public boolean isEnabled(Level level) {
+			return false;
+		}
+
+		@Override
+		public void log(Level level, String format, Object arg0, Object arg1,
+				long arg2, Throwable error) {
+		}
+	};
+
+	/**
+	 * @return A logger that drops every event.
+	 */
+	public static Logger none() {
+		return NONE;
+	}
+
+	/**
+	 * @param level
+	 *            The least level printed.
+	 * @return A logger that prints to the standard output on the calling
+	 *         thread.
+	 */
+	public static Logger console(Level level) {
+		return new Stream(System.out, level);
+	}
+
+	/**
+	 * @param out
+	 *            Where to print, for example System.out or a file.
+	 * @param level
+	 *            The least level printed.
+	 * @param capacity
+	 *            The number of events that can be waiting to be printed,
+	 *            later ones are dropped while it's full.
+	 * @return A logger that prints on a thread of its own.
+	 */
+	public static Logger async(PrintStream out, Level level, int capacity) {
+		return new Async(out, level, capacity);
+	}
+
+	/**
+	 * Check before building anything costly to log.
+	 *
+	 * @param level
+	 * @return true if events of the level are logged.
+	 */
+	public abstract boolean isEnabled(Level level);
+
+	/**
+	 * Log an event, called only if the level is enabled.
+	 *
+	 * @param level
+	 * @param format
+	 *            The message, {0}, {1} and {2} are replaced by the arguments.
+	 * @param arg0
+	 * @param arg1
+	 * @param arg2
+	 * @param error
+	 *            May be null.
+	 */
+	public abstract void log(Level level, String format, Object arg0,
+			Object arg1, long arg2, Throwable error);
+
+	public void log(Level level, String message) {
+		if (isEnabled(level))
+			log(level, message, null, null, 0, null);
+	}
+
+	public void log(Level level, String message, Throwable error) {
+		if (isEnabled(level))
+			log(level, message, null, null, 0, error);
+	}
+
+	public void log(Level level, String format, Object arg0) {
+		if (isEnabled(level))
+			log(level, format, arg0, null, 0, null);
+	}
+
+	public void log(Level level, String format, Object arg0, Object arg1) {
+		if (isEnabled(level))
+			log(level, format, arg0, arg1, 0, null);
+	}
+
+	public void log(Level level, String format, Object arg0, long arg2) {
+		if (isEnabled(level))
+			log(level, format, arg0, null, arg2, null);
+	}
+
+	public void log(Level level, String format, long arg2) {
+		if (isEnabled(level))
+			log(level, format, null, null, arg2, null);
+	}
+
+	public void log(Level level, String format, Object arg0, Throwable error) {
+		if (isEnabled(level))
+			log(level, format, arg0, null, 0, error);
+	}
+
+	/**
+	 * @return The number of events dropped because they couldn't keep up.
+	 */
+	public long dropped() {
+		return 0;
+	}
+
+	/**
+	 * Stop the thread, if any, after writing the events waiting.
+	 */
+	public void shutdown() {
+	}
+
+	/**
+	 * Replace the placeholders of a format.
+	 *
+	 * @param out
+	 * @param format
+	 * @param arg0
+	 *            Replaces {0}.
+	 * @param arg1
+	 *            Replaces {1}.
+	 * @param arg2
+	 *            Replaces {2}.
+	 */
+	public static void format(StringBuilder out, String format, Object arg0,
+			Object arg1, long arg2) {
+		int length = format.length();
+		for (int i = 0; i < length; i++) {
+			char c = format.charAt(i);
+			if (c == '{' && i + 2 < length && format.charAt(i + 2) == '}') {
+				switch (format.charAt(i + 1)) {
+				case '0':
+					out.append(arg0);
+					i += 2;
+					continue;
+				case '1':
+					out.append(arg1);
+					i += 2;
+					continue;
+				case '2':
+					out.append(arg2);
+					i += 2;
+					continue;
+				}
+			}
+			out.append(c);
+		}
+	}
+
+	/**
+	 * Writes events as lines of text, one writer per thread.
+	 */
+	private static class Line {
+
+		private final SimpleDateFormat time = new SimpleDateFormat(
+				"HH:mm:ss.SSS");
+
+		private final Date date = new Date();
+
+		private final StringBuilder line = new StringBuilder(256);
+
+		StringBuilder format(long millis, Level level, String thread,
+				String format, Object arg0, Object arg1, long arg2,
+				Throwable error) {
+			line.setLength(0);
+			date.setTime(millis);
+			line.append(time.format(date)).append(' ').append(level)
+					.append(" [").append(thread).append("] ");
+			Logger.format(line, format, arg0, arg1, arg2);
+			line.append('\n');
+			if (error != null) {
+				StringWriter trace = new StringWriter();
+				error.printStackTrace(new PrintWriter(trace));
+				line.append(trace);
+			}
+			return line;
+		}
+	}
+
+	private static class Stream extends Logger {
+
+		private final PrintStream out;
+
+		private final Level level;
+
+		private final Line line = new Line();
+
+		Stream(PrintStream out, Level level) {
+			this.out = out;
+			this.level = level;
+		}
+
+		@Override
+		public boolean isEnabled(Level level) {
+			return level.compareTo(this.level) >= 0 && level != Level.OFF;
+		}
+
+		@Override
+		public synchronized void log(Level level, String format, Object arg0,
+				Object arg1, long arg2, Throwable error) {
+			out.append(line.format(System.currentTimeMillis(), level, Thread
+					.currentThread().getName(), format, arg0, arg1, arg2,
+					error));
+			out.flush();
+		}
+	}
+
+	/**
+	 * Any number of threads fill in preallocated events, claimed the same
+	 * way as in {@link RingBuffer}, and a single thread formats and prints
+	 * them. Logging allocates nothing and never waits; while the thread is
+	 * behind, events are dropped and counted.
+	 */
+	private static class Async extends Logger implements Runnable {
+
+		private final PrintStream out;
+
+		private final Level level;
+
+		private final Event[] events;
+
+		private final AtomicLongArray sequences;
+
+		private final int mask;
+
+		private final AtomicLong tail = new AtomicLong();
+
+		/** Only touched by the printing thread. */
+		private long head = 0;
+
+		private final AtomicLong dropped = new AtomicLong();
+
+		private final Thread mThread;
+
+		/** Set while the printing thread is about to park. */
+		private volatile boolean sleeping = false;
+
+		private volatile boolean finished = false;
+
+		private final Line line = new Line();
+
+		Async(PrintStream out, Level level, int capacity) {
+			this.out = out;
+			this.level = level;
+			int n = 2;
+			while (n < capacity)
+				n <<= 1;
+			events = new Event[n];
+			sequences = new AtomicLongArray(n);
+			for (int i = 0; i < n; i++) {
+				events[i] = new Event();
+				sequences.set(i, i);
+			}
+			mask = n - 1;
+
+			mThread = new Thread(null, this, "Logger");
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+
+		@Override
+		public boolean isEnabled(Level level) {
+			return level.compareTo(this.level) >= 0 && level != Level.OFF;
+		}
+
+		@Override
+		public void log(Level level, String format, Object arg0, Object arg1,
+				long arg2, Throwable error) {
+			long pos = tail.get();
+			while (true) {
+				int i = (int) pos & mask;
+				long diff = sequences.get(i) - pos;
+				if (diff == 0) {
+					if (tail.compareAndSet(pos, pos + 1))
+						break;
+					pos = tail.get();
+				} else if (diff < 0) {
+					// Full, the printing thread is a lap behind
+					dropped.incrementAndGet();
+					return;
+				} else {
+					pos = tail.get();
+				}
+			}
+
+			int i = (int) pos & mask;
+			Event event = events[i];
+			event.millis = System.currentTimeMillis();
+			event.level = level;
+			event.thread = Thread.currentThread().getName();
+			event.format = format;
+			event.arg0 = arg0;
+			event.arg1 = arg1;
+			event.arg2 = arg2;
+			event.error = error;
+			// Publishes the event to the printing thread
+			sequences.set(i, pos + 1);
+
+			if (sleeping)
+				LockSupport.unpark(mThread);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				boolean printed = false;
+				int i;
+				while (sequences.get(i = (int) head & mask) == head + 1) {
+					Event event = events[i];
+					out.append(line.format(event.millis, event.level,
+							event.thread, event.format, event.arg0, event.arg1,
+							event.arg2, event.error));
+					event.clear();
+					// Frees the slot for the lap after
+					sequences.set(i, head + events.length);
+					head++;
+					printed = true;
+				}
+				if (printed) {
+					out.flush();
+					continue;
+				}
+				if (finished)
+					return;
+
+				sleeping = true;
+				if (sequences.get((int) head & mask) != head + 1 && !finished)
+					LockSupport.park(this);
+				sleeping = false;
+			}
+		}
+
+		@Override
+		public long dropped() {
+			return dropped.get();
+		}
+
+		@Override
+		public void shutdown() {
+			finished = true;
+			LockSupport.unpark(mThread);
+		}
+	}
+
+	private static class Event {
+
+		long millis;
+		Level level;
+		String thread;
+		String format;
+		Object arg0;
+		Object arg1;
+		long arg2;
+		Throwable error;
+
+		/** Don't keep the arguments from being collected. */
+		void clear() {
+			arg0 = arg1 = error = null;
+		}
+	}
+}
@@ -16,16 +16,36 @@ package se.goransson.mqtt;
  * limitations under the License.
  */
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 import processing.core.PApplet;
+import se.goransson.mqtt.Logger.Level;
 
 /**
  * 
@@ -34,13 +54,27 @@ import processing.core.PApplet;
  */
 public class MQTT {
 
-	/** Print debug messages */
+	/**
+	 * Print every package and error on the calling thread, while no logger
+	 * is set.
+	 * 
+	 * @deprecated Use {@link #setLogger(Logger)}.
+	 */
+	@Deprecated
 	public boolean DEBUG = false;
 
+	/** Used while DEBUG is set and no logger is. */
+	private static final Logger DEBUG_LOGGER = Logger.console(Level.TRACE);
+
 	public static final int DISCONNECTED = 0;
 	public static final int CONNECTING = 1;
 	public static final int CONNECTED = 2;
 
+	/** Quality of service levels for {@link #publish(String, byte[], int, boolean)}. */
+	public static final int AT_MOST_ONCE = Messages.AT_MOST_ONCE;
+	public static final int AT_LEAST_ONCE = Messages.AT_LEAST_ONCE;
+	public static final int EXACTLY_ONCE = Messages.EXACTLY_ONCE;
+
 	/** MQTT Protocol version (modeled after 3.1) */
 	protected static final byte MQTT_VERSION = (byte) 0x03;
 
@@ -56,15 +90,143 @@ public class MQTT {
 	private Connection mConnection;
 
 	private MonitoringThread mMonitoringThread;
-	private KeepaliveThread mKeepaliveThread;
+	private Keepalive mKeepalive;
+
+	/** Serves the connection when it's non-blocking, see setEventLoop. */
+	private EventLoop mEventLoop;
+
+	private volatile int state = DISCONNECTED;
+
+	/** Where to reconnect to, only set by connect(host, port, id). */
+	private String mHost;
+	private int mPort;
+	private String mClientId;
+
+	/** Whether the first CONNECT asks for a clean session. */
+	private boolean clean_session = true;
+
+	/** Reconnect settings, see setAutoReconnect. */
+	private volatile boolean auto_reconnect = false;
+	private long reconnect_min = 100;
+	private long reconnect_max = 30000;
+
+	/** Failed attempts since the last CONNACK. */
+	private int reconnect_attempt = 0;
+
+	/** Set from losing the connection until disconnect or giving up. */
+	private volatile boolean reconnecting = false;
+
+	/** Set while reconnecting, the session is resumed on CONNACK. */
+	private volatile boolean resuming = false;
+
+	private volatile TimerWheel.Timeout mReconnectTimer;
+
+	/** The last connection reported lost, so it's only handled once. */
+	private Connection mLostConnection;
+
+	private final Runnable mReconnect = new Runnable() {
+		@Override
+		public void run() {
+			// Opening a socket blocks, keep it off the timer thread
+			ForkJoinPool.commonPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					reconnect();
+				}
+			});
+		}
+	};
+
+	/** Every outgoing package goes through here, one per connection. */
+	private OutboundQueue mOutbound;
+
+	/** Batching settings for the outbound queue, see setBatching. */
+	private int max_batch = OutboundQueue.DEFAULT_MAX_BATCH;
+	private long linger = 0;
+
+	/** Tracks QoS 1 and 2 messages until they've been acknowledged. */
+	private final DeliveryEngine mDelivery = new DeliveryEngine();
+
+	/** Counters and latencies, see getMetrics. */
+	private final Metrics mMetrics = new Metrics();
+
+	/** Incomplete publishAsync futures, bounded by max_pending. */
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile int max_pending = 1024;
+
+	private final BiConsumer<Void, Throwable> mPendingDone = new BiConsumer<Void, Throwable>() {
+		@Override
+		public void accept(Void result, Throwable failure) {
+			pending.decrementAndGet();
+		}
+	};
+
+	/** Keeps messages published while disconnected, see setStore. */
+	private volatile SegmentStore mStore;
+
+	/** Set while the store may hold unsent messages, guarded by mStore. */
+	private boolean store_backlog = false;
+
+	/** Requests to drain the store, only one drain runs at a time. */
+	private final AtomicInteger drain_requests = new AtomicInteger();
+
+	/** Stored QoS 0 packages larger than this are sent straight from the file. */
+	private static final int TRANSFER_THRESHOLD = 4096;
 
-	private int state = DISCONNECTED;
+	private final Runnable mDrain = new Runnable() {
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				drainStore();
+				missed = drain_requests.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	};
+
+	/** Subscribed topic filters, wildcards included. */
+	private TopicTree<Consumer<MQTTMessage>> subscriptions;
+
+	/** Filters whose large messages are streamed, see StreamListener. */
+	private final TopicTree<StreamListener> streams = new TopicTree<StreamListener>();
+
+	/** Messages larger than this are streamed to stream listeners. */
+	private volatile int stream_threshold = 65536;
+
+	/** The QoS asked for per filter, for subscribing again on reconnect. */
+	private final ConcurrentHashMap<String, Integer> subscription_qos = new ConcurrentHashMap<String, Integer>();
+
+	/** Matches SUBACK and UNSUBACK to subscribe and unsubscribe requests. */
+	private final SubscribeTracker mSubscribes = new SubscribeTracker();
 
-	private int message_id = 0;
+	private volatile Consumer<MQTTMessage> raw = null;
 
-	private HashMap<String, Method> subscriptions;
+	/** Calls the listeners, on the reading thread unless set otherwise. */
+	private volatile Dispatcher mDispatcher = Dispatcher.inline();
 
-	private Method raw = null;
+	private volatile Logger mLogger = Logger.none();
+
+	/** Collects the values of publishLatest. */
+	private final Coalescer mLatest = new Coalescer(this);
+
+	/** Holds publishing under the broker's quota, may be null. */
+	private volatile RateLimiter mLimiter;
+
+	/** Sends the messages the limiter held back. */
+	private final RateLimiter.Sender mLimited = new RateLimiter.Sender() {
+		@Override
+		public void send(String topic, byte[] payload, int qos,
+				boolean retain, CompletableFuture<Void> done) {
+			if (done == null)
+				publishNow(topic, null, payload, qos, retain);
+			else
+				publishAsyncNow(topic, null, payload, qos, retain, done);
+		}
+	};
+
+	/** Only 1 in this many PUBLISH packages is traced. */
+	private volatile int log_sampling = 1;
+	private final AtomicInteger log_sampled = new AtomicInteger();
 	
 	// Ping Related variables
 	/**
@@ -73,24 +235,12 @@ public class MQTT {
 	 */
 	private long keepalive = 10;
 
-	/**
-	 * Defines at what time the last action was taken by the client (this is
-	 * used to determine if a ping should be sent or not)
-	 */
-	private long last_action = 0;
-
 	/**
 	 * Defines the number of seconds that the client will wait for a ping
 	 * response before disconnecting.
 	 */
 	private long ping_grace = 5;
 
-	/** Storage for the last sent ping request message. */
-	private long last_ping_request = 0;
-
-	/** Defines if a ping request has been sent. */
-	private boolean ping_sent = false;
-
 	/**
 	 * a Constructor, usually called in the setup() method in your sketch to
 	 * initialize and start the library.
@@ -102,19 +252,99 @@ public class MQTT {
 		mPApplet = theParent;
 		welcome();
 
-		subscriptions = new HashMap<String, Method>();
-		
+		subscriptions = new TopicTree<Consumer<MQTTMessage>>();
+
+		mDelivery.setMetrics(mMetrics);
+		gauges();
+
 		// Add the raw method subscription (gets all subscriptions)
-		try {
-			raw = mPApplet.getClass().getMethod("rawMQTT", MQTTMessage.class);
-		} catch (Exception e) {
-			if (DEBUG)
-				PApplet.println("The raw method is not present");
-			if (DEBUG)
-				e.printStackTrace();
+		if (mPApplet != null) {
+			try {
+				raw = new MethodListener(mPApplet, mPApplet.getClass()
+						.getMethod("rawMQTT", MQTTMessage.class));
+			} catch (Exception e) {
+				log().log(Level.DEBUG, "The raw method is not present");
+			}
 		}
 	}
 
+	/**
+	 * a Constructor for use outside of Processing, messages are then only
+	 * delivered to listeners passed to
+	 * {@link #subscribe(String, Consumer)} and
+	 * {@link #setRawListener(Consumer)}.
+	 */
+	public MQTT() {
+		this(null);
+	}
+
+	private void gauges() {
+		mMetrics.gauge("queue.bytes", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				OutboundQueue queue = mOutbound;
+				return queue != null ? queue.size() : 0;
+			}
+		});
+		mMetrics.gauge("inflight", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return mDelivery.inflight();
+			}
+		});
+		mMetrics.gauge("waiting", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return mDelivery.waiting();
+			}
+		});
+		mMetrics.gauge("pending", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return pending.get();
+			}
+		});
+		mMetrics.gauge("dispatcher.dropped", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return mDispatcher.dropped();
+			}
+		});
+		mMetrics.gauge("store.size", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				SegmentStore store = mStore;
+				return store != null ? store.size() : 0;
+			}
+		});
+		mMetrics.gauge("coalesce.pending", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return mLatest.pending();
+			}
+		});
+		mMetrics.gauge("coalesce.replaced", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return mLatest.coalesced();
+			}
+		});
+		mMetrics.gauge("limiter.queued", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				RateLimiter limiter = mLimiter;
+				return limiter != null ? limiter.queued() : 0;
+			}
+		});
+		mMetrics.gauge("limiter.dropped", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				RateLimiter limiter = mLimiter;
+				return limiter != null ? limiter.dropped() : 0;
+			}
+		});
+	}
+
 	private void welcome() {
 		System.out
 				.println("##library.name## ##library.prettyVersion## by ##author##");
@@ -142,6 +372,18 @@ public class MQTT {
 		keepalive = seconds;
 	}
 
+	/**
+	 * Set how long the client waits for the broker to answer a ping before
+	 * giving up on the connection.
+	 * 
+	 * Default is set at 5 seconds.
+	 * 
+	 * @param seconds
+	 */
+	public void setPingGrace(int seconds) {
+		ping_grace = seconds;
+	}
+
 	/**
 	 * Connect to a MQTT server. This also sends the required connect message.
 	 * 
@@ -150,279 +392,1526 @@ public class MQTT {
 	 * @param id
 	 */
 	public void connect(String host, int port, String id) {
-		InetAddress addr = null;
+		mHost = host;
+		mPort = port;
+
+		Connection connection;
 		try {
-			addr = InetAddress.getByName(host);
+			connection = open();
 		} catch (UnknownHostException e) {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... Unknown host error, I didn't understand the host name.");
-			if (DEBUG)
-				e.printStackTrace();
+			log().log(Level.WARN, "Ohno! Something went wrong... Unknown host error, I didn't understand the host name.", e);
 			return;
-		}
-
-		try {
-			mConnection = new TCPConnection(addr, port);
 		} catch (IOException e) {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... IO Error, failed to establish a connection to host.");
-			if (DEBUG)
-				e.printStackTrace();
+			log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to establish a connection to host.", e);
 			return;
 		}
 
-		mMonitoringThread = new MonitoringThread(mConnection);
-		Thread thread1 = new Thread(null, mMonitoringThread, "MonitoringThread");
-		thread1.start();
-
-		mKeepaliveThread = new KeepaliveThread();
-		Thread thread2 = new Thread(null, mKeepaliveThread, "KeepaliveThread");
-		thread2.start();
+		connect(connection, id);
+	}
 
-		connect(id);
+	/**
+	 * Open a new connection to the host given to connect.
+	 */
+	private Connection open() throws IOException {
+		InetAddress addr = InetAddress.getByName(mHost);
+		if (mEventLoop != null)
+			return new NIOConnection(addr, mPort, mEventLoop);
+		else
+			return new TCPConnection(addr, mPort);
 	}
 
 	/**
-	 * Used to send the connect message, shouldn't be used outside the MQTT
-	 * class.
+	 * Connect to a MQTT server over an already opened connection. This also
+	 * sends the required connect message.
 	 * 
+	 * @param connection
 	 * @param id
 	 */
-	private void connect(String id) {
-		if (state == DISCONNECTED) {
-			try {
-				mConnection.getOutputStream().write(Messages.connect(id));
-				last_action = System.currentTimeMillis();
-			} catch (IOException e) {
-				if (DEBUG)
-					PApplet.println("Ohno! Something went wrong... IO Error, failed to send CONNECT message.");
-				if (DEBUG)
-					e.printStackTrace();
-				return;
-			}
-		} else {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... MQTT Error, you gots to be disconnected dude!");
-		}
+	public void connect(Connection connection, String id) {
+		mClientId = id;
+		start(connection, id, clean_session);
 	}
 
 	/**
-	 * Send the disconnect message.
+	 * Start reading from a connection and send the CONNECT message.
 	 */
-	public void disconnect() {
-		if (state == CONNECTED) {
-			try {
-				mConnection.getOutputStream().write(Messages.disconnect());
-				// last_action = System.currentTimeMillis();
-			} catch (IOException e) {
-				if (DEBUG)
-					PApplet.println("Ohno! Something went wrong... IO Error, failed to send DISCONNECT message.");
-				if (DEBUG)
-					e.printStackTrace();
-			}
+	private void start(Connection connection, String id, boolean cleanSession) {
+		mConnection = connection;
+		mOutbound = new OutboundQueue(connection);
+		mOutbound.setBatching(max_batch, linger);
+		mOutbound.setMetrics(mMetrics);
 
+		if (connection.isBlocking()) {
+			mMonitoringThread = new MonitoringThread(connection);
+			Thread thread1 = new Thread(null, mMonitoringThread,
+					"MonitoringThread");
+			thread1.start();
+		} else {
+			mMonitoringThread = null;
 			try {
-				mConnection.close();
+				connection.start(new InboundHandler(connection));
 			} catch (IOException e) {
-				if (DEBUG)
-					PApplet.println("Ohno! Something went wrong... IO Error, failed to close the connection.");
-				if (DEBUG)
-					e.printStackTrace();
+				log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to start reading from the connection.", e);
+				return;
 			}
+		}
 
-			mMonitoringThread.stop();
-			mKeepaliveThread.stop();
+		mKeepalive = new Keepalive(connection, mOutbound);
+		mKeepalive.start();
 
-			state = DISCONNECTED;
-		} else {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
-		}
+		connect(id, cleanSession);
 	}
 
-	public void publish(String topic, String message) {
-		if (state == CONNECTED) {
-			try {
-				mConnection.getOutputStream().write(
-						Messages.publish(topic, message.getBytes()));
-				last_action = System.currentTimeMillis();
-			} catch (IOException e) {
-				if (DEBUG)
-					PApplet.println("Ohno! Something went wrong... IO Error, failed to send PUBLISH message.");
-				if (DEBUG)
-					e.printStackTrace();
-			}
-		} else {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
-		}
-	}
-	
-	public void publish(String topic, byte[] buffer) {
-		if (state == CONNECTED) {
-			try {
-				mConnection.getOutputStream().write(
-						Messages.publish(topic, buffer));
-				last_action = System.currentTimeMillis();
-			} catch (IOException e) {
-				if (DEBUG)
-					PApplet.println("Ohno! Something went wrong... IO Error, failed to send PUBLISH message.");
-				if (DEBUG)
-					e.printStackTrace();
-			}
-		} else {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
-		}
+	/**
+	 * Reconnect by itself when the connection is lost, waiting a random
+	 * time that doubles with every failed attempt. The session is resumed:
+	 * CONNECT is sent without a clean session, every subscription is sent
+	 * again in a single SUBSCRIBE and unacknowledged QoS 1 and 2 messages
+	 * are sent again.
+	 * 
+	 * Only works for clients connected with
+	 * {@link #connect(String, int, String)}.
+	 * 
+	 * @param enabled
+	 */
+	public void setAutoReconnect(boolean enabled) {
+		auto_reconnect = enabled;
 	}
 
-	public void subscribe(String topic) {
-		Pattern p = Pattern.compile("[!-()<>/;\\*%$]");
-		Matcher m = p.matcher(topic);
-
-		if (m.find())
-			PApplet.println("Topic is not OK, use method subscribe(String topic, String method){} instead!");
-		else
-			subscribe(topic, topic);
+	/**
+	 * Set how long to wait between reconnect attempts. The wait doubles from
+	 * the minimum up to the maximum, and is randomized between half and all
+	 * of that so that many clients don't reconnect at once.
+	 * 
+	 * Default is between 100 milliseconds and 30 seconds.
+	 * 
+	 * @param minMillis
+	 * @param maxMillis
+	 */
+	public void setReconnectBackoff(long minMillis, long maxMillis) {
+		reconnect_min = Math.max(minMillis, 1);
+		reconnect_max = Math.max(maxMillis, reconnect_min);
 	}
 
-	public void subscribe(String topic, String method) {
-		if (state == CONNECTED) {
-			if (registerSubscription(topic, method)) {
-				try {
-					mConnection.getOutputStream().write(
-							Messages.subscribe(getMessageId(), topic,
-									Messages.EXACTLY_ONCE));
-					last_action = System.currentTimeMillis();
+	/**
+	 * Set whether the broker should forget the session when first
+	 * connecting. Reconnects never ask for a clean session.
+	 * 
+	 * Default is true.
+	 * 
+	 * @param clean
+	 */
+	public void setCleanSession(boolean clean) {
+		clean_session = clean;
+	}
 
-				} catch (IOException e) {
-					if (DEBUG)
-						PApplet.println("Ohno! Something went wrong... IO Error, failed to send SUBSCRIBE message.");
-					if (DEBUG)
-						e.printStackTrace();
-				}
+	/**
+	 * Keep messages published with {@link #publish(String, byte[], int, boolean)}
+	 * on disk while disconnected, instead of dropping them, and send them
+	 * once connected. Messages left in the store when the sketch stopped are
+	 * sent on the first connect.
+	 * 
+	 * <pre>
+	 * client.setStore(new SegmentStore(new File(sketchPath("outbox")),
+	 * 		256 * 1024 * 1024, SegmentStore.Eviction.DROP_OLDEST));
+	 * </pre>
+	 * 
+	 * @param store
+	 *            The store, or null to drop messages while disconnected.
+	 */
+	public void setStore(SegmentStore store) {
+		if (store != null) {
+			synchronized (store) {
+				store_backlog = store.size() > 0;
 			}
-		} else {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
 		}
+		mStore = store;
+		if (store != null && state == CONNECTED)
+			drainLater();
 	}
-	
-	public void unsubscribe( String topic ){
-		if (state == CONNECTED) {
-			try {
-				mConnection.getOutputStream().write(
-						Messages.unsubscribe(getMessageId(), topic));
-				last_action = System.currentTimeMillis();
-			} catch (IOException e) {
-				if (DEBUG)
-					PApplet.println("Ohno! Something went wrong... IO Error, failed to send UNSUBSCRIBE message.");
-				if (DEBUG)
-					e.printStackTrace();
-			}
-		} else {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
-		}
+
+	/**
+	 * Set how outgoing packages are batched. Packages published from any
+	 * thread are collected and written together; a longer linger gives
+	 * fewer, larger writes at the cost of latency.
+	 * 
+	 * Default is no linger and batches of at most 64 KB.
+	 * 
+	 * @param maxBatch
+	 *            A batch is written as soon as it holds this many bytes.
+	 * @param linger
+	 *            How long to wait for more packages before writing, in
+	 *            milliseconds.
+	 */
+	public void setBatching(int maxBatch, long linger) {
+		this.max_batch = maxBatch;
+		this.linger = linger;
+		if (mOutbound != null)
+			mOutbound.setBatching(maxBatch, linger);
 	}
 
 	/**
+	 * Set how many QoS 1 and 2 messages can be waiting for an acknowledgement
+	 * at once. Messages published beyond that are queued and sent as
+	 * acknowledgements come in. At most
+	 * {@link DeliveryEngine#MAX_INFLIGHT}, there are only so many message
+	 * ids.
 	 * 
-	 * @param topic
-	 * @return
+	 * Default is 20.
+	 * 
+	 * @param max
 	 */
-	private boolean registerSubscription(String topic, String method) {
-		Method m = null;
+	public void setMaxInflight(int max) {
+		mDelivery.setMaxInflight(max);
+	}
 
-		try {
-			m = mPApplet.getClass().getMethod(method, MQTTMessage.class);
-		} catch (Exception e) {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... MQTT Error, you forgot to add the subscription method! 1 "
-						+ topic);
-			if (DEBUG)
-				e.printStackTrace();
-			return false;
-		}
+	/**
+	 * Set how long to wait for an acknowledgement before a QoS 1 or 2 message
+	 * is sent again.
+	 * 
+	 * Default is 20 seconds.
+	 * 
+	 * @param millis
+	 */
+	public void setRetryInterval(long millis) {
+		mDelivery.setRetryInterval(millis);
+	}
 
-		// Add the callback
-		if (m != null) {
-			subscriptions.put(topic, m);
-		} else {
-			if (DEBUG)
-				PApplet.println("Ohno! Something went wrong... MQTT Error, you forgot to add the subscription method! 2 "
-						+ topic);
-			return false;
-		}
-		return true;
+	/**
+	 * Limit the rate at which messages are published, see
+	 * {@link RateLimiter}. Messages published from a file with
+	 * {@link #publish(String, FileChannel, long, long)} always wait for the
+	 * limit, and buffers passed to {@link #publish(String, ByteBuffer)} are
+	 * copied.
+	 * 
+	 * @param limiter
+	 *            The limiter, or null for none.
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+		if (limiter != null)
+			limiter.bind(mLimited);
+		mLimiter = limiter;
 	}
 
-	private int getMessageId() {
-		message_id++;
+	/**
+	 * Set where the client reports what it does and what goes wrong. To trace
+	 * every package on a busy client without slowing it down:
+	 * 
+	 * <pre>
+	 * client.setLogger(Logger.async(System.out, Logger.Level.TRACE, 65536));
+	 * client.setLogSampling(100);
+	 * </pre>
+	 * 
+	 * Default is {@link Logger#none()}.
+	 * 
+	 * The parts that clients share report to a logger of their own, see
+	 * {@link TimerWheel#setLogger(Logger)}, {@link EventLoop#setLogger(Logger)}
+	 * and {@link Dispatcher#setLogger(Logger)}.
+	 * 
+	 * @param logger
+	 */
+	public void setLogger(Logger logger) {
+		mLogger = logger != null ? logger : Logger.none();
+	}
 
-		if (message_id == 65536) {
-			message_id = 0;
-		}
+	/**
+	 * Only trace 1 in so many PUBLISH packages, sent and received. Other
+	 * packages and errors are always logged.
+	 * 
+	 * Default is 1, every one.
+	 * 
+	 * @param everyN
+	 */
+	public void setLogSampling(int everyN) {
+		log_sampling = Math.max(everyN, 1);
+	}
 
-		return message_id;
+	private Logger log() {
+		Logger logger = mLogger;
+		return DEBUG && logger == Logger.none() ? DEBUG_LOGGER : logger;
 	}
 
-	private class KeepaliveThread implements Runnable {
+	/**
+	 * @return true if the PUBLISH at hand is one of those traced.
+	 */
+	private boolean sampled() {
+		int n = log_sampling;
+		return n == 1
+				|| (log_sampled.getAndIncrement() & Integer.MAX_VALUE) % n == 0;
+	}
 
-		private volatile boolean finished = false;
+	/**
+	 * Trace a PUBLISH being sent.
+	 */
+	private void traceSend(String topic, int qos, long length) {
+		Logger log = log();
+		if (log.isEnabled(Level.TRACE) && sampled())
+			log.log(Level.TRACE, "Sending PUBLISH on {0}, QoS {1}, {2} bytes",
+					topic, qos, length, null);
+	}
 
-		@Override
-		public void run() {
-			while (!finished) {
+	/**
+	 * Set which thread calls the subscription methods and listeners. By
+	 * default they are called on the thread reading the connection, so a
+	 * slow listener delays every following message, and the pings with them.
+	 * 
+	 * With {@link #setEventLoop(EventLoop)} that thread is the loop's, shared
+	 * by every client on it. A slow listener then stalls the reads, writes
+	 * and keepalives of all of them. Listeners that may block or take long
+	 * need a dispatcher of their own, or one shared by those clients:
+	 * 
+	 * <pre>
+	 * Dispatcher listeners = Dispatcher.striped(4, 1024,
+	 * 		Dispatcher.Overflow.BLOCK);
+	 * for (MQTT client : clients) {
+	 * 	client.setEventLoop(loop);
+	 * 	client.setDispatcher(listeners);
+	 * }
+	 * </pre>
+	 * 
+	 * @param dispatcher
+	 *            For example {@link Dispatcher#ordered(int, Dispatcher.Overflow)}.
+	 */
+	public void setDispatcher(Dispatcher dispatcher) {
+		mDispatcher = dispatcher != null ? dispatcher : Dispatcher.inline();
+	}
 
-				if (ping_sent
-						&& System.currentTimeMillis() - last_ping_request > (ping_grace * 1000)) {
-					if (DEBUG)
-						PApplet.println("Ohno! Something went wrong... MQTT Error, didn't get a ping response - maybe the connection died.");
-					disconnect();
-					ping_sent = false;
-				}
+	/**
+	 * Use non-blocking connections served by the given loop instead of two
+	 * threads per client. Must be set before connecting, many clients can
+	 * share the same loop. Listeners are then called on the loop thread
+	 * unless another dispatcher is set, see
+	 * {@link #setDispatcher(Dispatcher)}.
+	 * 
+	 * @param loop
+	 *            The loop to use, or null to go back to blocking sockets.
+	 */
+	public void setEventLoop(EventLoop loop) {
+		mEventLoop = loop;
+	}
 
-				if (System.currentTimeMillis() - last_action > (keepalive * 1000)) {
-					if (state == CONNECTED) {
-						synchronized (mConnection) {
-							try {
-								mConnection.getOutputStream().write(
-										Messages.ping());
-								ping_sent = true;
-								last_action = System.currentTimeMillis();
-							} catch (IOException e) {
-								if (DEBUG)
-									PApplet.println("Ohno! Something went wrong... IO Error, failed to send PING message.");
-								if (DEBUG)
-									e.printStackTrace();
-							}
-						}
-					}
+	/**
+	 * Used to send the connect message, shouldn't be used outside the MQTT
+	 * class.
+	 * 
+	 * @param id
+	 */
+	private void connect(String id, boolean cleanSession) {
+		if (state == DISCONNECTED) {
+			log().log(Level.DEBUG, "Connecting as {0}", id);
+			try {
+				synchronized (mOutbound) {
+					ByteBuffer dst = mOutbound.reserve(Messages
+							.connectLength(id));
+					Messages.encodeConnect(dst, id, (int) keepalive,
+							cleanSession);
+					mOutbound.commit();
 				}
+				// Only now, nothing may be written before the CONNECT
+				mDelivery.attach(mOutbound);
+				send(true);
+			} catch (IOException e) {
+				log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to send CONNECT message.", e);
+				return;
+			}
+		} else {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, you gots to be disconnected dude!");
+		}
+	}
 
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					if (DEBUG)
-						e.printStackTrace();
+	/**
+	 * Send the disconnect message.
+	 */
+	public void disconnect() {
+		// Whether connected or not, stop trying to reconnect
+		boolean wasReconnecting = reconnecting;
+		reconnecting = false;
+		resuming = false;
+		TimerWheel.Timeout reconnectTimer = mReconnectTimer;
+		if (reconnectTimer != null)
+			reconnectTimer.cancel();
+
+		if (state == CONNECTED) {
+			// The broker closes the connection as soon as it reads this
+			ignoreLoss();
+			try {
+				synchronized (mOutbound) {
+					ByteBuffer dst = mOutbound.reserve(2);
+					Messages.encodeDisconnect(dst);
+					mOutbound.commit();
 				}
+				// Written right away, the connection is closed next
+				send(true);
+			} catch (IOException e) {
+				log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to send DISCONNECT message.", e);
 			}
-		}
 
-		public void stop() {
-			finished = true;
+			close();
+		} else if (wasReconnecting) {
+			// Possibly halfway through a new connection
+			close();
+		} else {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
 		}
 	}
 
-	private class MonitoringThread implements Runnable {
-
-		Connection mConnection;
+	public void publish(String topic, String message) {
+		publish(topic, message.getBytes());
+	}
+
+	public void publish(String topic, byte[] buffer) {
+		publish(topic, buffer, AT_MOST_ONCE, false);
+	}
+
+	/**
+	 * Stop reading and close the connection, without it being reported as
+	 * lost. Unacknowledged messages are dropped.
+	 */
+	private void close() {
+		ignoreLoss();
+		if (mKeepalive != null)
+			mKeepalive.stop();
+
+		state = DISCONNECTED;
+		mDelivery.detach();
+		mDelivery.clear(new IOException("Disconnected"));
+		mSubscribes.clear(new IOException("Disconnected"));
+
+		try {
+			if (mConnection != null)
+				mConnection.close();
+		} catch (IOException e) {
+			log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to close the connection.", e);
+		}
+	}
+
+	/**
+	 * Make sure closing the current connection isn't reported as it being
+	 * lost.
+	 */
+	private void ignoreLoss() {
+		if (mMonitoringThread != null)
+			mMonitoringThread.stop();
+		synchronized (this) {
+			mLostConnection = mConnection;
+		}
+	}
+
+	/**
+	 * Publish a message with a given quality of service.
+	 * 
+	 * @param topic
+	 * @param message
+	 * @param qos
+	 *            {@link #AT_MOST_ONCE}, {@link #AT_LEAST_ONCE} or
+	 *            {@link #EXACTLY_ONCE}.
+	 * @param retain
+	 *            Whether the broker should keep the message for new
+	 *            subscribers.
+	 */
+	public void publish(String topic, String message, int qos, boolean retain) {
+		publish(topic, message.getBytes(), qos, retain);
+	}
+
+	/**
+	 * Publish a message with a given quality of service. QoS 1 and 2
+	 * messages are sent again until the broker acknowledges them.
+	 * 
+	 * @param topic
+	 * @param buffer
+	 * @param qos
+	 *            {@link #AT_MOST_ONCE}, {@link #AT_LEAST_ONCE} or
+	 *            {@link #EXACTLY_ONCE}.
+	 * @param retain
+	 *            Whether the broker should keep the message for new
+	 *            subscribers.
+	 */
+	public void publish(String topic, byte[] buffer, int qos, boolean retain) {
+		if (!fits(topic, buffer.length, qos))
+			return;
+
+		RateLimiter limiter = mLimiter;
+		if (limiter != null
+				&& !limiter.admit(topic, buffer, qos, retain, null))
+			return;
+		publishNow(topic, null, buffer, qos, retain);
+	}
+
+	public void publish(PublishTopic topic, String message) {
+		publish(topic, message.getBytes());
+	}
+
+	/**
+	 * Publish on a topic encoded once, see {@link PublishTopic}.
+	 * 
+	 * @param topic
+	 * @param buffer
+	 */
+	public void publish(PublishTopic topic, byte[] buffer) {
+		publish(topic, buffer, AT_MOST_ONCE, false);
+	}
+
+	/**
+	 * Publish on a topic encoded once with a given quality of service, see
+	 * {@link PublishTopic}.
+	 * 
+	 * @param topic
+	 * @param buffer
+	 * @param qos
+	 * @param retain
+	 */
+	public void publish(PublishTopic topic, byte[] buffer, int qos,
+			boolean retain) {
+		if (!fits(topic, buffer.length, qos))
+			return;
+
+		RateLimiter limiter = mLimiter;
+		if (limiter != null
+				&& !limiter.admit(topic.name(), buffer, qos, retain, null))
+			return;
+		publishNow(topic.name(), topic, buffer, qos, retain);
+	}
+
+	/**
+	 * Publish a message the rate limiter let through.
+	 * 
+	 * @param encoded
+	 *            The topic encoded, or null.
+	 */
+	private void publishNow(String topic, PublishTopic encoded,
+			byte[] buffer, int qos, boolean retain) {
+		SegmentStore store = mStore;
+		if (store != null && store(store, topic, buffer, qos, retain))
+			return;
+
+		// QoS 1 and 2 messages wait for the reconnect
+		if (state == CONNECTED || (reconnecting && qos > AT_MOST_ONCE)) {
+			traceSend(topic, qos, buffer.length);
+			try {
+				send(encoded != null ? mDelivery.publish(encoded, buffer, 0,
+						buffer.length, qos, retain, null) : mDelivery.publish(
+						topic, buffer, 0, buffer.length, qos, retain, null));
+				// Don't run ahead of a connection that buffers
+				mOutbound.throttle();
+			} catch (IOException e) {
+				log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to send PUBLISH message.", e);
+			}
+		} else {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
+		}
+	}
+
+	/**
+	 * Publish the latest value of a topic, for readings where only the
+	 * newest matters. Values are collected and published together; a value
+	 * replaced by a newer one before then is never sent, so calling this
+	 * every frame sends at most one message per topic per flush.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @see #setCoalesceInterval(long)
+	 */
+	public void publishLatest(String topic, byte[] payload) {
+		publishLatest(topic, payload, AT_MOST_ONCE, false);
+	}
+
+	public void publishLatest(String topic, String message) {
+		publishLatest(topic, message.getBytes());
+	}
+
+	/**
+	 * Publish the latest value of a topic with a given quality of service,
+	 * see {@link #publishLatest(String, byte[])}.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 * @param retain
+	 */
+	public void publishLatest(String topic, byte[] payload, int qos,
+			boolean retain) {
+		if (!fits(topic, payload.length, qos))
+			return;
+		mLatest.put(topic, payload, qos, retain);
+	}
+
+	/**
+	 * Set how long the values of {@link #publishLatest(String, byte[])} are
+	 * collected before they are published. With 0 they are published as
+	 * soon as the ones before have been written, so they only collapse while
+	 * the connection can't keep up.
+	 * 
+	 * Default is 0.
+	 * 
+	 * @param millis
+	 */
+	public void setCoalesceInterval(long millis) {
+		mLatest.setInterval(millis);
+	}
+
+	/**
+	 * Publish the bytes between the position and limit of a buffer, heap or
+	 * direct. Only the header is encoded, the payload is written from the
+	 * buffer as it is; the buffer can be reused once this returns.
+	 * 
+	 * @param topic
+	 * @param payload
+	 */
+	public void publish(String topic, ByteBuffer payload) {
+		publish(topic, payload, AT_MOST_ONCE, false);
+	}
+
+	/**
+	 * Publish the bytes between the position and limit of a buffer with a
+	 * given quality of service. QoS 1 and 2 messages are copied, they're
+	 * kept until acknowledged.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 * @param retain
+	 */
+	public void publish(String topic, ByteBuffer payload, int qos,
+			boolean retain) {
+		if (!fits(topic, payload.remaining(), qos))
+			return;
+
+		if (qos != AT_MOST_ONCE || state != CONNECTED || hasBacklog()
+				|| mLimiter != null) {
+			// Goes the usual way, through the engine or the store
+			byte[] copy = new byte[payload.remaining()];
+			payload.duplicate().get(copy);
+			publish(topic, copy, qos, retain);
+			return;
+		}
+
+		traceSend(topic, AT_MOST_ONCE, payload.remaining());
+		try {
+			mOutbound.writeThrough(publishHeader(topic, payload.remaining(),
+					retain), payload);
+			mOutbound.throttle();
+		} catch (IOException e) {
+			log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to send PUBLISH message.", e);
+		}
+	}
+
+	/**
+	 * Publish a region of a file, for example a camera frame or a firmware
+	 * image. Only the header is encoded, the payload is sent straight from
+	 * the file, with {@link FileChannel#transferTo} over a non-blocking
+	 * connection. Sent with QoS 0.
+	 * 
+	 * @param topic
+	 * @param src
+	 * @param position
+	 *            Where in the file the payload starts.
+	 * @param length
+	 *            The length of the payload, at most 256 MB.
+	 */
+	public void publish(String topic, FileChannel src, long position,
+			long length) {
+		if (length < 0 || length > Messages.MAX_REMAINING_LENGTH) {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, the message is too large! {2}", length);
+			return;
+		}
+		if (!fits(topic, (int) length, AT_MOST_ONCE))
+			return;
+		if (state != CONNECTED) {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
+			return;
+		}
+		RateLimiter limiter = mLimiter;
+		if (limiter != null && !limiter.acquire(topic, (int) length))
+			return;
+
+		traceSend(topic, AT_MOST_ONCE, length);
+		try {
+			mOutbound.transferFrom(publishHeader(topic, (int) length, false),
+					src, position, length);
+			mOutbound.throttle();
+		} catch (IOException e) {
+			log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to send PUBLISH message.", e);
+		}
+	}
+
+	/**
+	 * @return false, after telling why, if the message can't be sent.
+	 */
+	private boolean fits(String topic, int length, int qos) {
+		return fits(2 + Messages.utf8Length(topic), length, qos);
+	}
+
+	private boolean fits(PublishTopic topic, int length, int qos) {
+		return fits(topic.encoded().length, length, qos);
+	}
+
+	/**
+	 * @param topicLength
+	 *            The length of the topic as it is sent, length field
+	 *            included.
+	 */
+	private boolean fits(int topicLength, int length, int qos) {
+		if (qos < AT_MOST_ONCE || qos > EXACTLY_ONCE) {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, there's no such QoS! {2}", qos);
+			return false;
+		}
+		if (tooLarge(topicLength, length, qos)) {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, the message is too large! {2}", length);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the Remaining Length, which counts the topic and
+	 *         message id too, would be over the limit.
+	 */
+	private static boolean tooLarge(int topicLength, int length, int qos) {
+		return (long) topicLength + (qos > AT_MOST_ONCE ? 2 : 0) + length
+				> Messages.MAX_REMAINING_LENGTH;
+	}
+
+	/**
+	 * Encode everything of a QoS 0 PUBLISH package but the payload.
+	 */
+	private ByteBuffer publishHeader(String topic, int length, boolean retain) {
+		ByteBuffer header = ByteBuffer.allocate(Messages.publishLength(topic,
+				0, AT_MOST_ONCE) + 3);
+		Messages.putPublishHeader(header, topic, length, AT_MOST_ONCE, 0,
+				retain);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * @return true if stored messages are waiting to be sent first.
+	 */
+	private boolean hasBacklog() {
+		SegmentStore store = mStore;
+		if (store == null)
+			return false;
+		synchronized (store) {
+			return store_backlog;
+		}
+	}
+
+	/**
+	 * Append a message to the store if it can't be sent right away, or if
+	 * stored messages are still waiting, so they are sent in order.
+	 * 
+	 * @return false if the message should be sent now.
+	 */
+	private boolean store(SegmentStore store, String topic, byte[] payload,
+			int qos, boolean retain) {
+		synchronized (store) {
+			if (state == CONNECTED && !store_backlog)
+				return false;
+
+			byte[] packet = new byte[Messages.publishLength(topic,
+					payload.length, qos)];
+			Messages.encodePublish(ByteBuffer.wrap(packet), topic, payload, 0,
+					payload.length, qos, 0, retain);
+			try {
+				if (store.append(packet, 0, packet.length))
+					store_backlog = true;
+				else
+					log().log(Level.WARN, "Ohno! Something went wrong... Store Error, the store is full.");
+			} catch (IOException e) {
+				log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to store PUBLISH message.", e);
+			}
+		}
+		// Connected meanwhile, the drain may have missed it
+		if (state == CONNECTED)
+			drainLater();
+		return true;
+	}
+
+	/**
+	 * Send the stored messages on another thread.
+	 */
+	private void drainLater() {
+		if (drain_requests.getAndIncrement() == 0)
+			ForkJoinPool.commonPool().execute(mDrain);
+	}
+
+	/**
+	 * Send stored messages until the store is empty, or the window of QoS 1
+	 * and 2 messages is full; each acknowledgement drains some more.
+	 * Records are marked done once written for QoS 0 and once acknowledged
+	 * otherwise.
+	 */
+	private void drainStore() {
+		final SegmentStore store = mStore;
+		OutboundQueue queue = mOutbound;
+		if (store == null || queue == null)
+			return;
+
+		try {
+			while (state == CONNECTED && mDelivery.waiting() == 0) {
+				final SegmentStore.Record record;
+				synchronized (store) {
+					record = store.next();
+					if (record == null) {
+						store_backlog = false;
+						break;
+					}
+				}
+
+				if (record.qos() == AT_MOST_ONCE) {
+					if (record.length() > TRANSFER_THRESHOLD) {
+						// Straight from the page cache to the socket
+						queue.transferFrom(record.channel(), record.position(),
+								record.length());
+						queue.throttle();
+					} else {
+						synchronized (queue) {
+							queue.reserve(record.length()).put(record.packet());
+							queue.commit();
+						}
+						if (queue.size() >= max_batch) {
+							queue.flush();
+							queue.throttle();
+						}
+					}
+					store.release(record);
+				} else {
+					CompletableFuture<Void> done = new CompletableFuture<Void>();
+					done.whenComplete(new BiConsumer<Void, Throwable>() {
+						@Override
+						public void accept(Void result, Throwable failure) {
+							if (failure == null) {
+								store.release(record);
+								drainLater();
+							}
+						}
+					});
+					if (mDelivery.publishEncoded(record.toByteArray(),
+							record.qos(), done))
+						queue.flush();
+				}
+			}
+			queue.flush();
+		} catch (IOException e) {
+			// The reader notices, records not yet done are sent again
+			log().log(Level.DEBUG, "Draining the store stopped", e);
+		}
+	}
+
+	/**
+	 * Publish a message without waiting for it to be written. The returned
+	 * future completes once the message has been written for QoS 0, when the
+	 * broker sends PUBACK for QoS 1 and PUBCOMP for QoS 2, and fails if the
+	 * message can't be delivered. Over an {@link NIOConnection} a QoS 0
+	 * message counts as written once it has left the connection's queue for
+	 * the socket, so a slow network holds the futures back.
+	 * 
+	 * At most {@link #setMaxPending(int)} futures can be incomplete at once,
+	 * beyond that the future fails right away with a
+	 * {@link RejectedExecutionException}.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 *            {@link #AT_MOST_ONCE}, {@link #AT_LEAST_ONCE} or
+	 *            {@link #EXACTLY_ONCE}.
+	 * @return The completion of the message.
+	 */
+	public CompletableFuture<Void> publishAsync(String topic, byte[] payload,
+			int qos) {
+		return publishAsync(topic, null, payload, qos);
+	}
+
+	/**
+	 * Publish on a topic encoded once without waiting for it to be written,
+	 * see {@link #publishAsync(String, byte[], int)} and
+	 * {@link PublishTopic}.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 * @return The completion of the message.
+	 */
+	public CompletableFuture<Void> publishAsync(PublishTopic topic,
+			byte[] payload, int qos) {
+		return publishAsync(topic.name(), topic, payload, qos);
+	}
+
+	private CompletableFuture<Void> publishAsync(String topic,
+			PublishTopic encoded, byte[] payload, int qos) {
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		if (qos < AT_MOST_ONCE || qos > EXACTLY_ONCE) {
+			done.completeExceptionally(new IllegalArgumentException(
+					"No such QoS: " + qos));
+			return done;
+		}
+		if (tooLarge(encoded != null ? encoded.encoded().length
+				: 2 + Messages.utf8Length(topic), payload.length, qos)) {
+			done.completeExceptionally(new IllegalArgumentException(
+					"Message too large: " + payload.length + " bytes"));
+			return done;
+		}
+		if (state != CONNECTED && !(reconnecting && qos > AT_MOST_ONCE)) {
+			done.completeExceptionally(new IOException("Not connected"));
+			return done;
+		}
+		if (pending.incrementAndGet() > max_pending) {
+			pending.decrementAndGet();
+			done.completeExceptionally(new RejectedExecutionException(
+					"Too many pending messages: " + max_pending));
+			return done;
+		}
+		done.whenComplete(mPendingDone);
+
+		RateLimiter limiter = mLimiter;
+		if (limiter == null || limiter.admit(topic, payload, qos, false, done))
+			publishAsyncNow(topic, encoded, payload, qos, false, done);
+		return done;
+	}
+
+	/**
+	 * Publish a message of publishAsync the rate limiter let through.
+	 * 
+	 * @param encoded
+	 *            The topic encoded, or null.
+	 */
+	private void publishAsyncNow(String topic, PublishTopic encoded,
+			byte[] payload, int qos, boolean retain,
+			CompletableFuture<Void> done) {
+		traceSend(topic, qos, payload.length);
+		try {
+			boolean flush = encoded != null ? mDelivery.publish(encoded,
+					payload, 0, payload.length, qos, retain, done) : mDelivery
+					.publish(topic, payload, 0, payload.length, qos, retain,
+							done);
+			if (flush)
+				mOutbound.flushLater();
+		} catch (IOException e) {
+			done.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Set how many messages published with
+	 * {@link #publishAsync(String, byte[], int)} can be incomplete at once.
+	 * 
+	 * Default is 1024.
+	 * 
+	 * @param max
+	 */
+	public void setMaxPending(int max) {
+		max_pending = max;
+	}
+
+	/**
+	 * @return The number of messages published with
+	 *         {@link #publishAsync(String, byte[], int)} that haven't
+	 *         completed yet.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Counters of the packages and bytes sent and received by type, the
+	 * latencies of encoding, decoding, listeners and pings, reconnects and
+	 * the length of the queues. Kept for the life of the client, across
+	 * reconnects.
+	 * 
+	 * <pre>
+	 * client.getMetrics().register("sensor-client");
+	 * println(client.getMetrics().snapshot().get("latency.ping.p99"));
+	 * </pre>
+	 * 
+	 * @return The metrics of this client.
+	 */
+	public Metrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * @return true once the broker has accepted the connection, until it's
+	 *         lost or closed.
+	 */
+	public boolean isConnected() {
+		return state == CONNECTED;
+	}
+
+	public void subscribe(String topic) {
+		// The topic is also the name of the method
+		boolean ok = topic.length() > 0
+				&& Character.isJavaIdentifierStart(topic.charAt(0));
+		for (int i = 1; ok && i < topic.length(); i++)
+			ok = Character.isJavaIdentifierPart(topic.charAt(i));
+
+		if (!ok)
+			PApplet.println("Topic is not OK, use method subscribe(String topic, String method){} instead!");
+		else
+			subscribe(topic, topic);
+	}
+
+	public void subscribe(String topic, String method) {
+		if (state == CONNECTED) {
+			Consumer<MQTTMessage> listener = findMethod(topic, method);
+			if (listener != null)
+				subscribe(topic, listener);
+		} else {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
+		}
+	}
+
+	/**
+	 * Subscribe to a topic with a listener instead of a method in the sketch.
+	 * The topic can contain the wildcards <code>+</code> (any single level)
+	 * and <code>#</code> (any number of levels, last only), for example
+	 * <code>site/+/sensor/#</code>.
+	 * 
+	 * @param topic
+	 * @param listener
+	 *            Called with every message published to a matching topic.
+	 */
+	public void subscribe(String topic, Consumer<MQTTMessage> listener) {
+		if (!TopicTree.isValidFilter(topic)) {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, the topic has misplaced wildcards! {0}", topic);
+			return;
+		}
+
+		if (state == CONNECTED) {
+			subscriptions.put(topic, listener);
+			sendSubscribe(topic);
+		} else {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
+		}
+	}
+
+	/**
+	 * Subscribe to a topic with a listener that gets large messages piece by
+	 * piece as they arrive, see {@link #setStreamThreshold(int)}. Smaller
+	 * messages are passed as a single chunk.
+	 * 
+	 * @param topic
+	 *            The topic, wildcards allowed.
+	 * @param listener
+	 */
+	public void subscribe(String topic, StreamListener listener) {
+		if (!TopicTree.isValidFilter(topic)) {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, the topic has misplaced wildcards! {0}", topic);
+			return;
+		}
+
+		if (state == CONNECTED) {
+			streams.put(topic, listener);
+			sendSubscribe(topic);
+		} else {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
+		}
+	}
+
+	/**
+	 * Set the size above which messages on topics with a
+	 * {@link StreamListener} are streamed instead of received whole. Those
+	 * messages are then only passed to the stream listeners. Can be changed
+	 * while connected, it applies from the next message to arrive.
+	 * 
+	 * Default is 64 KB.
+	 * 
+	 * @param bytes
+	 */
+	public void setStreamThreshold(int bytes) {
+		stream_threshold = bytes;
+	}
+
+	private void sendSubscribe(String topic) {
+		subscription_qos.put(topic, EXACTLY_ONCE);
+		try {
+			// Not while holding the queue, the engine locks it too
+			int msgId = getMessageId();
+			boolean flush;
+			synchronized (mOutbound) {
+				ByteBuffer dst = mOutbound.reserve(Messages
+						.subscribeLength(topic));
+				Messages.encodeSubscribe(dst, msgId, topic,
+						Messages.EXACTLY_ONCE);
+				flush = mOutbound.commit();
+			}
+			send(flush);
+		} catch (IOException e) {
+			log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to send SUBSCRIBE message.", e);
+		}
+	}
+	
+	public void unsubscribe( String topic ){
+		if (state == CONNECTED) {
+			subscriptions.remove(topic);
+			streams.remove(topic);
+			subscription_qos.remove(topic);
+			try {
+				int msgId = getMessageId();
+				boolean flush;
+				synchronized (mOutbound) {
+					ByteBuffer dst = mOutbound.reserve(Messages
+							.unsubscribeLength(topic));
+					Messages.encodeUnsubscribe(dst, msgId, topic);
+					flush = mOutbound.commit();
+				}
+				send(flush);
+			} catch (IOException e) {
+				log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to send UNSUBSCRIBE message.", e);
+			}
+		} else {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, you gots to be connected dude!");
+		}
+	}
+
+	/**
+	 * Subscribe to many topics at once. The topics are packed into as few
+	 * SUBSCRIBE packages as fit in a batch (see
+	 * {@link #setBatching(int, long)}), instead of one package and one round
+	 * trip per topic.
+	 * 
+	 * @param topics
+	 *            The topic filters and the QoS wanted for each.
+	 * @param listener
+	 *            Called with every message published to any of the topics.
+	 * @return Completes with the QoS granted per topic once the broker has
+	 *         acknowledged them all; 0x80 means the broker refused it.
+	 */
+	public CompletableFuture<Map<String, Integer>> subscribe(
+			Map<String, Integer> topics, Consumer<MQTTMessage> listener) {
+		// An empty SUBSCRIBE is a protocol violation, nothing to ask for
+		if (topics.isEmpty())
+			return CompletableFuture.completedFuture(Collections
+					.<String, Integer> emptyMap());
+
+		String[] filters = new String[topics.size()];
+		int[] qos = new int[filters.length];
+		int n = 0;
+		for (Map.Entry<String, Integer> entry : topics.entrySet()) {
+			if (!TopicTree.isValidFilter(entry.getKey())) {
+				CompletableFuture<Map<String, Integer>> failed = new CompletableFuture<Map<String, Integer>>();
+				failed.completeExceptionally(new IllegalArgumentException(
+						"Misplaced wildcards: " + entry.getKey()));
+				return failed;
+			}
+			filters[n] = entry.getKey();
+			qos[n] = entry.getValue();
+			n++;
+		}
+
+		if (state != CONNECTED) {
+			CompletableFuture<Map<String, Integer>> failed = new CompletableFuture<Map<String, Integer>>();
+			failed.completeExceptionally(new IOException("Not connected"));
+			return failed;
+		}
+
+		for (int i = 0; i < filters.length; i++) {
+			subscriptions.put(filters[i], listener);
+			subscription_qos.put(filters[i], qos[i]);
+		}
+
+		try {
+			return sendPacked(filters, qos).future();
+		} catch (IOException e) {
+			log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to send SUBSCRIBE message.", e);
+			CompletableFuture<Map<String, Integer>> failed = new CompletableFuture<Map<String, Integer>>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * Unsubscribe from many topics at once, packed into as few UNSUBSCRIBE
+	 * packages as fit in a batch.
+	 * 
+	 * @param topics
+	 * @return Completes once the broker has acknowledged them all.
+	 */
+	public CompletableFuture<Void> unsubscribe(Collection<String> topics) {
+		if (topics.isEmpty())
+			return CompletableFuture.completedFuture(null);
+
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		if (state != CONNECTED) {
+			done.completeExceptionally(new IOException("Not connected"));
+			return done;
+		}
+
+		String[] filters = topics.toArray(new String[topics.size()]);
+		for (int i = 0; i < filters.length; i++) {
+			subscriptions.remove(filters[i]);
+			streams.remove(filters[i]);
+			subscription_qos.remove(filters[i]);
+		}
+
+		try {
+			return sendPacked(filters, null).future().thenApply(
+					new Function<Map<String, Integer>, Void>() {
+						@Override
+						public Void apply(Map<String, Integer> granted) {
+							return null;
+						}
+					});
+		} catch (IOException e) {
+			log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to send UNSUBSCRIBE message.", e);
+			done.completeExceptionally(e);
+			return done;
+		}
+	}
+
+	/**
+	 * Send SUBSCRIBE packages, or UNSUBSCRIBE ones if qos is null, with as
+	 * many topics in each as fit in a batch. There must be at least one
+	 * topic.
+	 * 
+	 * @return The request, completed by the acknowledgements.
+	 */
+	private SubscribeTracker.Request sendPacked(String[] topics, int[] qos)
+			throws IOException {
+		// Split first, the request needs to know how many packages it takes
+		int limit = Math.max(max_batch, 128) - 5 - 2;
+		int[] ends = new int[topics.length];
+		int parts = 0;
+		int size = 0;
+		for (int i = 0; i < topics.length; i++) {
+			int topic = 2 + Messages.utf8Length(topics[i]) + (qos != null ? 1 : 0);
+			if (size > 0 && size + topic > limit) {
+				ends[parts++] = i;
+				size = 0;
+			}
+			size += topic;
+		}
+		ends[parts++] = topics.length;
+
+		SubscribeTracker.Request request = mSubscribes.start(topics, parts);
+		boolean flush = false;
+		int from = 0;
+		for (int p = 0; p < parts; p++) {
+			int to = ends[p];
+			// Not while holding the queue, the engine locks it too
+			int msgId = getMessageId();
+			mSubscribes.expect(msgId, request, from, to);
+			synchronized (mOutbound) {
+				if (qos != null) {
+					ByteBuffer dst = mOutbound.reserve(Messages.subscribeLength(
+							topics, from, to));
+					Messages.encodeSubscribe(dst, msgId, topics, qos, from, to);
+				} else {
+					ByteBuffer dst = mOutbound.reserve(Messages
+							.unsubscribeLength(topics, from, to));
+					Messages.encodeUnsubscribe(dst, msgId, topics, from, to);
+				}
+				flush |= mOutbound.commit();
+			}
+			from = to;
+		}
+		send(flush);
+		return request;
+	}
+
+	/**
+	 * Set a listener that gets every published message, whatever the topic.
+	 * Replaces the rawMQTT method of the sketch.
+	 * 
+	 * @param listener
+	 *            The listener, or null for none.
+	 */
+	public void setRawListener(Consumer<MQTTMessage> listener) {
+		raw = listener;
+	}
+
+	/**
+	 * Look up the subscription method in the sketch, and bind it once so
+	 * that it can be called without reflection for every message.
+	 * 
+	 * @param topic
+	 * @param method
+	 * @return The listener, or null if the method doesn't exist.
+	 */
+	private Consumer<MQTTMessage> findMethod(String topic, String method) {
+		try {
+			return new MethodListener(mPApplet, mPApplet.getClass().getMethod(
+					method, MQTTMessage.class));
+		} catch (Exception e) {
+			log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, you forgot to add the subscription method! {0}", topic, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Called after a package has been added to the outbound queue.
+	 * 
+	 * @param flush
+	 *            Whether the queue should be written now.
+	 * @throws IOException
+	 */
+	private void send(boolean flush) throws IOException {
+		if (flush)
+			mOutbound.flush();
+	}
+
+	private int getMessageId() {
+		return mDelivery.nextMessageId();
+	}
+
+	/**
+	 * Sends a ping when nothing has been written for the keepalive interval,
+	 * and gives up on the connection if the broker doesn't answer within the
+	 * grace time. Runs on the shared {@link TimerWheel}; instead of moving
+	 * the deadline on every write, the timer checks the time of the last
+	 * write when it fires and sleeps again for whatever is left.
+	 */
+	private class Keepalive implements Runnable {
+
+		private final Connection mConnection;
+
+		private final OutboundQueue mQueue;
+
+		private final long interval = keepalive * 1000;
+
+		private volatile boolean stopped = false;
+
+		/** Set from sending a PINGREQ until the PINGRESP. */
+		private volatile boolean awaiting = false;
+
+		/** When the PINGREQ being answered was sent, for the round trip. */
+		private volatile long pinged;
+
+		private volatile TimerWheel.Timeout mTimer;
+		private volatile TimerWheel.Timeout mGraceTimer;
+
+		private final Runnable mGraceExpired = new Runnable() {
+			@Override
+			public void run() {
+				if (stopped || !awaiting)
+					return;
+				log().log(Level.WARN, "Ohno! Something went wrong... MQTT Error, didn't get a ping response - maybe the connection died.");
+				lost(mConnection, new IOException("No ping response"));
+			}
+		};
+
+		public Keepalive(Connection connection, OutboundQueue queue) {
+			mConnection = connection;
+			mQueue = queue;
+		}
+
+		public void start() {
+			if (interval > 0)
+				mTimer = TimerWheel.getDefault().schedule(this, interval);
+		}
+
+		@Override
+		public void run() {
+			if (stopped)
+				return;
+
+			long idle = System.currentTimeMillis() - mQueue.lastWrite();
+			if (state != CONNECTED) {
+				mTimer = TimerWheel.getDefault().schedule(this, interval);
+				return;
+			}
+			if (idle < interval) {
+				// Written to since, sleep for the rest
+				mTimer = TimerWheel.getDefault().schedule(this, interval - idle);
+				return;
+			}
+
+			// Before sending, the answer can come back right away
+			if (!awaiting) {
+				pinged = System.nanoTime();
+				awaiting = true;
+				mGraceTimer = TimerWheel.getDefault().schedule(mGraceExpired,
+						ping_grace * 1000);
+			}
+
+			boolean flush;
+			synchronized (mQueue) {
+				ByteBuffer dst = mQueue.reserve(2);
+				Messages.encodePing(dst);
+				flush = mQueue.commit();
+			}
+			// Never block the timer on the socket
+			if (flush)
+				mQueue.flushLater();
+
+			mTimer = TimerWheel.getDefault().schedule(this, interval);
+		}
+
+		/** The broker answered. */
+		public void pong() {
+			if (awaiting)
+				mMetrics.ping.record(System.nanoTime() - pinged);
+			cancelGrace();
+		}
+
+		public void stop() {
+			stopped = true;
+			TimerWheel.Timeout timer = mTimer;
+			if (timer != null)
+				timer.cancel();
+			cancelGrace();
+		}
+
+		private void cancelGrace() {
+			awaiting = false;
+			TimerWheel.Timeout grace = mGraceTimer;
+			if (grace != null)
+				grace.cancel();
+		}
+	}
+
+	/**
+	 * Give up on a connection that stopped answering.
+	 */
+	private void lost(Connection connection, IOException cause) {
+		if (connection != mConnection)
+			return;
+		if (mMonitoringThread != null)
+			mMonitoringThread.stop();
+		connectionLost(connection, cause);
+		try {
+			connection.close();
+		} catch (IOException e) {
+			log().log(Level.DEBUG, "Closing the lost connection failed", e);
+		}
+	}
+
+	/**
+	 * Called when the connection was closed by the broker or failed.
+	 * 
+	 * @param connection
+	 *            The connection that was lost.
+	 * @param cause
+	 *            The error, or null at the end of the stream.
+	 */
+	private void connectionLost(Connection connection, IOException cause) {
+		synchronized (this) {
+			// Both the reader and the keepalive may notice
+			if (connection != mConnection || connection == mLostConnection)
+				return;
+			mLostConnection = connection;
+		}
+		mMetrics.lost();
+
+		if (state != DISCONNECTED) {
+			log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to read messages.", cause);
+		}
+
+		if (mKeepalive != null)
+			mKeepalive.stop();
+		state = DISCONNECTED;
+		mDelivery.detach();
+		mSubscribes.clear(cause != null ? cause : new EOFException(
+				"Connection closed"));
+
+		if (auto_reconnect && mHost != null) {
+			// Unacknowledged messages are kept for the next connection
+			reconnecting = true;
+			scheduleReconnect();
+		} else {
+			mDelivery.clear(cause != null ? cause : new EOFException(
+					"Connection closed"));
+		}
+	}
+
+	/**
+	 * Try to reconnect after a random delay, doubling with every attempt.
+	 */
+	private synchronized void scheduleReconnect() {
+		long ceiling = Math.min(reconnect_max,
+				reconnect_min << Math.min(reconnect_attempt, 30));
+		long delay = ceiling / 2
+				+ ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		reconnect_attempt++;
+		log().log(Level.DEBUG, "Reconnecting in {2} ms", delay);
+		mReconnectTimer = TimerWheel.getDefault().schedule(mReconnect, delay);
+	}
+
+	private void reconnect() {
+		if (!reconnecting)
+			return;
+
+		Connection connection;
+		try {
+			connection = open();
+		} catch (IOException e) {
+			log().log(Level.WARN, "Ohno! Something went wrong... IO Error, failed to reconnect, trying again.");
+			if (reconnecting)
+				scheduleReconnect();
+			return;
+		}
+
+		if (!reconnecting) {
+			// Disconnected meanwhile
+			try {
+				connection.close();
+			} catch (IOException e) {
+			}
+			return;
+		}
+
+		resuming = true;
+		start(connection, mClientId, false);
+	}
+
+	/**
+	 * Called on CONNACK after reconnecting: subscribe to every topic again,
+	 * packed into as few packages as fit, and send the unacknowledged
+	 * messages again.
+	 */
+	private void resume() throws IOException {
+		LinkedHashSet<String> filters = new LinkedHashSet<String>(
+				subscriptions.filters());
+		filters.addAll(streams.filters());
+		if (!filters.isEmpty()) {
+			String[] topics = filters.toArray(new String[filters.size()]);
+			int[] qos = new int[topics.length];
+			for (int i = 0; i < topics.length; i++) {
+				Integer wanted = subscription_qos.get(topics[i]);
+				qos[i] = wanted != null ? wanted : EXACTLY_ONCE;
+			}
+			sendPacked(topics, qos);
+		}
+
+		mDelivery.resume();
+	}
+
+	/**
+	 * Call the listeners of a message, and the raw listener.
+	 */
+	private void deliver(List<Consumer<MQTTMessage>> listeners,
+			Consumer<MQTTMessage> rawListener, MQTTMessage msg) {
+		for (int i = 0; i < listeners.size(); i++)
+			deliver(listeners.get(i), msg);
+
+		// Always send to "raw" output
+		if (rawListener != null)
+			deliver(rawListener, msg);
+	}
+
+	/**
+	 * Call a listener, a failing listener must not stop the reading.
+	 */
+	private void deliver(Consumer<MQTTMessage> listener, MQTTMessage msg) {
+		long start = mMetrics.start();
+		try {
+			listener.accept(msg);
+		} catch (RuntimeException e) {
+			log().log(Level.WARN, "Ohno! Something went wrong... a listener failed.", e);
+		}
+		mMetrics.record(mMetrics.callback, start);
+	}
+
+	private class MonitoringThread implements Runnable {
+
+		Connection mConnection;
 
 		private volatile boolean finished;
 
+		private final InboundHandler mHandler;
+
 		public MonitoringThread(Connection connection) {
 			mConnection = connection;
+			mHandler = new InboundHandler(connection);
 		}
 
 		public void stop() {
@@ -430,114 +1919,318 @@ public class MQTT {
 		}
 
 		public void run() {
-			int ret = 0;
-			byte[] buffer = new byte[16384];
-
-			while (!finished || ret >= 0) {
+			while (!finished) {
 				try {
-					ret = mConnection.getInputStream().read(buffer);
+					if (mHandler.reader.fill(mConnection.getInputStream()) < 0) {
+						mHandler.closed(null);
+						break;
+					}
+					mHandler.process();
 				} catch (IOException e) {
-					if (DEBUG)
-						PApplet.println("Ohno! Something went wrong... IO Error, failed to read messages.");
-					if (DEBUG)
-						e.printStackTrace();
+					if (!finished)
+						mHandler.closed(e);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Frames and handles the incoming packages, either read by the
+	 * MonitoringThread or delivered by a non-blocking connection.
+	 */
+	private class InboundHandler implements Connection.Receiver {
+
+		final PacketReader reader = new PacketReader();
+
+		private final PacketView view = new PacketView();
+
+		private final Connection mConnection;
+
+		/** The listeners of the message being streamed, or null. */
+		private List<StreamListener> streaming;
+
+		public InboundHandler(Connection connection) {
+			mConnection = connection;
+		}
+
+		@Override
+		public void received(ReadableByteChannel channel) throws IOException {
+			int ret;
+			while ((ret = reader.fill(channel)) > 0)
+				process();
+			if (ret < 0)
+				throw new EOFException();
+		}
+
+		@Override
+		public void closed(IOException cause) {
+			if (streaming != null) {
+				for (int i = 0; i < streaming.size(); i++) {
+					try {
+						streaming.get(i).onAbort(cause);
+					} catch (RuntimeException e) {
+						log().log(Level.WARN, "Ohno! Something went wrong... a stream listener failed.", e);
+					}
+				}
+				streaming = null;
+			}
+			connectionLost(mConnection, cause);
+		}
+
+		/**
+		 * Handle every complete package, and every part of a streamed one,
+		 * in the reader.
+		 */
+		void process() throws IOException {
+			// May have been changed since the last read
+			reader.setStreamThreshold(stream_threshold);
+			while (reader.next()) {
+				switch (reader.kind()) {
+				case PacketReader.PACKET:
+					mMetrics.received(reader.buffer()[reader.offset()] >> 4,
+							reader.length());
+					handle(view.wrap(reader.buffer(), reader.offset(),
+							reader.length()));
+					break;
+				case PacketReader.HEAD:
+					head(view.wrap(reader.buffer(), reader.offset(),
+							reader.length()));
+					break;
+				case PacketReader.CHUNK:
+					mMetrics.receivedBytes(Messages.PUBLISH, reader.length());
+					chunk(ByteBuffer.wrap(reader.buffer(), reader.offset(),
+							reader.length()));
 					break;
 				}
+			}
+		}
 
-				if (ret > 0) {					
-					MQTTMessage msg = Messages.decode(buffer);
+		/**
+		 * The headers of a large PUBLISH, the payload is streamed if there
+		 * are stream listeners for it and received whole otherwise.
+		 */
+		private void head(PacketView packet) throws IOException {
+			List<StreamListener> listeners = streams.match(packet.topic());
+			if (listeners.isEmpty())
+				return;
+			reader.stream();
+			log().log(Level.TRACE, "Streaming PUBLISH on {0}, {2} bytes",
+					packet.topic(), reader.remaining());
+			// Received whole otherwise, and counted then
+			mMetrics.received(Messages.PUBLISH, reader.length());
 
-					switch (msg.type) {
-					case Messages.CONNECT:
-						if (DEBUG)
-							PApplet.println("CONNECT");
-						state = CONNECTING;
-						break;
-					case Messages.CONNACK:
-						if (DEBUG)
-							PApplet.println("CONNACK");
-						state = CONNECTED;
-						break;
-					case Messages.PUBLISH:
-						if (DEBUG)
-							PApplet.println("PUBLISH");
-
-						Method eventMethod = subscriptions
-								.get(msg.variableHeader.get("topic_name"));
-						
-						if (eventMethod != null) {
-							try {
-								eventMethod.invoke(mPApplet, msg);
-							} catch (IllegalAccessException e) {
-								if (DEBUG)
-									e.printStackTrace();
-							} catch (IllegalArgumentException e) {
-								if (DEBUG)
-									e.printStackTrace();
-							} catch (InvocationTargetException e) {
-								if (DEBUG)
-									e.printStackTrace();
-							}
-						}
-						
-						// Always send to "raw" output
+			// Acknowledged before delivering, redelivered QoS 2 is skipped
+			if (packet.qos() > AT_MOST_ONCE
+					&& !mDelivery.received(packet.qos(), packet.messageId()))
+				listeners = Collections.emptyList();
+
+			streaming = listeners;
+			for (int i = 0; i < listeners.size(); i++) {
+				try {
+					listeners.get(i).onStart(packet.topic(),
+							reader.remaining());
+				} catch (RuntimeException e) {
+					log().log(Level.WARN, "Ohno! Something went wrong... a stream listener failed.", e);
+				}
+			}
+			if (reader.remaining() == 0)
+				chunk(ByteBuffer.allocate(0));
+		}
+
+		private void trace(Logger log, PacketView packet) {
+			switch (packet.type()) {
+			case Messages.PUBLISH:
+				if (sampled())
+					log.log(Level.TRACE,
+							"Received PUBLISH on {0}, QoS {1}, id {2}",
+							packet.topic(), packet.qos(),
+							packet.qos() > AT_MOST_ONCE ? packet.messageId()
+									: 0, null);
+				break;
+			case Messages.PUBACK:
+			case Messages.PUBREC:
+			case Messages.PUBREL:
+			case Messages.PUBCOMP:
+			case Messages.SUBACK:
+			case Messages.UNSUBACK:
+				log.log(Level.TRACE, "Received {0}, id {2}",
+						Messages.name(packet.type()), packet.messageId());
+				break;
+			default:
+				log.log(Level.TRACE, "Received {0}",
+						Messages.name(packet.type()));
+			}
+		}
+
+		/**
+		 * A part of the payload being streamed.
+		 */
+		private void chunk(ByteBuffer chunk) {
+			List<StreamListener> listeners = streaming;
+			boolean last = reader.remaining() == 0;
+			if (last)
+				streaming = null;
+			stream(listeners, chunk, last);
+		}
+
+		/**
+		 * Pass a part of a payload to stream listeners, a failing listener
+		 * must not stop the reading.
+		 */
+		private void stream(List<StreamListener> listeners, ByteBuffer chunk,
+				boolean last) {
+			for (int i = 0; i < listeners.size(); i++) {
+				StreamListener listener = listeners.get(i);
+				long start = mMetrics.start();
+				try {
+					if (chunk.hasRemaining())
+						listener.onChunk(chunk.asReadOnlyBuffer());
+					if (last)
+						listener.onEnd();
+				} catch (RuntimeException e) {
+					log().log(Level.WARN, "Ohno! Something went wrong... a stream listener failed.", e);
+				}
+				mMetrics.record(mMetrics.callback, start);
+			}
+		}
+
+		private void handle(PacketView packet) throws IOException {
+			Logger log = log();
+			if (log.isEnabled(Level.TRACE))
+				trace(log, packet);
+
+			switch (packet.type()) {
+			case Messages.CONNECT:
+				state = CONNECTING;
+				break;
+			case Messages.CONNACK:
+				state = CONNECTED;
+				reconnect_attempt = 0;
+				boolean resumed = resuming;
+				if (resuming) {
+					resuming = false;
+					reconnecting = false;
+					mMetrics.reconnected();
+					resume();
+				}
+				SegmentStore store = mStore;
+				if (store != null) {
+					synchronized (store) {
+						// Messages handed out before were dropped with the session
+						if (!resumed)
+							store.rewind();
+						store_backlog = true;
+					}
+					drainLater();
+				}
+				break;
+			case Messages.PUBLISH:
+				long start = mMetrics.start();
+
+				// Acknowledged before delivering, redelivered QoS 2 is skipped
+				if (packet.qos() > AT_MOST_ONCE
+						&& !mDelivery.received(packet.qos(), packet.messageId()))
+					break;
+
+				// Small messages go to stream listeners in one chunk
+				if (streams.size() > 0) {
+					List<StreamListener> streamed = streams.match(packet
+							.topic());
+					for (int i = 0; i < streamed.size(); i++) {
 						try {
-							raw.invoke(mPApplet, msg);
-						} catch (IllegalAccessException e) {
-							if (DEBUG)
-								e.printStackTrace();
-						} catch (IllegalArgumentException e) {
-							if (DEBUG)
-								e.printStackTrace();
-						} catch (InvocationTargetException e) {
-							if (DEBUG)
-								e.printStackTrace();
+							streamed.get(i).onStart(packet.topic(),
+									packet.payloadLength());
+						} catch (RuntimeException e) {
+							log().log(Level.WARN, "Ohno! Something went wrong... a stream listener failed.", e);
 						}
-				break;
-					case Messages.PUBACK:
-						if (DEBUG)
-							PApplet.println("PUBACK");
-						break;
-					case Messages.PUBREC:
-						if (DEBUG)
-							PApplet.println("PUBREC");
-						break;
-					case Messages.PUBREL:
-						if (DEBUG)
-							PApplet.println("PUBREL");
-						break;
-					case Messages.PUBCOMP:
-						if (DEBUG)
-							PApplet.println("PUBCOMP");
-						break;
-					case Messages.SUBSCRIBE:
-						if (DEBUG)
-							PApplet.println("SUBSCRIBE");
-						break;
-					case Messages.SUBACK:
-						if (DEBUG)
-							PApplet.println("SUBACK");
-						break;
-					case Messages.UNSUBSCRIBE:
-						if (DEBUG)
-							PApplet.println("UNSUBSCRIBE");
-						break;
-					case Messages.UNSUBACK:
-						if (DEBUG)
-							PApplet.println("UNSUBACK");
-						break;
-					case Messages.PINGREQ:
-						if (DEBUG)
-							PApplet.println("PINGREQ");
-						last_ping_request = System.currentTimeMillis();
-						break;
-					case Messages.PINGRESP:
-						if (DEBUG)
-							PApplet.println("PINGRESP");
-						ping_sent = false;
-						break;
 					}
+					if (!streamed.isEmpty())
+						stream(streamed, packet.payload(), true);
+				}
+
+				List<Consumer<MQTTMessage>> listeners = subscriptions
+						.match(packet.topic());
+				final Consumer<MQTTMessage> rawListener = raw;
+
+				// Only copy the package if someone wants it
+				if (listeners.isEmpty() && rawListener == null)
+					break;
+				final MQTTMessage msg = packet.toMessage();
+				mMetrics.record(mMetrics.decode, start);
+
+				Dispatcher dispatcher = mDispatcher;
+				if (dispatcher == Dispatcher.inline()) {
+					deliver(listeners, rawListener, msg);
+				} else {
+					final List<Consumer<MQTTMessage>> matched = listeners;
+					dispatcher.dispatch(packet.topic(), new Runnable() {
+						@Override
+						public void run() {
+							deliver(matched, rawListener, msg);
+						}
+					});
 				}
+				break;
+			case Messages.PUBACK:
+				mDelivery.acknowledged(packet.type(), packet.messageId());
+				break;
+			case Messages.PUBREC:
+				mDelivery.acknowledged(packet.type(), packet.messageId());
+				break;
+			case Messages.PUBREL:
+				mDelivery.acknowledged(packet.type(), packet.messageId());
+				break;
+			case Messages.PUBCOMP:
+				mDelivery.acknowledged(packet.type(), packet.messageId());
+				break;
+			case Messages.SUBSCRIBE:
+				break;
+			case Messages.SUBACK:
+				mSubscribes.subacked(packet.messageId(), packet.array(),
+						packet.payloadOffset(), packet.payloadLength());
+				break;
+			case Messages.UNSUBSCRIBE:
+				break;
+			case Messages.UNSUBACK:
+				mSubscribes.unsubacked(packet.messageId());
+				break;
+			case Messages.PINGREQ:
+				break;
+			case Messages.PINGRESP:
+				mKeepalive.pong();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * A method in the sketch, bound to a {@link MethodHandle} once when
+	 * subscribing instead of being invoked reflectively for every message.
+	 */
+	private static class MethodListener implements Consumer<MQTTMessage> {
+
+		private final MethodHandle handle;
+
+		public MethodListener(Object target, Method method)
+				throws IllegalAccessException {
+			// Sketches are often declared without being public
+			method.setAccessible(true);
+			handle = MethodHandles.lookup().unreflect(method).bindTo(target)
+					.asType(MethodType.methodType(void.class,
+							MQTTMessage.class));
+		}
+
+		@Override
+		public void accept(MQTTMessage msg) {
+			try {
+				handle.invokeExact(msg);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new UndeclaredThrowableException(t);
 			}
 		}
 	}
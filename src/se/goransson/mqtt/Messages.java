@@ -16,12 +16,25 @@ package se.goransson.mqtt;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 public class Messages {
 
+	/** The protocol name, encoded once. */
+	private static final byte[] PROTOCOL_NAME = MQTT.MQTT_PROTOCOL
+			.getBytes(Charset.forName("UTF-8"));
+
+	/** Views used by decode, it copies everything out so they can be reused. */
+	private static final ThreadLocal<PacketView> DECODER = new ThreadLocal<PacketView>() {
+		@Override
+		protected PacketView initialValue() {
+			return new PacketView();
+		}
+	};
+
 	// Quality of Service
 
 	/** Fire and Forget */
@@ -77,6 +90,27 @@ public class Messages {
 	/** Message type: Disconnect from server */
 	protected static final byte DISCONNECT = 0x0e;
 
+	/** Names of the message types, by type. */
+	private static final String[] NAMES = { "RESERVED", "CONNECT", "CONNACK",
+			"PUBLISH", "PUBACK", "PUBREC", "PUBREL", "PUBCOMP", "SUBSCRIBE",
+			"SUBACK", "UNSUBSCRIBE", "UNSUBACK", "PINGREQ", "PINGRESP",
+			"DISCONNECT", "RESERVED" };
+
+	/**
+	 * @param type
+	 *            A message type, or the first byte of a package.
+	 * @return The name of the type, for logs and metrics.
+	 */
+	static String name(int type) {
+		return NAMES[type & 0x0F];
+	}
+
+	/** Largest value the Remaining Length field can hold (256 MB). */
+	public static final int MAX_REMAINING_LENGTH = 268435455;
+
+	/** Keep alive used by {@link #connect(String)}, in seconds. */
+	protected static final int DEFAULT_KEEPALIVE = 10;
+
 	/**
 	 * Create a CONNECT MQTT message.
 	 * 
@@ -85,12 +119,9 @@ public class Messages {
 	 * @throws UnsupportedEncodingException
 	 */
 	public static byte[] connect(String identifier) throws IOException {
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
-		payload.write(0);
-		payload.write(identifier.length());
-		payload.write(identifier.getBytes("UTF-8"));
-		return encode(CONNECT, false, 0, false, payload.toByteArray(), "false",
-				"false", "false", "false", "false");
+		ByteBuffer dst = ByteBuffer.allocate(connectLength(identifier));
+		encodeConnect(dst, identifier, DEFAULT_KEEPALIVE, true);
+		return dst.array();
 	}
 
 	/**
@@ -101,7 +132,9 @@ public class Messages {
 	 * @throws IOException
 	 */
 	public static byte[] disconnect() throws IOException {
-		return encode(DISCONNECT, false, 0, false, new byte[0]);
+		ByteBuffer dst = ByteBuffer.allocate(2);
+		encodeDisconnect(dst);
+		return dst.array();
 	}
 
 	/**
@@ -117,8 +150,11 @@ public class Messages {
 	 */
 	public static byte[] publish(String topic, byte[] message)
 			throws IOException {
-		return encode(PUBLISH, false, 0, false, message, Integer.toString(0),
-				topic);
+		ByteBuffer dst = ByteBuffer.allocate(publishLength(topic,
+				message.length, AT_MOST_ONCE));
+		encodePublish(dst, topic, message, 0, message.length, AT_MOST_ONCE, 0,
+				false);
+		return dst.array();
 	}
 
 	/**
@@ -137,36 +173,438 @@ public class Messages {
 	 */
 	public static byte[] subscribe(int message_id, String subscribe_topic,
 			int subscribed_qos) throws IOException {
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		ByteBuffer dst = ByteBuffer.allocate(subscribeLength(subscribe_topic));
+		encodeSubscribe(dst, message_id, subscribe_topic, subscribed_qos);
+		return dst.array();
+	}
 
-		payload.write((byte) ((subscribe_topic.length() >> 8) & 0xFF));
-		payload.write((byte) (subscribe_topic.length() & 0xFF));
-		payload.write(subscribe_topic.getBytes("UTF-8"));
-		payload.write(subscribed_qos);
+	public static byte[] unsubscribe(int message_id, String... subscribe_topic) throws IOException {
+		ByteBuffer dst = ByteBuffer.allocate(unsubscribeLength(subscribe_topic));
+		encodeUnsubscribe(dst, message_id, subscribe_topic);
+		return dst.array();
+	}
+	
+	public static byte[] ping() throws IOException {
+		ByteBuffer dst = ByteBuffer.allocate(2);
+		encodePing(dst);
+		return dst.array();
+	}
 
-		return encode(SUBSCRIBE, false, AT_LEAST_ONCE, false,
-				payload.toByteArray(), Integer.toString(message_id));
+	/**
+	 * Total length of a CONNECT package, fixed header included.
+	 * 
+	 * @param identifier
+	 *            The client identifier.
+	 * @return The number of bytes {@link #encodeConnect} will write.
+	 */
+	public static int connectLength(CharSequence identifier) {
+		return packetLength(connectRemaining(identifier));
 	}
 
-	public static byte[] unsubscribe(int message_id, String... subscribe_topic) throws IOException {
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+	private static int connectRemaining(CharSequence identifier) {
+		// Protocol name, version, flags, keep alive and the identifier
+		return 2 + PROTOCOL_NAME.length + 1 + 1 + 2 + 2
+				+ utf8Length(identifier);
+	}
+
+	/**
+	 * Write a CONNECT package into the buffer.
+	 * 
+	 * @param dst
+	 *            Where to write the package, must have at least
+	 *            {@link #connectLength(CharSequence)} bytes remaining.
+	 * @param identifier
+	 *            The client identifier.
+	 * @param keepalive
+	 *            The keep alive interval in seconds.
+	 * @param cleanSession
+	 *            Whether the server should discard any previous session.
+	 */
+	public static void encodeConnect(ByteBuffer dst, CharSequence identifier,
+			int keepalive, boolean cleanSession) {
+		dst.put(fixedHeader(CONNECT, false, AT_MOST_ONCE, false));
+		putRemainingLength(dst, connectRemaining(identifier));
+
+		// Variable header
+		dst.put((byte) 0x00);
+		dst.put((byte) PROTOCOL_NAME.length);
+		dst.put(PROTOCOL_NAME);
+		dst.put(MQTT.MQTT_VERSION);
+		// Connect flags, no username, password or will
+		dst.put((byte) ((cleanSession ? 1 : 0) << 1));
+		dst.put((byte) ((keepalive >> 8) & 0xFF)); // Keep alive MSB
+		dst.put((byte) (keepalive & 0xFF)); // Keep alive LSB
+
+		// Payload
+		putString(dst, identifier);
+	}
+
+	/**
+	 * Total length of a PUBLISH package, fixed header included.
+	 * 
+	 * @param topic
+	 *            The topic name.
+	 * @param payloadLength
+	 *            Number of payload bytes.
+	 * @param qos
+	 *            The QoS of the message, a message id is only sent for
+	 *            {@link #AT_LEAST_ONCE} and {@link #EXACTLY_ONCE}.
+	 * @return The number of bytes {@link #encodePublish} will write.
+	 */
+	public static int publishLength(CharSequence topic, int payloadLength,
+			int qos) {
+		return packetLength(2 + utf8Length(topic)
+				+ (qos > AT_MOST_ONCE ? 2 : 0) + payloadLength);
+	}
+
+	/**
+	 * Write a PUBLISH package into the buffer in one pass, without any
+	 * intermediate arrays. The payload buffer's position is left untouched.
+	 * 
+	 * @param dst
+	 *            Where to write the package, must have at least
+	 *            {@link #publishLength(CharSequence, int, int)} bytes
+	 *            remaining.
+	 * @param topic
+	 *            The topic name.
+	 * @param payload
+	 *            The bytes between position and limit are sent.
+	 * @param qos
+	 *            {@link #AT_MOST_ONCE}, {@link #AT_LEAST_ONCE} or
+	 *            {@link #EXACTLY_ONCE}.
+	 * @param msgId
+	 *            The message id, ignored for {@link #AT_MOST_ONCE}.
+	 * @param retain
+	 *            Whether the server should hold on to the message.
+	 */
+	public static void encodePublish(ByteBuffer dst, CharSequence topic,
+			ByteBuffer payload, int qos, int msgId, boolean retain) {
+		putPublishHeader(dst, topic, payload.remaining(), qos, msgId, retain);
+		dst.put(payload.duplicate());
+	}
+
+	/**
+	 * Write a PUBLISH package into the buffer, taking the payload from a
+	 * region of an array.
+	 * 
+	 * @see #encodePublish(ByteBuffer, CharSequence, ByteBuffer, int, int,
+	 *      boolean)
+	 */
+	public static void encodePublish(ByteBuffer dst, CharSequence topic,
+			byte[] payload, int offset, int length, int qos, int msgId,
+			boolean retain) {
+		putPublishHeader(dst, topic, length, qos, msgId, retain);
+		dst.put(payload, offset, length);
+	}
+
+	/**
+	 * Total length of a PUBLISH package on a pre-encoded topic, fixed header
+	 * included.
+	 */
+	public static int publishLength(PublishTopic topic, int payloadLength,
+			int qos) {
+		return packetLength(topic.encoded().length
+				+ (qos > AT_MOST_ONCE ? 2 : 0) + payloadLength);
+	}
+
+	/**
+	 * Write a PUBLISH package on a pre-encoded topic, only the payload is
+	 * copied byte by byte.
+	 * 
+	 * @see #encodePublish(ByteBuffer, CharSequence, byte[], int, int, int,
+	 *      int, boolean)
+	 */
+	public static void encodePublish(ByteBuffer dst, PublishTopic topic,
+			byte[] payload, int offset, int length, int qos, int msgId,
+			boolean retain) {
+		putPublishHeader(dst, topic, length, qos, msgId, retain);
+		dst.put(payload, offset, length);
+	}
+
+	/**
+	 * Writes everything of a PUBLISH package but the payload, for one kind
+	 * of topic, so a caller can publish on either kind the same way.
+	 *
+	 * @param <T>
+	 *            The type of the topic.
+	 */
+	interface PublishHeader<T> {
+
+		/** @see Messages#publishLength(CharSequence, int, int) */
+		int length(T topic, int payloadLength, int qos);
+
+		/**
+		 * @see Messages#putPublishHeader(ByteBuffer, CharSequence, int, int,
+		 *      int, boolean)
+		 */
+		void put(ByteBuffer dst, T topic, int payloadLength, int qos,
+				int msgId, boolean retain);
+	}
 
-		for (String topic : subscribe_topic) {
-			payload.write((byte) ((topic.length() >> 8) & 0xFF));
-			payload.write((byte) (topic.length() & 0xFF));
-			payload.write(topic.getBytes("UTF-8"));
+	/** Encodes a topic name as it is written. */
+	static final PublishHeader<CharSequence> TOPIC_NAME = new PublishHeader<CharSequence>() {
+		@Override
+		public int length(CharSequence topic, int payloadLength, int qos) {
+			return publishLength(topic, payloadLength, qos);
+		}
+
+		@Override
+		public void put(ByteBuffer dst, CharSequence topic,
+				int payloadLength, int qos, int msgId, boolean retain) {
+			putPublishHeader(dst, topic, payloadLength, qos, msgId, retain);
+		}
+	};
+
+	/** Copies the bytes of a {@link PublishTopic}. */
+	static final PublishHeader<PublishTopic> PUBLISH_TOPIC = new PublishHeader<PublishTopic>() {
+		@Override
+		public int length(PublishTopic topic, int payloadLength, int qos) {
+			return publishLength(topic, payloadLength, qos);
+		}
+
+		@Override
+		public void put(ByteBuffer dst, PublishTopic topic,
+				int payloadLength, int qos, int msgId, boolean retain) {
+			putPublishHeader(dst, topic, payloadLength, qos, msgId, retain);
+		}
+	};
+
+	/**
+	 * Write everything of a PUBLISH package but the payload.
+	 */
+	protected static void putPublishHeader(ByteBuffer dst, CharSequence topic,
+			int payloadLength, int qos, int msgId, boolean retain) {
+		int topicLength = utf8Length(topic);
+		int remaining = 2 + topicLength + (qos > AT_MOST_ONCE ? 2 : 0)
+				+ payloadLength;
+		if (remaining > MAX_REMAINING_LENGTH)
+			throw new IllegalArgumentException("Message too large: "
+					+ payloadLength + " bytes");
+
+		dst.put(fixedHeader(PUBLISH, retain, qos, false));
+		putRemainingLength(dst, remaining);
+
+		// Variable header
+		dst.put((byte) ((topicLength >> 8) & 0xFF)); // MSB
+		dst.put((byte) (topicLength & 0xFF)); // LSB
+		putUtf8(dst, topic);
+		if (qos > AT_MOST_ONCE) {
+			dst.put((byte) ((msgId >> 8) & 0xFF)); // Message ID MSB
+			dst.put((byte) (msgId & 0xFF)); // Message ID LSB
 		}
-		
-		return encode(UNSUBSCRIBE, false, AT_LEAST_ONCE, false,
-				payload.toByteArray(), Integer.toString(message_id));
 	}
-	
-	public static byte[] ping() throws IOException {
-		return encode(PINGREQ, false, 0, false, new byte[0]);
+
+	/**
+	 * Write everything of a PUBLISH package on a pre-encoded topic but the
+	 * payload.
+	 */
+	protected static void putPublishHeader(ByteBuffer dst, PublishTopic topic,
+			int payloadLength, int qos, int msgId, boolean retain) {
+		byte[] encoded = topic.encoded();
+		int remaining = encoded.length + (qos > AT_MOST_ONCE ? 2 : 0)
+				+ payloadLength;
+		if (remaining > MAX_REMAINING_LENGTH)
+			throw new IllegalArgumentException("Message too large: "
+					+ payloadLength + " bytes");
+
+		dst.put(topic.header(qos, retain));
+		putRemainingLength(dst, remaining);
+		dst.put(encoded);
+		if (qos > AT_MOST_ONCE) {
+			dst.put((byte) ((msgId >> 8) & 0xFF)); // Message ID MSB
+			dst.put((byte) (msgId & 0xFF)); // Message ID LSB
+		}
+	}
+
+	/**
+	 * Total length of a SUBSCRIBE package for a single topic, fixed header
+	 * included.
+	 */
+	public static int subscribeLength(CharSequence topic) {
+		return packetLength(2 + 2 + utf8Length(topic) + 1);
 	}
 
 	/**
-	 * Low level compilation of an MQTT package.
+	 * Write a SUBSCRIBE package for a single topic into the buffer, it has a
+	 * QoS of {@link #AT_LEAST_ONCE}.
+	 * 
+	 * @param dst
+	 *            Where to write the package.
+	 * @param msgId
+	 *            The message id of the subscribe.
+	 * @param topic
+	 *            The topic to subscribe to.
+	 * @param qos
+	 *            The wanted QoS for the subscription.
+	 */
+	public static void encodeSubscribe(ByteBuffer dst, int msgId,
+			CharSequence topic, int qos) {
+		int remaining = 2 + 2 + utf8Length(topic) + 1;
+		dst.put(fixedHeader(SUBSCRIBE, false, AT_LEAST_ONCE, false));
+		putRemainingLength(dst, remaining);
+		dst.put((byte) ((msgId >> 8) & 0xFF)); // Message ID MSB
+		dst.put((byte) (msgId & 0xFF)); // Message ID LSB
+		putString(dst, topic);
+		dst.put((byte) qos);
+	}
+
+	/**
+	 * Total length of a SUBSCRIBE package for several topics, fixed header
+	 * included.
+	 * 
+	 * @param topics
+	 * @param from
+	 *            The first topic in the package.
+	 * @param to
+	 *            One past the last topic in the package.
+	 */
+	public static int subscribeLength(CharSequence[] topics, int from, int to) {
+		return packetLength(subscribeRemaining(topics, from, to));
+	}
+
+	private static int subscribeRemaining(CharSequence[] topics, int from,
+			int to) {
+		int remaining = 2;
+		for (int i = from; i < to; i++)
+			remaining += 2 + utf8Length(topics[i]) + 1;
+		return remaining;
+	}
+
+	/**
+	 * Write a SUBSCRIBE package for several topics into the buffer.
+	 * 
+	 * @param dst
+	 *            Where to write the package.
+	 * @param msgId
+	 *            The message id of the subscribe.
+	 * @param topics
+	 *            The topics to subscribe to.
+	 * @param qos
+	 *            The wanted QoS for each topic.
+	 * @param from
+	 *            The first topic in the package.
+	 * @param to
+	 *            One past the last topic in the package.
+	 */
+	public static void encodeSubscribe(ByteBuffer dst, int msgId,
+			CharSequence[] topics, int[] qos, int from, int to) {
+		dst.put(fixedHeader(SUBSCRIBE, false, AT_LEAST_ONCE, false));
+		putRemainingLength(dst, subscribeRemaining(topics, from, to));
+		dst.put((byte) ((msgId >> 8) & 0xFF)); // Message ID MSB
+		dst.put((byte) (msgId & 0xFF)); // Message ID LSB
+		for (int i = from; i < to; i++) {
+			putString(dst, topics[i]);
+			dst.put((byte) qos[i]);
+		}
+	}
+
+	/**
+	 * Total length of an UNSUBSCRIBE package, fixed header included.
+	 */
+	public static int unsubscribeLength(CharSequence... topics) {
+		return unsubscribeLength(topics, 0, topics.length);
+	}
+
+	/**
+	 * Total length of an UNSUBSCRIBE package for some of the topics, fixed
+	 * header included.
+	 * 
+	 * @param topics
+	 * @param from
+	 *            The first topic in the package.
+	 * @param to
+	 *            One past the last topic in the package.
+	 */
+	public static int unsubscribeLength(CharSequence[] topics, int from, int to) {
+		return packetLength(unsubscribeRemaining(topics, from, to));
+	}
+
+	private static int unsubscribeRemaining(CharSequence[] topics, int from,
+			int to) {
+		int remaining = 2;
+		for (int i = from; i < to; i++)
+			remaining += 2 + utf8Length(topics[i]);
+		return remaining;
+	}
+
+	/**
+	 * Write an UNSUBSCRIBE package into the buffer, it has a QoS of
+	 * {@link #AT_LEAST_ONCE}.
+	 * 
+	 * @param dst
+	 *            Where to write the package.
+	 * @param msgId
+	 *            The message id of the unsubscribe.
+	 * @param topics
+	 *            The topics to unsubscribe from.
+	 */
+	public static void encodeUnsubscribe(ByteBuffer dst, int msgId,
+			CharSequence... topics) {
+		encodeUnsubscribe(dst, msgId, topics, 0, topics.length);
+	}
+
+	/**
+	 * Write an UNSUBSCRIBE package for some of the topics into the buffer.
+	 * 
+	 * @param dst
+	 *            Where to write the package.
+	 * @param msgId
+	 *            The message id of the unsubscribe.
+	 * @param topics
+	 *            The topics to unsubscribe from.
+	 * @param from
+	 *            The first topic in the package.
+	 * @param to
+	 *            One past the last topic in the package.
+	 */
+	public static void encodeUnsubscribe(ByteBuffer dst, int msgId,
+			CharSequence[] topics, int from, int to) {
+		dst.put(fixedHeader(UNSUBSCRIBE, false, AT_LEAST_ONCE, false));
+		putRemainingLength(dst, unsubscribeRemaining(topics, from, to));
+		dst.put((byte) ((msgId >> 8) & 0xFF)); // Message ID MSB
+		dst.put((byte) (msgId & 0xFF)); // Message ID LSB
+		for (int i = from; i < to; i++)
+			putString(dst, topics[i]);
+	}
+
+	/** Length of a PUBACK, PUBREC, PUBREL or PUBCOMP package. */
+	public static final int ACK_LENGTH = 4;
+
+	/**
+	 * Write one of the packages that only carry a message id into the
+	 * buffer: PUBACK, PUBREC, PUBREL or PUBCOMP.
+	 * 
+	 * @param dst
+	 *            Where to write the package.
+	 * @param type
+	 *            {@link #PUBACK}, {@link #PUBREC}, {@link #PUBREL} or
+	 *            {@link #PUBCOMP}.
+	 * @param msgId
+	 *            The id of the message being acknowledged.
+	 */
+	public static void encodeAck(ByteBuffer dst, int type, int msgId) {
+		// PUBREL is itself acknowledged, so it's sent with QoS 1
+		dst.put(fixedHeader(type, false, type == PUBREL ? AT_LEAST_ONCE
+				: AT_MOST_ONCE, false));
+		dst.put((byte) 0x02);
+		dst.put((byte) ((msgId >> 8) & 0xFF)); // Message ID MSB
+		dst.put((byte) (msgId & 0xFF)); // Message ID LSB
+	}
+
+	/** Write a PINGREQ package into the buffer. */
+	public static void encodePing(ByteBuffer dst) {
+		dst.put(fixedHeader(PINGREQ, false, AT_MOST_ONCE, false));
+		dst.put((byte) 0x00);
+	}
+
+	/** Write a DISCONNECT package into the buffer. */
+	public static void encodeDisconnect(ByteBuffer dst) {
+		dst.put(fixedHeader(DISCONNECT, false, AT_MOST_ONCE, false));
+		dst.put((byte) 0x00);
+	}
+
+	/**
+	 * The first byte of every MQTT package.
 	 * 
 	 * @param type
 	 *            Message type, can be {@link #CONNACK}, {@link #PUBLISH},
@@ -179,175 +617,131 @@ public class Messages {
 	 *            message for each topic.
 	 * @param qos
 	 *            Quality of Service, can be {@link #AT_MOST_ONCE},
-	 *            {@link #AT_LEAST_ONCE}, or {@link EXACTLY_ONCE}
+	 *            {@link #AT_LEAST_ONCE}, or {@link #EXACTLY_ONCE}
 	 * @param dup
 	 *            Should be set to true when a message is being re-delivered.
 	 *            Only when QoS is {@link #AT_LEAST_ONCE} or
 	 *            {@link #EXACTLY_ONCE}
-	 * @param payload
-	 *            The message payload, varies depending on message type.
-	 * @param params
-	 *            The parameters for the Variable Header.
-	 * @return The MQTT message as a byte array.
-	 * @throws IOException
+	 * @return The fixed header byte.
 	 */
-	protected static byte[] encode(int type, boolean retain, int qos,
-			boolean dup, byte[] payload, String... params) throws IOException {
-		// Create the container for the message
-		ByteArrayOutputStream message = new ByteArrayOutputStream();
-
-		// Fixed Header
-		message.write((byte) ((retain ? 1 : 0) | qos << 1 | (dup ? 1 : 0) << 3 | type << 4));
-
-		// Variable Header (create another ByteArrayOutputStream)
-		ByteArrayOutputStream variableHeader = new ByteArrayOutputStream();
-
-		switch (type) {
-		case CONNECT:
-			// Variable Header, read the params.
-			// boolean username = Boolean.parseBoolean(params[0]);
-			// boolean password = Boolean.parseBoolean(params[1]);
-			// boolean will = Boolean.parseBoolean(params[2]);
-			// boolean will_retain = Boolean.parseBoolean(params[3]);
-			// boolean cleansession = Boolean.parseBoolean(params[4]);
-
-			variableHeader.write((MQTT.MQTT_PROTOCOL.getBytes("UTF-8").length >> 8) & 0xFF); // MSB
-			variableHeader.write(MQTT.MQTT_PROTOCOL.getBytes("UTF-8").length); // LSB
-			variableHeader.write(MQTT.MQTT_PROTOCOL.getBytes("UTF-8"));
-			variableHeader.write(MQTT.MQTT_VERSION);
-			// Connect flags
-			// variableHeader.write((cleansession ? 1 : 0) << 1
-			// | (will ? 1 : 0) << 2 | (qos) << 3
-			// | (will_retain ? 1 : 0) << 5 | (password ? 1 : 0) << 6
-			// | (username ? 1 : 0) << 7);
-			variableHeader.write((1) << 1 | (0) << 2 | (0) << 3 | (0) << 5
-					| (0) << 6 | (0) << 7);
-			variableHeader.write(0x00);
-			variableHeader.write(0x0A);
-			break;
-		case PUBLISH:
-			// Variable header, read the params.
-			int message_id = Integer.parseInt(params[0]);
-			String topic_name = params[1];
-
-			variableHeader
-					.write((topic_name.getBytes("UTF-8").length >> 8) & 0xFF); // MSB
-			variableHeader.write(topic_name.getBytes("UTF-8").length); // LSB
-			variableHeader.write(topic_name.getBytes("UTF-8")); // Topic
-			if (qos > AT_MOST_ONCE) {
-				variableHeader.write((message_id >> 8) & 0xFF); // Message ID MSB
-				variableHeader.write(message_id & 0xFF); // Message ID LSB
-			}
-			break;
-		case DISCONNECT:
-			// Has no variable header
-			break;
-		case SUBSCRIBE:
-			// Variable header, read the params.
-			message_id = Integer.parseInt(params[0]);
-
-			variableHeader.write((message_id >> 8) & 0xFF); // Message ID MSB
-			variableHeader.write(message_id & 0xFF); // Message ID LSB
-			break;
-		case UNSUBSCRIBE:
-			// Variable header, read the params.
-			message_id = Integer.parseInt(params[0]);
-
-			variableHeader.write((message_id >> 8) & 0xFF); // Message ID MSB
-			variableHeader.write(message_id & 0xFF); // Message ID LSB
-			break;
-		}
+	protected static byte fixedHeader(int type, boolean retain, int qos,
+			boolean dup) {
+		return (byte) ((retain ? 1 : 0) | qos << 1 | (dup ? 1 : 0) << 3 | type << 4);
+	}
+
+	/**
+	 * Total package length for the given Remaining Length.
+	 */
+	protected static int packetLength(int remaining) {
+		return 1 + remainingLengthSize(remaining) + remaining;
+	}
 
-		// Remaining length
-		int length = payload.length + variableHeader.size();
+	/**
+	 * Number of bytes needed to encode the Remaining Length.
+	 */
+	protected static int remainingLengthSize(int length) {
+		if (length < 128)
+			return 1;
+		if (length < 16384)
+			return 2;
+		if (length < 2097152)
+			return 3;
+		return 4;
+	}
+
+	protected static void putRemainingLength(ByteBuffer dst, int length) {
 		do {
 			byte digit = (byte) (length % 128);
 			length /= 128;
 			if (length > 0)
 				digit = (byte) (digit | 0x80);
-			message.write(digit);
+			dst.put(digit);
 		} while (length > 0);
+	}
 
-		// Variable header
-		message.write(variableHeader.toByteArray());
-
-		// Payload
-		message.write(payload);
+	/**
+	 * Number of bytes the string takes when encoded as UTF-8, without
+	 * encoding it.
+	 */
+	public static int utf8Length(CharSequence s) {
+		int len = s.length();
+		int bytes = len;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					bytes++;
+				} else if (Character.isHighSurrogate(c) && i + 1 < len
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					// 4 bytes for the pair of chars
+					bytes += 2;
+					i++;
+				} else if (!Character.isSurrogate(c)) {
+					bytes += 2;
+				}
+			}
+		}
+		return bytes;
+	}
 
-		// Return the finished message
-		return message.toByteArray();
+	/**
+	 * Write a string as UTF-8 prefixed with its two byte length.
+	 */
+	protected static void putString(ByteBuffer dst, CharSequence s) {
+		int len = utf8Length(s);
+		dst.put((byte) ((len >> 8) & 0xFF)); // MSB
+		dst.put((byte) (len & 0xFF)); // LSB
+		putUtf8(dst, s);
 	}
 
-	public static MQTTMessage decode(byte[] message) {
-		int i = 0;
-		MQTTMessage mqtt = new MQTTMessage();
-		mqtt.type = (byte) ((message[i] >> 4) & 0x0F);
-		mqtt.DUP = ((message[i] >> 3) & 0x01) == 0 ? false : true;
-		mqtt.QoS = (message[i] >> 1) & 0x03;
-		mqtt.retain = (message[i++] & 0x01) == 0 ? false : true;
-
-		int multiplier = 1;
-		int len = 0;
-		byte digit = 0;
-		int headerOffset = 1;
-		do {
-			headerOffset++;
-			
-			digit = message[i++];
-			len += (digit & 127) * multiplier;
-			multiplier *= 128;
-		} while ((digit & 128) != 0);
-		mqtt.remainingLength = len;
-
-		
-		switch (mqtt.type) {
-		case CONNECT:
-			// The client should never receive a CONNECT message.
-			break;
-			
-		case CONNACK:
-			// TODO
-			byte reserved = message[i++];
-			mqtt.variableHeader.put("return_code", message[i++]);
-			
-			break;
-			
-		case PUBLISH:
-			int topic_name_len = (message[i++] * 256 + message[i++]);
-			mqtt.variableHeader.put("topic_name_len", topic_name_len);
-			
-			String topic_name = new String(message, i, topic_name_len);
-			mqtt.variableHeader.put("topic_name", topic_name);
-			i += topic_name_len;
-
-			// Only read the ID if the Quality of Service is above AT_MOST_ONCE!
-			if( mqtt.QoS > AT_MOST_ONCE ){
-				int message_id = (message[i++] << 8 & 0xFF00 | message[i++] & 0xFF);
-				mqtt.variableHeader.put("message_id", Integer.toString(message_id));
+	/**
+	 * Write a string as UTF-8, char by char so that no byte array is created.
+	 */
+	protected static void putUtf8(ByteBuffer dst, CharSequence s) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				dst.put((byte) c);
+			} else if (c < 0x800) {
+				dst.put((byte) (0xC0 | (c >> 6)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				dst.put((byte) (0xF0 | (cp >> 18)));
+				dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogate, same replacement as String.getBytes
+				dst.put((byte) '?');
+			} else {
+				dst.put((byte) (0xE0 | (c >> 12)));
+				dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				dst.put((byte) (0x80 | (c & 0x3F)));
 			}
-			break;
-			
-		case SUBSCRIBE:
-			mqtt.variableHeader.put("message_id",
-					(message[i++] << 8 | message[i++]));
-			break;
-		case PINGREQ:
-			break;
 		}
+	}
 
-//		StringBuilder sb = new StringBuilder();
-		
-		ByteArrayOutputStream payload = new ByteArrayOutputStream();
-		for (int b = i; b < headerOffset + mqtt.remainingLength; b++){
-//			sb.append("'").append((char)message[b]).append("'").append(" ");
-			payload.write(message[b]);
-		}
-//		System.out.println("Received");
-//		System.out.println(sb.toString());
-		
-		mqtt.payload = payload.toByteArray();
+	public static MQTTMessage decode(byte[] message) {
+		return decode(message, 0, message.length);
+	}
 
-		return mqtt;
+	/**
+	 * Decode a single MQTT package that starts at the given offset, as framed
+	 * by {@link PacketReader}.
+	 * 
+	 * @param message
+	 *            The buffer holding the package.
+	 * @param offset
+	 *            Where the package starts in the buffer.
+	 * @param length
+	 *            The total length of the package, headers included.
+	 * @return The decoded message.
+	 */
+	public static MQTTMessage decode(byte[] message, int offset, int length) {
+		return DECODER.get().wrap(message, offset, length).toMessage();
 	}
 
 }
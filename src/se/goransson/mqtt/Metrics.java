@@ -0,0 +1,312 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters and latencies of a client, kept whether or not DEBUG is on. Get
+ * them with {@link MQTT#getMetrics()}, then either read a
+ * {@link #snapshot()} or {@link #register(String)} them with JMX to have
+ * them scraped.
+ *
+ * Counters are {@link LongAdder}s, so the reading thread and the
+ * publishing threads don't contend on them. Latencies are in nanoseconds:
+ *
+ * <ul>
+ * <li>encode: encoding a PUBLISH package.</li>
+ * <li>decode: from a PUBLISH package being read until its listeners are
+ * called, acknowledging and matching included.</li>
+ * <li>callback: running a single listener.</li>
+ * <li>ping: from PINGREQ to PINGRESP.</li>
+ * </ul>
+ */
+public class Metrics {
+
+	private final LongAdder[] packetsIn = adders();
+	private final LongAdder[] bytesIn = adders();
+	private final LongAdder[] packetsOut = adders();
+	private final LongAdder[] bytesOut = adders();
+
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder lost = new LongAdder();
+
+	public final Histogram encode = new Histogram();
+	public final Histogram decode = new Histogram();
+	public final Histogram callback = new Histogram();
+	public final Histogram ping = new Histogram();
+
+	/** Values read when taking a snapshot, guarded by this. */
+	private final Map<String, LongSupplier> gauges = new LinkedHashMap<String, LongSupplier>();
+
+	private volatile boolean timing = true;
+
+	private ObjectName mName;
+
+	private static LongAdder[] adders() {
+		LongAdder[] adders = new LongAdder[16];
+		for (int i = 0; i < adders.length; i++)
+			adders[i] = new LongAdder();
+		return adders;
+	}
+
+	/**
+	 * Set whether latencies are measured. Counters are always kept.
+	 *
+	 * Default is true.
+	 *
+	 * @param enabled
+	 */
+	public void setTiming(boolean enabled) {
+		timing = enabled;
+	}
+
+	/**
+	 * Add a value that is read when taking a snapshot, for example the
+	 * length of a queue.
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public synchronized void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/** A package was read. */
+	void received(int type, int bytes) {
+		packetsIn[type & 0x0F].increment();
+		bytesIn[type & 0x0F].add(bytes);
+	}
+
+	/** More of a package being streamed was read. */
+	void receivedBytes(int type, int bytes) {
+		bytesIn[type & 0x0F].add(bytes);
+	}
+
+	/** A package was added to the outbound queue. */
+	void sent(int type, long bytes) {
+		packetsOut[type & 0x0F].increment();
+		bytesOut[type & 0x0F].add(bytes);
+	}
+
+	void reconnected() {
+		reconnects.increment();
+	}
+
+	void lost() {
+		lost.increment();
+	}
+
+	/**
+	 * @return The time to pass to {@link #record(Histogram, long)}, or 0 if
+	 *         timing is off.
+	 */
+	long start() {
+		return timing ? System.nanoTime() : 0;
+	}
+
+	void record(Histogram histogram, long start) {
+		if (start != 0)
+			histogram.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Read every counter, latency and gauge. Keys are for example
+	 * "packets.in.PUBLISH", "bytes.out", "latency.callback.p99" and
+	 * "reconnects".
+	 *
+	 * @return The values by name, sorted by name.
+	 */
+	public SortedMap<String, Long> snapshot() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		long in = 0, out = 0;
+		// Types 0 and 15 are reserved
+		for (int i = 1; i < 15; i++) {
+			String type = Messages.name(i);
+			values.put("packets.in." + type, packetsIn[i].sum());
+			values.put("packets.out." + type, packetsOut[i].sum());
+			values.put("bytes.in." + type, bytesIn[i].sum());
+			values.put("bytes.out." + type, bytesOut[i].sum());
+			in += bytesIn[i].sum();
+			out += bytesOut[i].sum();
+		}
+		values.put("bytes.in", in);
+		values.put("bytes.out", out);
+		values.put("reconnects", reconnects.sum());
+		values.put("connections.lost", lost.sum());
+
+		latency(values, "encode", encode);
+		latency(values, "decode", decode);
+		latency(values, "callback", callback);
+		latency(values, "ping", ping);
+
+		synchronized (this) {
+			for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet())
+				values.put(gauge.getKey(), gauge.getValue().getAsLong());
+		}
+		return values;
+	}
+
+	private static void latency(Map<String, Long> values, String name,
+			Histogram histogram) {
+		String prefix = "latency." + name + ".";
+		values.put(prefix + "count", histogram.count());
+		values.put(prefix + "mean", histogram.mean());
+		values.put(prefix + "p50", histogram.percentile(50));
+		values.put(prefix + "p99", histogram.percentile(99));
+		values.put(prefix + "p999", histogram.percentile(99.9));
+		values.put(prefix + "max", histogram.max());
+	}
+
+	/**
+	 * Set every counter and latency back to 0.
+	 */
+	public void reset() {
+		LongAdder[][] all = { packetsIn, bytesIn, packetsOut, bytesOut };
+		for (LongAdder[] adders : all)
+			for (LongAdder adder : adders)
+				adder.reset();
+		reconnects.reset();
+		lost.reset();
+		encode.reset();
+		decode.reset();
+		callback.reset();
+		ping.reset();
+	}
+
+	/**
+	 * Register with the platform MBean server as
+	 * "se.goransson.mqtt:type=MQTT,name=<i>name</i>", with one attribute for
+	 * every value of the snapshot and a reset operation.
+	 *
+	 * @param name
+	 *            For example the client id.
+	 * @return The name registered under.
+	 * @throws JMException
+	 *             If the name is taken.
+	 */
+	public synchronized ObjectName register(String name) throws JMException {
+		unregister();
+		ObjectName objectName = new ObjectName("se.goransson.mqtt:type=MQTT,name="
+				+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(),
+				objectName);
+		mName = objectName;
+		return objectName;
+	}
+
+	/**
+	 * Remove the registration made by {@link #register(String)}, if any.
+	 */
+	public synchronized void unregister() throws JMException {
+		if (mName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mName);
+		} finally {
+			mName = null;
+		}
+	}
+
+	/**
+	 * Exposes the snapshot, the attributes aren't known until run time.
+	 */
+	private class MBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute)
+				throws AttributeNotFoundException {
+			Long value = snapshot().get(attribute);
+			if (value == null)
+				throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			SortedMap<String, Long> values = snapshot();
+			AttributeList list = new AttributeList();
+			for (int i = 0; i < attributes.length; i++) {
+				Long value = values.get(attributes[i]);
+				if (value != null)
+					list.add(new Attribute(attributes[i], value));
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute)
+				throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName()
+					+ " is read only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params,
+				String[] signature) throws ReflectionException {
+			if ("reset".equals(actionName)) {
+				reset();
+				return null;
+			}
+			throw new ReflectionException(new NoSuchMethodException(
+					actionName));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			Iterator<String> names = snapshot().keySet().iterator();
+			while (names.hasNext()) {
+				String name = names.next();
+				attributes.add(new MBeanAttributeInfo(name, "long", name, true,
+						false, false));
+			}
+			MBeanOperationInfo reset = new MBeanOperationInfo("reset",
+					"Set every counter and latency back to 0",
+					new MBeanParameterInfo[0], "void",
+					MBeanOperationInfo.ACTION);
+			return new MBeanInfo(Metrics.class.getName(), "MQTT client",
+					attributes.toArray(new MBeanAttributeInfo[attributes
+							.size()]), null,
+					new MBeanOperationInfo[] { reset }, null);
+		}
+	}
+}
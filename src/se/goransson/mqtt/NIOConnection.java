@@ -0,0 +1,421 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking connection driven by an {@link EventLoop}. Incoming data is
+ * delivered to a {@link Connection.Receiver} on the loop thread, so no thread
+ * is needed per connection. Writes go straight to the socket when possible
+ * and are queued until it is writable otherwise.
+ *
+ * Queued data counts as written only once it reaches the socket: futures
+ * passed to {@link #whenWritten(List)} complete then, and
+ * {@link #throttle()} holds publishers back while more than
+ * {@link #setMaxBuffered(int)} bytes are queued.
+ */
+public class NIOConnection extends Connection {
+
+	/** File regions at least this large are mapped rather than copied. */
+	private static final long MAP_THRESHOLD = 65536;
+
+	/** Default number of bytes queued before publishers are held back. */
+	public static final int DEFAULT_MAX_BUFFERED = 1024 * 1024;
+
+	private final SocketChannel mChannel;
+
+	private final EventLoop mLoop;
+
+	private SelectionKey mKey;
+
+	private Receiver mReceiver;
+
+	/** Data that couldn't be written yet, guarded by itself. */
+	private final ArrayDeque<ByteBuffer> mPending = new ArrayDeque<ByteBuffer>();
+
+	/** Bytes ever queued and ever sent from the queue, guarded by mPending. */
+	private long queued = 0;
+	private long sent = 0;
+
+	/** Futures waiting for the queue to drain, guarded by mPending. */
+	private final ArrayDeque<Drain> mDrains = new ArrayDeque<Drain>();
+
+	private volatile int maxBuffered = DEFAULT_MAX_BUFFERED;
+
+	private final OutputStream mOutputStream = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			NIOConnection.this.write(ByteBuffer.wrap(b, off, len));
+		}
+	};
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Connect to the host, using the default {@link EventLoop}.
+	 *
+	 * @param addr
+	 * @param port
+	 * @throws IOException
+	 */
+	public NIOConnection(InetAddress addr, int port) throws IOException {
+		this(addr, port, EventLoop.getDefault());
+	}
+
+	/**
+	 * Connect to the host, the connection is then served by the given loop.
+	 *
+	 * @param addr
+	 * @param port
+	 * @param loop
+	 * @throws IOException
+	 */
+	public NIOConnection(InetAddress addr, int port, EventLoop loop)
+			throws IOException {
+		mLoop = loop;
+		mChannel = SocketChannel.open(new InetSocketAddress(addr, port));
+		mChannel.configureBlocking(false);
+		// Packages are batched by OutboundQueue, Nagle would only add delay
+		mChannel.socket().setTcpNoDelay(true);
+	}
+
+	@Override
+	public boolean isBlocking() {
+		return false;
+	}
+
+	/**
+	 * Set how much data can be queued, waiting for the socket, before
+	 * {@link #throttle()} holds publishers back.
+	 *
+	 * Default is {@link #DEFAULT_MAX_BUFFERED}.
+	 *
+	 * @param bytes
+	 */
+	public void setMaxBuffered(int bytes) {
+		maxBuffered = bytes;
+		synchronized (mPending) {
+			mPending.notifyAll();
+		}
+	}
+
+	/**
+	 * @return The number of bytes queued, waiting for the socket.
+	 */
+	public long buffered() {
+		synchronized (mPending) {
+			return queued - sent;
+		}
+	}
+
+	@Override
+	public void start(Receiver receiver) throws IOException {
+		mReceiver = receiver;
+		mLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					synchronized (mPending) {
+						mKey = mLoop.register(NIOConnection.this,
+								interestOps());
+					}
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The input is delivered to the receiver, there is no stream to read.
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		throw new IOException("NIOConnection delivers its data to a Receiver");
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return mOutputStream;
+	}
+
+	/**
+	 * Write the bytes between position and limit, without blocking. Whatever
+	 * the socket doesn't take right away is copied and sent once it becomes
+	 * writable.
+	 *
+	 * @param src
+	 * @throws IOException
+	 */
+	@Override
+	public void write(ByteBuffer src) throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+
+		synchronized (mPending) {
+			if (mPending.isEmpty())
+				mChannel.write(src);
+
+			if (src.hasRemaining()) {
+				ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+				copy.put(src).flip();
+				queue(copy);
+			}
+		}
+	}
+
+	/**
+	 * Send a region of a file with {@link FileChannel#transferTo}, so the
+	 * data goes from the page cache to the socket without being copied
+	 * through the heap. Whatever the socket doesn't take right away is
+	 * queued like with {@link #write(ByteBuffer)}, large regions are mapped
+	 * rather than copied.
+	 */
+	@Override
+	public void transferFrom(FileChannel src, long position, long count)
+			throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+
+		synchronized (mPending) {
+			if (mPending.isEmpty()) {
+				long n;
+				while (count > 0
+						&& (n = src.transferTo(position, count, mChannel)) > 0) {
+					position += n;
+					count -= n;
+				}
+			}
+			if (count > 0) {
+				ByteBuffer rest;
+				if (count >= MAP_THRESHOLD) {
+					// Queued straight from the page cache
+					rest = src.map(FileChannel.MapMode.READ_ONLY, position,
+							count);
+				} else {
+					rest = ByteBuffer.allocate((int) count);
+					while (rest.hasRemaining()) {
+						if (src.read(rest, position + rest.position()) < 0)
+							throw new EOFException("File ended at "
+									+ position);
+					}
+					rest.flip();
+				}
+				queue(rest);
+			}
+		}
+	}
+
+	/** Must be called while holding mPending. */
+	private void queue(ByteBuffer data) {
+		queued += data.remaining();
+		mPending.add(data);
+		if (mPending.size() == 1)
+			updateInterest();
+	}
+
+	/**
+	 * Complete the futures once the data queued so far has been sent, right
+	 * away if there is none. They are completed on the loop thread
+	 * otherwise, or failed if the connection closes first.
+	 */
+	@Override
+	public void whenWritten(List<CompletableFuture<Void>> done) {
+		synchronized (mPending) {
+			if (queued != sent && !closed) {
+				mDrains.add(new Drain(queued, done));
+				return;
+			}
+		}
+		super.whenWritten(done);
+	}
+
+	/**
+	 * Wait while more than {@link #setMaxBuffered(int)} bytes are queued.
+	 * Returns right away on the loop thread, which is the one sending them.
+	 */
+	@Override
+	public void throttle() throws IOException {
+		if (mLoop.inEventLoop())
+			return;
+
+		synchronized (mPending) {
+			while (queued - sent > maxBuffered) {
+				if (closed)
+					throw new ClosedChannelException();
+				try {
+					mPending.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		mChannel.close();
+		failDrains(new ClosedChannelException());
+	}
+
+	SocketChannel channel() {
+		return mChannel;
+	}
+
+	/**
+	 * Called by the loop when the channel is ready.
+	 */
+	void process(SelectionKey key) {
+		try {
+			if (key.isValid() && key.isWritable())
+				flushPending();
+
+			if (key.isValid() && key.isReadable())
+				mReceiver.received(mChannel);
+		} catch (EOFException e) {
+			fail(null);
+		} catch (IOException e) {
+			fail(e);
+		} catch (RuntimeException e) {
+			fail(new IOException(e));
+		}
+	}
+
+	private void flushPending() throws IOException {
+		ArrayList<CompletableFuture<Void>> done = null;
+		synchronized (mPending) {
+			ByteBuffer buffer;
+			while ((buffer = mPending.peek()) != null) {
+				sent += mChannel.write(buffer);
+				if (buffer.hasRemaining())
+					break;
+				mPending.poll();
+			}
+			if (mPending.isEmpty())
+				updateInterest();
+
+			while (!mDrains.isEmpty() && mDrains.peek().mark <= sent) {
+				if (done == null)
+					done = new ArrayList<CompletableFuture<Void>>();
+				done.addAll(mDrains.poll().done);
+			}
+			if (queued - sent <= maxBuffered)
+				mPending.notifyAll();
+		}
+		// Not while holding mPending, they may write again
+		if (done != null)
+			super.whenWritten(done);
+	}
+
+	private void failDrains(IOException cause) {
+		ArrayList<Drain> failed;
+		synchronized (mPending) {
+			mPending.notifyAll();
+			if (mDrains.isEmpty())
+				return;
+			failed = new ArrayList<Drain>(mDrains);
+			mDrains.clear();
+		}
+		for (int i = 0; i < failed.size(); i++) {
+			List<CompletableFuture<Void>> done = failed.get(i).done;
+			for (int j = 0; j < done.size(); j++)
+				done.get(j).completeExceptionally(cause);
+		}
+	}
+
+	/** Must be called while holding mPending. */
+	private int interestOps() {
+		return SelectionKey.OP_READ
+				| (mPending.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+	}
+
+	/** Must be called while holding mPending. */
+	private void updateInterest() {
+		if (mKey == null)
+			return; // Set when registering
+
+		if (mLoop.inEventLoop()) {
+			if (mKey.isValid())
+				mKey.interestOps(interestOps());
+		} else {
+			mLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (mPending) {
+						if (mKey.isValid())
+							mKey.interestOps(interestOps());
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Close and tell the receiver, also called by the loop when it gives
+	 * up.
+	 */
+	void fail(IOException cause) {
+		if (mKey != null)
+			mKey.cancel();
+		boolean wasClosed = closed;
+		closed = true;
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			// Already failing
+		}
+		failDrains(cause != null ? cause : new ClosedChannelException());
+		if (!wasClosed && mReceiver != null)
+			mReceiver.closed(cause);
+	}
+
+	/** Futures to complete once the queue has sent up to a mark. */
+	private static class Drain {
+
+		final long mark;
+
+		final List<CompletableFuture<Void>> done;
+
+		Drain(long mark, List<CompletableFuture<Void>> done) {
+			this.mark = mark;
+			this.done = done;
+		}
+	}
+}
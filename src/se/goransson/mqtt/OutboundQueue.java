@@ -0,0 +1,446 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Collects outgoing packages from any thread and writes them to the
+ * connection in batches.
+ *
+ * Packages are encoded straight into a staging buffer. When a batch is
+ * flushed the staging buffer is swapped with a second one and written with a
+ * single call, so other threads can keep adding packages while the write is
+ * in progress, and everything they add meanwhile goes out in the next write.
+ *
+ * To add a package, hold the queue's lock while encoding it:
+ *
+ * <pre>
+ * boolean flush;
+ * synchronized (queue) {
+ * 	ByteBuffer dst = queue.reserve(length);
+ * 	// encode into dst
+ * 	flush = queue.commit();
+ * }
+ * if (flush)
+ * 	queue.flush();
+ * </pre>
+ */
+public class OutboundQueue {
+
+	/** Default largest batch, in bytes. */
+	public static final int DEFAULT_MAX_BATCH = 65536;
+
+	/** How many batches may wait behind a write, see {@link #hasRoom(int)}. */
+	public static final int MAX_STAGED_BATCHES = 16;
+
+	private final Connection mConnection;
+
+	/** Where packages are encoded, guarded by this. */
+	private ByteBuffer mStaging = ByteBuffer.allocate(4096);
+
+	/** The batch being written, guarded by mWriteLock. */
+	private ByteBuffer mWriting = ByteBuffer.allocate(4096);
+
+	private final Object mWriteLock = new Object();
+
+	/** Completed once the staged packages are written, guarded by this. */
+	private ArrayList<CompletableFuture<Void>> mStagingDone = new ArrayList<CompletableFuture<Void>>();
+
+	private int maxBatch = DEFAULT_MAX_BATCH;
+
+	private long linger = 0;
+
+	/** When the last batch was written, for the keepalive. */
+	private volatile long lastWrite = System.currentTimeMillis();
+
+	/** Set while a linger flush is waiting, guarded by this. */
+	private boolean flushScheduled = false;
+
+	/** Counts the packages added, may be null. */
+	private volatile Metrics mMetrics;
+
+	/** Where the package being added starts, guarded by this. */
+	private int mark = 0;
+
+	private final Runnable mScheduledFlush = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (IOException e) {
+				// Nobody to report to, closing makes the reader notice
+				try {
+					mConnection.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	};
+
+	/** Runs on the timer wheel, which must never wait for the socket. */
+	private final Runnable mLingerExpired = new Runnable() {
+		@Override
+		public void run() {
+			if (mConnection.isBlocking())
+				ForkJoinPool.commonPool().execute(mScheduledFlush);
+			else
+				mScheduledFlush.run();
+		}
+	};
+
+	public OutboundQueue(Connection connection) {
+		mConnection = connection;
+	}
+
+	/**
+	 * Set how packages are batched.
+	 *
+	 * @param maxBatch
+	 *            A batch is written as soon as it holds this many bytes.
+	 * @param linger
+	 *            How long to wait for more packages before writing a batch,
+	 *            in milliseconds. With 0 every package is written right away,
+	 *            though packages added while a write is in progress are
+	 *            still written together.
+	 */
+	public synchronized void setBatching(int maxBatch, long linger) {
+		this.maxBatch = maxBatch;
+		this.linger = linger;
+	}
+
+	/**
+	 * Count every package added in a set of metrics.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(Metrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Make room for a package of the given length. Must be called while
+	 * holding the queue's lock, followed by {@link #commit()}.
+	 *
+	 * The staging buffer grows as needed, it only holds what was added since
+	 * the last flush. A package past the batch size makes its sender flush
+	 * and wait for the write in progress, but a sender that doesn't wait,
+	 * like {@link MQTT#publishAsync(String, byte[], int)}, could keep adding
+	 * while a stalled connection holds up the write; such senders check
+	 * {@link #hasRoom(int)} first. Waiting in here instead could deadlock,
+	 * the lock is held and the caller may be the thread that drains the
+	 * connection.
+	 *
+	 * @param length
+	 *            The length of the package.
+	 * @return The buffer to encode the package into.
+	 */
+	public ByteBuffer reserve(int length) {
+		if (mStaging.remaining() < length) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(
+					mStaging.position() + length, mStaging.capacity() * 2));
+			mStaging.flip();
+			bigger.put(mStaging);
+			mStaging = bigger;
+		}
+		mark = mStaging.position();
+		return mStaging;
+	}
+
+	/**
+	 * Whether a package can be added without the staging buffer growing past
+	 * {@link #MAX_STAGED_BATCHES} batches. A package is always let into an
+	 * empty buffer, however large. Must be called while holding the queue's
+	 * lock.
+	 *
+	 * @param length
+	 *            The length of the package.
+	 * @return false if the package should be refused.
+	 */
+	public boolean hasRoom(int length) {
+		int staged = mStaging.position();
+		return staged == 0
+				|| (long) staged + length <= (long) maxBatch * MAX_STAGED_BATCHES;
+	}
+
+	/**
+	 * Finish adding a package. Must be called while holding the queue's lock.
+	 *
+	 * @return true if the caller should call {@link #flush()} once it has
+	 *         released the lock.
+	 */
+	public boolean commit() {
+		Metrics metrics = mMetrics;
+		if (metrics != null)
+			metrics.sent(mStaging.get(mark) >> 4, mStaging.position() - mark);
+
+		if (linger <= 0 || mStaging.position() >= maxBatch)
+			return true;
+
+		if (!flushScheduled) {
+			flushScheduled = true;
+			TimerWheel.getDefault().schedule(mLingerExpired, linger);
+		}
+		return false;
+	}
+
+	/**
+	 * Complete a future once the packages added so far have been written,
+	 * or fail it if the write fails. Must be called while holding the
+	 * queue's lock. The future is completed on the writing thread, once it
+	 * has let go of the queue, so it may add and flush packages itself.
+	 *
+	 * @param done
+	 */
+	public void completeOnWrite(CompletableFuture<Void> done) {
+		mStagingDone.add(done);
+	}
+
+	/**
+	 * Like {@link #flush()}, but never blocks the caller on a blocking
+	 * connection; the write is then done on another thread.
+	 */
+	public void flushLater() {
+		if (!mConnection.isBlocking()) {
+			mScheduledFlush.run();
+			return;
+		}
+
+		synchronized (this) {
+			if (flushScheduled)
+				return; // Already coming
+			flushScheduled = true;
+		}
+		ForkJoinPool.commonPool().execute(mScheduledFlush);
+	}
+
+	/**
+	 * Wait while the connection holds too much written data that the
+	 * network hasn't taken yet, see {@link Connection#throttle()}. Must not
+	 * be called while holding the queue's lock, nor from a timer.
+	 *
+	 * @throws IOException
+	 */
+	public void throttle() throws IOException {
+		mConnection.throttle();
+	}
+
+	/**
+	 * @return The time the last batch was written, in milliseconds.
+	 */
+	public long lastWrite() {
+		return lastWrite;
+	}
+
+	/**
+	 * @return The number of bytes waiting to be written.
+	 */
+	public synchronized int size() {
+		return mStaging.position();
+	}
+
+	/**
+	 * Write everything that has been added so far. Must not be called while
+	 * holding the queue's lock.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		ArrayList<CompletableFuture<Void>> done;
+		IOException failure = null;
+		synchronized (mWriteLock) {
+			done = swap();
+			try {
+				writeSwapped();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		complete(done, failure);
+	}
+
+	/**
+	 * Write everything that has been added so far, then a region of a file
+	 * straight from the file to the connection, see
+	 * {@link Connection#transferFrom(FileChannel, long, long)}. Must not be
+	 * called while holding the queue's lock.
+	 *
+	 * @param src
+	 * @param position
+	 * @param count
+	 * @throws IOException
+	 */
+	public void transferFrom(FileChannel src, long position, long count)
+			throws IOException {
+		transferFrom(null, src, position, count);
+	}
+
+	/**
+	 * Write a header followed by a region of a file, with nothing in
+	 * between.
+	 *
+	 * @param header
+	 *            Added to the queue first, may be null.
+	 * @param src
+	 * @param position
+	 * @param count
+	 * @throws IOException
+	 * @see #transferFrom(FileChannel, long, long)
+	 */
+	public void transferFrom(ByteBuffer header, FileChannel src,
+			long position, long count) throws IOException {
+		ArrayList<CompletableFuture<Void>> done;
+		IOException failure = null;
+		synchronized (mWriteLock) {
+			// Only stored PUBLISH packages are sent without a header
+			count(header, count);
+			// Whatever was added before goes first
+			add(header);
+			done = swap();
+			try {
+				writeSwapped();
+				mConnection.transferFrom(src, position, count);
+				lastWrite = System.currentTimeMillis();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		complete(done, failure);
+	}
+
+	/**
+	 * Write a header followed by a payload, the payload is written as it is
+	 * instead of being copied into the queue. Must not be called while
+	 * holding the queue's lock.
+	 *
+	 * @param header
+	 *            Added to the queue first, may be null.
+	 * @param payload
+	 *            The bytes between position and limit, the position is left
+	 *            untouched.
+	 * @throws IOException
+	 */
+	public void writeThrough(ByteBuffer header, ByteBuffer payload)
+			throws IOException {
+		ArrayList<CompletableFuture<Void>> done;
+		IOException failure = null;
+		synchronized (mWriteLock) {
+			count(header, payload.remaining());
+			add(header);
+			done = swap();
+			try {
+				writeSwapped();
+				mConnection.write(payload.duplicate());
+				lastWrite = System.currentTimeMillis();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		complete(done, failure);
+	}
+
+	private void count(ByteBuffer header, long payload) {
+		Metrics metrics = mMetrics;
+		if (metrics == null)
+			return;
+		if (header == null)
+			metrics.sent(Messages.PUBLISH, payload);
+		else
+			metrics.sent(header.get(header.position()) >> 4,
+					header.remaining() + payload);
+	}
+
+	private void add(ByteBuffer header) {
+		if (header == null)
+			return;
+		synchronized (this) {
+			reserve(header.remaining()).put(header);
+		}
+	}
+
+	/**
+	 * Swap the staging buffer with the one to write, together with the
+	 * futures of its packages. Must be called while holding mWriteLock.
+	 *
+	 * @return The futures to complete once the batch is written, or null.
+	 */
+	private ArrayList<CompletableFuture<Void>> swap() {
+		synchronized (this) {
+			flushScheduled = false;
+			if (mStaging.position() == 0)
+				return null; // Already written by someone else
+
+			ByteBuffer batch = mStaging;
+			mStaging = mWriting;
+			mWriting = batch;
+
+			if (mStagingDone.isEmpty())
+				return null;
+			ArrayList<CompletableFuture<Void>> done = mStagingDone;
+			mStagingDone = new ArrayList<CompletableFuture<Void>>();
+			return done;
+		}
+	}
+
+	/** Write the swapped batch. Must be called while holding mWriteLock. */
+	private void writeSwapped() throws IOException {
+		if (mWriting.position() == 0)
+			return;
+
+		mWriting.flip();
+		try {
+			mConnection.write(mWriting);
+			lastWrite = System.currentTimeMillis();
+		} finally {
+			mWriting.clear();
+			// Don't hold on to the memory of one huge batch
+			if (mWriting.capacity() > maxBatch * 4)
+				mWriting = ByteBuffer.allocate(maxBatch);
+		}
+	}
+
+	/**
+	 * Complete the futures of a written batch, once the connection has sent
+	 * it, see {@link Connection#whenWritten(java.util.List)}. Must be called
+	 * without holding mWriteLock, a future may add and flush more packages.
+	 *
+	 * @param done
+	 *            May be null.
+	 * @param failure
+	 *            Why the write failed, or null. Thrown once the futures are
+	 *            failed.
+	 * @throws IOException
+	 */
+	private void complete(ArrayList<CompletableFuture<Void>> done,
+			IOException failure) throws IOException {
+		if (failure == null) {
+			if (done != null)
+				mConnection.whenWritten(done);
+			return;
+		}
+		if (done != null) {
+			for (int i = 0; i < done.size(); i++)
+				done.get(i).completeExceptionally(failure);
+		}
+		throw failure;
+	}
+}
@@ -0,0 +1,324 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the incoming byte stream into complete MQTT packets.
+ *
+ * A single read from the socket can contain several packets, or only a part
+ * of one, so the bytes are accumulated in a growable buffer and each complete
+ * packet is handed out in turn with {@link #next()}. The buffer is reused
+ * between reads and only grows when a packet doesn't fit.
+ *
+ * PUBLISH packets larger than the stream threshold are first handed out as
+ * a {@link #HEAD} holding the headers only. If the caller then calls
+ * {@link #stream()}, the payload follows in {@link #CHUNK} parts as it
+ * arrives, without the buffer growing; otherwise the packet is buffered
+ * whole and handed out as a {@link #PACKET} like any other.
+ */
+public class PacketReader {
+
+	/** A complete packet. */
+	public static final int PACKET = 0;
+	/** The headers of a large PUBLISH, see {@link #stream()}. */
+	public static final int HEAD = 1;
+	/** A part of the payload of a streamed PUBLISH. */
+	public static final int CHUNK = 2;
+
+	private static final int INITIAL_CAPACITY = 16384;
+
+	private byte[] buffer;
+
+	/** Start of the bytes that haven't been handed out yet. */
+	private int start = 0;
+
+	/** End of the valid bytes in the buffer. */
+	private int end = 0;
+
+	/** Wraps the buffer when reading from a channel. */
+	private ByteBuffer channelBuffer;
+
+	/** Offset and length of the packet returned by the last next(). */
+	private int packetOffset = 0;
+	private int packetLength = 0;
+
+	private int kind = PACKET;
+
+	/** PUBLISH packets larger than this are handed out as a HEAD first. */
+	private int streamThreshold = Integer.MAX_VALUE;
+
+	/** Length of the HEAD handed out last, 0 once it has been dealt with. */
+	private int headLength = 0;
+
+	/** Payload bytes of the packet, or of the stream, still to come. */
+	private int remaining = 0;
+
+	/** Set when the HEAD at start wasn't streamed, it's buffered whole. */
+	private boolean bufferWhole = false;
+
+	public PacketReader() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public PacketReader(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * @param threshold
+	 *            PUBLISH packets larger than this, in bytes, are handed out
+	 *            as a {@link #HEAD} first. Can be changed between calls to
+	 *            {@link #next()}, it applies to the packets not yet handed
+	 *            out.
+	 */
+	public void setStreamThreshold(int threshold) {
+		streamThreshold = threshold;
+	}
+
+	/**
+	 * Read whatever is available from the stream into the buffer, blocking
+	 * until at least one byte arrives.
+	 *
+	 * @param in
+	 *            The stream to read from.
+	 * @return The number of bytes read, or -1 at the end of the stream.
+	 * @throws IOException
+	 */
+	public int fill(InputStream in) throws IOException {
+		compact();
+		if (end == buffer.length)
+			grow(buffer.length * 2);
+
+		int ret = in.read(buffer, end, buffer.length - end);
+		if (ret > 0)
+			end += ret;
+		return ret;
+	}
+
+	/**
+	 * Read whatever is available from the channel into the buffer, without
+	 * blocking if the channel is non-blocking.
+	 *
+	 * @param channel
+	 *            The channel to read from.
+	 * @return The number of bytes read, possibly 0, or -1 at the end of the
+	 *         stream.
+	 * @throws IOException
+	 */
+	public int fill(ReadableByteChannel channel) throws IOException {
+		compact();
+		if (end == buffer.length)
+			grow(buffer.length * 2);
+
+		if (channelBuffer == null || channelBuffer.array() != buffer)
+			channelBuffer = ByteBuffer.wrap(buffer);
+		channelBuffer.limit(buffer.length).position(end);
+
+		int ret = channel.read(channelBuffer);
+		if (ret > 0)
+			end += ret;
+		return ret;
+	}
+
+	/**
+	 * Try to frame the next complete packet from the buffered bytes.
+	 *
+	 * @return true if a packet is available through {@link #buffer()},
+	 *         {@link #offset()} and {@link #length()}, false if more bytes
+	 *         are needed.
+	 * @throws IOException
+	 *             If the Remaining Length field is malformed.
+	 */
+	public boolean next() throws IOException {
+		if (headLength > 0) {
+			// Not streamed, wait for all of it
+			headLength = 0;
+			bufferWhole = true;
+		}
+
+		if (remaining > 0) {
+			int n = Math.min(end - start, remaining);
+			if (n == 0)
+				return false;
+			kind = CHUNK;
+			packetOffset = start;
+			packetLength = n;
+			start += n;
+			remaining -= n;
+			return true;
+		}
+
+		int available = end - start;
+		if (available < 2)
+			return false;
+
+		// Remaining length, 1 to 4 bytes after the first header byte
+		int multiplier = 1;
+		int len = 0;
+		int i = start + 1;
+		byte digit;
+		do {
+			if (i == end)
+				return false;
+			if (i - start > 4)
+				throw new IOException("Malformed remaining length");
+
+			digit = buffer[i++];
+			len += (digit & 127) * multiplier;
+			multiplier *= 128;
+		} while ((digit & 128) != 0);
+
+		int total = (i - start) + len;
+		if (total > streamThreshold && !bufferWhole
+				&& ((buffer[start] >> 4) & 0x0F) == Messages.PUBLISH) {
+			// Topic and message id, the payload can stay behind
+			int head = (i - start) + 2;
+			if (head <= available) {
+				head += ((buffer[i] & 0xFF) << 8 | (buffer[i + 1] & 0xFF))
+						+ (((buffer[start] >> 1) & 0x03) > 0 ? 2 : 0);
+				if (head > total)
+					throw new IOException("Malformed PUBLISH");
+			}
+			if (head > available) {
+				if (head > buffer.length - start) {
+					compact();
+					if (head > buffer.length)
+						grow(head);
+				}
+				return false;
+			}
+
+			kind = HEAD;
+			packetOffset = start;
+			packetLength = head;
+			headLength = head;
+			remaining = 0;
+			return true;
+		}
+
+		if (total > available) {
+			// Make sure the whole packet will fit once it has arrived
+			if (total > buffer.length - start) {
+				compact();
+				if (total > buffer.length)
+					grow(total);
+			}
+			return false;
+		}
+
+		kind = PACKET;
+		bufferWhole = false;
+		packetOffset = start;
+		packetLength = total;
+		start += total;
+		return true;
+	}
+
+	/**
+	 * Have the payload of the {@link #HEAD} just handed out come in
+	 * {@link #CHUNK} parts. Must be called before the next call to
+	 * {@link #next()}.
+	 */
+	public void stream() {
+		if (headLength == 0)
+			throw new IllegalStateException("No HEAD to stream");
+
+		// The total length, from the Remaining Length of the head
+		int multiplier = 1;
+		int len = 0;
+		int i = start + 1;
+		byte digit;
+		do {
+			digit = buffer[i++];
+			len += (digit & 127) * multiplier;
+			multiplier *= 128;
+		} while ((digit & 128) != 0);
+
+		remaining = (i - start) + len - headLength;
+		start += headLength;
+		headLength = 0;
+	}
+
+	/**
+	 * @return What the last next() handed out, {@link #PACKET},
+	 *         {@link #HEAD} or {@link #CHUNK}.
+	 */
+	public int kind() {
+		return kind;
+	}
+
+	/**
+	 * @return The payload bytes of a streamed PUBLISH still to come after
+	 *         the current part.
+	 */
+	public int remaining() {
+		return remaining;
+	}
+
+	/** @return The array holding the packet returned by {@link #next()}. */
+	public byte[] buffer() {
+		return buffer;
+	}
+
+	/** @return The offset of the current packet in {@link #buffer()}. */
+	public int offset() {
+		return packetOffset;
+	}
+
+	/** @return The total length of the current packet, headers included. */
+	public int length() {
+		return packetLength;
+	}
+
+	/** Discard everything that has been buffered so far. */
+	public void reset() {
+		start = end = 0;
+		packetOffset = packetLength = 0;
+		kind = PACKET;
+		headLength = remaining = 0;
+		bufferWhole = false;
+	}
+
+	/**
+	 * Move the unconsumed bytes to the front of the buffer. This invalidates
+	 * the packet handed out by the previous next(), so it must have been
+	 * handled by then.
+	 */
+	private void compact() {
+		if (start == 0)
+			return;
+		if (start < end)
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+		end -= start;
+		packetOffset = 0;
+		packetLength = 0;
+		start = 0;
+	}
+
+	private void grow(int capacity) {
+		byte[] bigger = new byte[Math.max(capacity, buffer.length * 2)];
+		System.arraycopy(buffer, start, bigger, 0, end - start);
+		end -= start;
+		start = 0;
+		buffer = bigger;
+	}
+}
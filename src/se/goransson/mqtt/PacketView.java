@@ -0,0 +1,281 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A reusable, read-only view of a decoded MQTT package.
+ *
+ * The view points straight into the receive buffer instead of copying the
+ * package, so it is only valid until the next package is wrapped. Topic
+ * names are decoded lazily and recently seen topics are reused, so the
+ * receive path doesn't allocate for topics it has already seen. Use
+ * {@link #toMessage()} to get a {@link MQTTMessage} that can be kept.
+ */
+public class PacketView {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Number of topic names remembered, must be a power of two. */
+	private static final int TOPIC_CACHE_SIZE = 256;
+
+	private byte[] buffer;
+	private int offset;
+	private int length;
+
+	/** The first byte of the fixed header. */
+	private int header;
+
+	private int remainingLength;
+
+	/** Where the variable header starts. */
+	private int variableOffset;
+
+	private String topic;
+
+	/** Read-only wrapper handed out by payload(), and the array it wraps. */
+	private ByteBuffer readOnly;
+	private byte[] readOnlyArray;
+
+	private final byte[][] cachedBytes = new byte[TOPIC_CACHE_SIZE][];
+	private final String[] cachedTopics = new String[TOPIC_CACHE_SIZE];
+
+	/**
+	 * Point the view at a package, as framed by {@link PacketReader}.
+	 *
+	 * @param buffer
+	 *            The buffer holding the package.
+	 * @param offset
+	 *            Where the package starts in the buffer.
+	 * @param length
+	 *            The total length of the package, headers included.
+	 * @return This view.
+	 */
+	public PacketView wrap(byte[] buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+		this.topic = null;
+
+		int i = offset;
+		header = buffer[i++] & 0xFF;
+
+		int multiplier = 1;
+		int len = 0;
+		byte digit;
+		do {
+			digit = buffer[i++];
+			len += (digit & 127) * multiplier;
+			multiplier *= 128;
+		} while ((digit & 128) != 0);
+		remainingLength = len;
+		variableOffset = i;
+
+		return this;
+	}
+
+	public byte type() {
+		return (byte) ((header >> 4) & 0x0F);
+	}
+
+	public boolean dup() {
+		return ((header >> 3) & 0x01) != 0;
+	}
+
+	public int qos() {
+		return (header >> 1) & 0x03;
+	}
+
+	public boolean retain() {
+		return (header & 0x01) != 0;
+	}
+
+	public int remainingLength() {
+		return remainingLength;
+	}
+
+	/**
+	 * @return The length in bytes of the topic name of a PUBLISH, or -1 for
+	 *         any other type.
+	 */
+	public int topicLength() {
+		if (type() != Messages.PUBLISH)
+			return -1;
+		return (buffer[variableOffset] << 8 & 0xFF00)
+				| (buffer[variableOffset + 1] & 0xFF);
+	}
+
+	/**
+	 * @return The topic name of a PUBLISH, or null for any other type.
+	 */
+	public String topic() {
+		if (topic == null && type() == Messages.PUBLISH)
+			topic = decodeTopic(variableOffset + 2, topicLength());
+		return topic;
+	}
+
+	/**
+	 * @return The message id, or -1 if the package doesn't carry one.
+	 */
+	public int messageId() {
+		int i;
+		switch (type()) {
+		case Messages.PUBLISH:
+			if (qos() == Messages.AT_MOST_ONCE)
+				return -1;
+			i = variableOffset + 2 + topicLength();
+			break;
+		case Messages.PUBACK:
+		case Messages.PUBREC:
+		case Messages.PUBREL:
+		case Messages.PUBCOMP:
+		case Messages.SUBSCRIBE:
+		case Messages.SUBACK:
+		case Messages.UNSUBSCRIBE:
+		case Messages.UNSUBACK:
+			i = variableOffset;
+			break;
+		default:
+			return -1;
+		}
+		return (buffer[i] << 8 & 0xFF00) | (buffer[i + 1] & 0xFF);
+	}
+
+	/**
+	 * @return The return code of a CONNACK, or -1 for any other type.
+	 */
+	public int returnCode() {
+		if (type() != Messages.CONNACK)
+			return -1;
+		return buffer[variableOffset + 1] & 0xFF;
+	}
+
+	/** @return The array the view points into. */
+	public byte[] array() {
+		return buffer;
+	}
+
+	/** @return Where the payload starts in {@link #array()}. */
+	public int payloadOffset() {
+		switch (type()) {
+		case Messages.PUBLISH:
+			return variableOffset + 2 + topicLength()
+					+ (qos() > Messages.AT_MOST_ONCE ? 2 : 0);
+		case Messages.CONNACK:
+		case Messages.PUBACK:
+		case Messages.PUBREC:
+		case Messages.PUBREL:
+		case Messages.PUBCOMP:
+		case Messages.SUBSCRIBE:
+		case Messages.SUBACK:
+		case Messages.UNSUBSCRIBE:
+		case Messages.UNSUBACK:
+			return variableOffset + 2;
+		default:
+			return variableOffset;
+		}
+	}
+
+	/** @return The number of payload bytes. */
+	public int payloadLength() {
+		int end = Math.min(variableOffset + remainingLength, offset + length);
+		return Math.max(end - payloadOffset(), 0);
+	}
+
+	/**
+	 * The payload as a read-only buffer over the receive buffer, between
+	 * position and limit. The same buffer object is reused for every
+	 * package, so copy the bytes if they are needed later.
+	 *
+	 * @return The payload.
+	 */
+	public ByteBuffer payload() {
+		if (readOnlyArray != buffer) {
+			readOnly = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+			readOnlyArray = buffer;
+		}
+		int start = payloadOffset();
+		readOnly.limit(start + payloadLength()).position(start);
+		return readOnly;
+	}
+
+	/**
+	 * Copy the package into a new {@link MQTTMessage}.
+	 *
+	 * @return The message.
+	 */
+	public MQTTMessage toMessage() {
+		MQTTMessage mqtt = new MQTTMessage();
+		mqtt.type = type();
+		mqtt.DUP = dup();
+		mqtt.QoS = qos();
+		mqtt.retain = retain();
+		mqtt.remainingLength = remainingLength;
+
+		switch (mqtt.type) {
+		case Messages.CONNACK:
+			mqtt.variableHeader.put("return_code", (byte) returnCode());
+			break;
+		case Messages.PUBLISH:
+			mqtt.variableHeader.put("topic_name_len", topicLength());
+			mqtt.variableHeader.put("topic_name", topic());
+			// Only read the ID if the Quality of Service is above
+			// AT_MOST_ONCE!
+			if (mqtt.QoS > Messages.AT_MOST_ONCE)
+				mqtt.variableHeader.put("message_id",
+						Integer.toString(messageId()));
+			break;
+		case Messages.SUBSCRIBE:
+			mqtt.variableHeader.put("message_id", messageId());
+			break;
+		}
+
+		mqtt.payload = new byte[payloadLength()];
+		System.arraycopy(buffer, payloadOffset(), mqtt.payload, 0,
+				mqtt.payload.length);
+		return mqtt;
+	}
+
+	/**
+	 * Decode a topic name, reusing the String from the last time the same
+	 * bytes were seen.
+	 */
+	private String decodeTopic(int start, int len) {
+		int hash = 1;
+		for (int i = start; i < start + len; i++)
+			hash = 31 * hash + buffer[i];
+		int slot = (hash ^ (hash >>> 16)) & (TOPIC_CACHE_SIZE - 1);
+
+		byte[] cached = cachedBytes[slot];
+		if (cached != null && cached.length == len) {
+			int i = 0;
+			while (i < len && cached[i] == buffer[start + i])
+				i++;
+			if (i == len)
+				return cachedTopics[slot];
+		}
+
+		byte[] bytes = new byte[len];
+		System.arraycopy(buffer, start, bytes, 0, len);
+		String decoded = new String(bytes, UTF8);
+		cachedBytes[slot] = bytes;
+		cachedTopics[slot] = decoded;
+		return decoded;
+	}
+}
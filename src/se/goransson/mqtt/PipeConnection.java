@@ -0,0 +1,195 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * One end of an in-memory connection, for talking to a broker in the same
+ * process without a socket. Create both ends with {@link #pair()}; what is
+ * written to one end is read from the other.
+ *
+ * <pre>
+ * PipeConnection[] ends = PipeConnection.pair();
+ * broker.serve(ends[1]);
+ * client.connect(ends[0], "sketch");
+ * </pre>
+ */
+public class PipeConnection extends Connection {
+
+	/** Default number of bytes that can be in each direction at once. */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	private final Pipe mIn;
+	private final Pipe mOut;
+
+	private final InputStream mInputStream = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return mIn.read(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			return mIn.available();
+		}
+	};
+
+	private final OutputStream mOutputStream = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			mOut.write(ByteBuffer.wrap(b, off, len));
+		}
+	};
+
+	private PipeConnection(Pipe in, Pipe out) {
+		mIn = in;
+		mOut = out;
+	}
+
+	/**
+	 * @return Two connected ends.
+	 */
+	public static PipeConnection[] pair() {
+		return pair(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            The number of bytes that can be in each direction before
+	 *            the writer has to wait for the reader.
+	 * @return Two connected ends.
+	 */
+	public static PipeConnection[] pair(int capacity) {
+		Pipe a = new Pipe(capacity);
+		Pipe b = new Pipe(capacity);
+		return new PipeConnection[] { new PipeConnection(a, b),
+				new PipeConnection(b, a) };
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return mInputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return mOutputStream;
+	}
+
+	@Override
+	public void write(ByteBuffer src) throws IOException {
+		mOut.write(src);
+	}
+
+	/**
+	 * Close both directions, the other end reads what was already written
+	 * and then the end of the stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		mIn.close();
+		mOut.close();
+	}
+
+	/**
+	 * A bounded ring of bytes, one direction of a pair.
+	 */
+	private static class Pipe {
+
+		private final byte[] ring;
+
+		/** Where the next byte is read, and the number of bytes held. */
+		private int head = 0;
+		private int count = 0;
+
+		private boolean closed = false;
+
+		Pipe(int capacity) {
+			ring = new byte[Math.max(capacity, 16)];
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			try {
+				while (count == 0 && !closed)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (count == 0)
+				return -1;
+
+			int n = Math.min(len, count);
+			int first = Math.min(n, ring.length - head);
+			System.arraycopy(ring, head, b, off, first);
+			System.arraycopy(ring, 0, b, off + first, n - first);
+			head = (head + n) % ring.length;
+			count -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized int available() {
+			return count;
+		}
+
+		synchronized void write(ByteBuffer src) throws IOException {
+			while (src.hasRemaining()) {
+				try {
+					while (count == ring.length && !closed)
+						wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				if (closed)
+					throw new IOException("Pipe closed");
+
+				int tail = (head + count) % ring.length;
+				int n = Math.min(src.remaining(), ring.length - count);
+				int first = Math.min(n, ring.length - tail);
+				src.get(ring, tail, first);
+				src.get(ring, 0, n - first);
+				count += n;
+				notifyAll();
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+}
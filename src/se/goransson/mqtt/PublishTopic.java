@@ -0,0 +1,94 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer;
+
+/**
+ * A topic that is published to over and over, encoded once. Publishing
+ * with it only copies the payload: the topic is kept as the length-prefixed
+ * UTF-8 bytes that go in the PUBLISH package, and the first byte of the
+ * package is kept for every QoS and retain flag.
+ *
+ * <pre>
+ * PublishTopic temperature = new PublishTopic("sensors/temperature");
+ * ...
+ * client.publish(temperature, reading);
+ * </pre>
+ *
+ * A handle can be shared by any number of clients. MQTT 5 topic aliases,
+ * should the client ever speak it, are numbered per connection; a
+ * connection would then map each handle to its alias, and this class would
+ * stay as it is.
+ */
+public class PublishTopic {
+
+	private final String name;
+
+	/** The topic as it is in a PUBLISH, length first. */
+	private final byte[] encoded;
+
+	/** The fixed header byte, by QoS times two plus retain. */
+	private final byte[] headers = new byte[6];
+
+	/**
+	 * @param name
+	 *            The topic, without wildcards.
+	 * @throws IllegalArgumentException
+	 *             If the topic has wildcards or is longer than 65535 bytes.
+	 */
+	public PublishTopic(String name) {
+		if (name.indexOf('#') >= 0 || name.indexOf('+') >= 0)
+			throw new IllegalArgumentException(
+					"Can't publish to a topic with wildcards: " + name);
+		int length = Messages.utf8Length(name);
+		if (length > 65535)
+			throw new IllegalArgumentException("Topic too long: " + length
+					+ " bytes");
+
+		this.name = name;
+		encoded = new byte[2 + length];
+		Messages.putString(ByteBuffer.wrap(encoded), name);
+		for (int qos = Messages.AT_MOST_ONCE; qos <= Messages.EXACTLY_ONCE; qos++) {
+			headers[qos * 2] = Messages.fixedHeader(Messages.PUBLISH, false,
+					qos, false);
+			headers[qos * 2 + 1] = Messages.fixedHeader(Messages.PUBLISH,
+					true, qos, false);
+		}
+	}
+
+	/**
+	 * @return The topic.
+	 */
+	public String name() {
+		return name;
+	}
+
+	/** The topic as it is in a PUBLISH, length first; not to be changed. */
+	byte[] encoded() {
+		return encoded;
+	}
+
+	/** The first byte of a PUBLISH package on this topic. */
+	byte header(int qos, boolean retain) {
+		return headers[qos * 2 + (retain ? 1 : 0)];
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
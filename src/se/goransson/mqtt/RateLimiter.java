@@ -0,0 +1,448 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps a client under the publish rate its broker allows, so a sketch can
+ * publish from draw() at whatever rate without being disconnected. Set with
+ * {@link MQTT#setRateLimiter(RateLimiter)}.
+ *
+ * Limits are token buckets, in messages and in bytes per second, for every
+ * message or for the topics starting with a prefix; a message is sent once
+ * every limit it falls under allows it. A bucket holds one second worth of
+ * tokens, so bursts up to that are sent right away.
+ *
+ * <pre>
+ * RateLimiter limiter = new RateLimiter(RateLimiter.Saturation.COALESCE);
+ * limiter.setLimit(100, 64 * 1024);
+ * limiter.setLimit(&quot;sensors/&quot;, 10, 0);
+ * client.setRateLimiter(limiter);
+ * </pre>
+ *
+ * A limiter serves a single client.
+ */
+public class RateLimiter {
+
+	/** What to do with a message that is over the limit. */
+	public enum Saturation {
+		/** Wait until it can be sent, which stops the publishing thread. */
+		BLOCK,
+		/**
+		 * Queue it, up to {@link RateLimiter#setQueueCapacity(long)} bytes;
+		 * later messages are dropped while the queue is full.
+		 */
+		QUEUE,
+		/**
+		 * Queue only the latest message of each topic, an older one still
+		 * waiting is replaced.
+		 */
+		COALESCE
+	}
+
+	/** Default number of bytes that can be queued. */
+	public static final long DEFAULT_QUEUE_CAPACITY = 1024 * 1024;
+
+	private final Saturation saturation;
+
+	/** Guarded by this, the global limit has the prefix "". */
+	private final ArrayList<Rule> rules = new ArrayList<Rule>();
+
+	private long capacity = DEFAULT_QUEUE_CAPACITY;
+
+	/** Messages over the limit, oldest first, guarded by this. */
+	private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+
+	/** The latest message per topic when coalescing, guarded by this. */
+	private final LinkedHashMap<String, Pending> latest = new LinkedHashMap<String, Pending>();
+
+	/** Bytes of payload queued, guarded by this. */
+	private long queued = 0;
+
+	private long dropped = 0;
+
+	/** Set while a drain is scheduled, guarded by this. */
+	private boolean drainScheduled = false;
+
+	private Sender mSender;
+
+	/** Requests to drain, only one drain runs at a time. */
+	private final AtomicInteger drain_requests = new AtomicInteger();
+
+	private final Runnable mDrainLater = new Runnable() {
+		@Override
+		public void run() {
+			// Sending may block, keep it off the timer thread
+			if (drain_requests.getAndIncrement() == 0)
+				ForkJoinPool.commonPool().execute(mDrain);
+		}
+	};
+
+	private final Runnable mDrain = new Runnable() {
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				drain();
+				missed = drain_requests.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	};
+
+	/**
+	 * @param saturation
+	 *            What to do with messages over the limit.
+	 */
+	public RateLimiter(Saturation saturation) {
+		this.saturation = saturation;
+	}
+
+	/**
+	 * Limit every message.
+	 *
+	 * @param messagesPerSecond
+	 *            0 for no limit.
+	 * @param bytesPerSecond
+	 *            Counting the payload only, 0 for no limit.
+	 */
+	public void setLimit(double messagesPerSecond, double bytesPerSecond) {
+		setLimit("", messagesPerSecond, bytesPerSecond);
+	}
+
+	/**
+	 * Limit the messages whose topic starts with a prefix, on top of the
+	 * limit of every message. Setting the limit of a prefix again replaces
+	 * it.
+	 *
+	 * @param prefix
+	 *            For example "sensors/".
+	 * @param messagesPerSecond
+	 *            0 for no limit.
+	 * @param bytesPerSecond
+	 *            0 for no limit.
+	 */
+	public synchronized void setLimit(String prefix, double messagesPerSecond,
+			double bytesPerSecond) {
+		Iterator<Rule> it = rules.iterator();
+		while (it.hasNext()) {
+			if (it.next().prefix.equals(prefix))
+				it.remove();
+		}
+		rules.add(new Rule(prefix, Bucket.of(messagesPerSecond, 1), Bucket
+				.of(bytesPerSecond, 0)));
+	}
+
+	/**
+	 * Set how many bytes of payload can be queued, for
+	 * {@link Saturation#QUEUE} and {@link Saturation#COALESCE}.
+	 *
+	 * Default is 1 MB.
+	 *
+	 * @param bytes
+	 */
+	public synchronized void setQueueCapacity(long bytes) {
+		capacity = bytes;
+	}
+
+	/**
+	 * @return The bytes of payload waiting to be sent.
+	 */
+	public synchronized long queued() {
+		return queued;
+	}
+
+	/**
+	 * @return The number of messages dropped because the queue was full, or
+	 *         replaced by a newer one on the same topic.
+	 */
+	public synchronized long dropped() {
+		return dropped;
+	}
+
+	/**
+	 * Attach to the client that sends the queued messages.
+	 */
+	synchronized void bind(Sender sender) {
+		if (mSender != null && mSender != sender)
+			throw new IllegalStateException(
+					"The rate limiter is used by another client");
+		mSender = sender;
+	}
+
+	/**
+	 * Let a message through, wait for it to be allowed or queue it.
+	 *
+	 * @param topic
+	 * @param payload
+	 *            Copied if the message is queued.
+	 * @param qos
+	 * @param retain
+	 * @param done
+	 *            Failed if the message is dropped. May be null.
+	 * @return true if the caller should send the message now, false if it
+	 *         will be sent later or was dropped.
+	 */
+	boolean admit(String topic, byte[] payload, int qos, boolean retain,
+			CompletableFuture<Void> done) {
+		if (saturation == Saturation.BLOCK) {
+			if (acquire(topic, payload.length))
+				return true;
+			if (done != null)
+				done.completeExceptionally(new InterruptedIOException());
+			return false;
+		}
+
+		Pending replaced = null;
+		synchronized (this) {
+			// Anything queued goes first
+			if (isEmpty() && take(topic, payload.length, System.nanoTime()) == 0)
+				return true;
+
+			Pending pending = new Pending(topic, payload.clone(), qos, retain,
+					done);
+			if (saturation == Saturation.COALESCE)
+				replaced = latest.get(topic);
+			long room = capacity - queued
+					+ (replaced != null ? replaced.payload.length : 0);
+			if (payload.length > room) {
+				dropped++;
+				if (done != null)
+					done.completeExceptionally(new RejectedExecutionException(
+							"The rate limiter queue is full"));
+				return false;
+			}
+
+			if (saturation == Saturation.COALESCE) {
+				// Keeps the place of the one it replaces
+				latest.put(topic, pending);
+				if (replaced != null) {
+					queued -= replaced.payload.length;
+					dropped++;
+				}
+			} else {
+				queue.add(pending);
+			}
+			queued += payload.length;
+			scheduleDrain();
+		}
+		if (replaced != null && replaced.done != null)
+			replaced.done.cancel(false);
+		return false;
+	}
+
+	/**
+	 * Wait until a message is allowed, whatever the saturation.
+	 *
+	 * @return false if interrupted meanwhile, the message is then dropped.
+	 */
+	boolean acquire(String topic, int length) {
+		while (true) {
+			long wait;
+			synchronized (this) {
+				wait = take(topic, length, System.nanoTime());
+			}
+			if (wait == 0)
+				return true;
+			LockSupport.parkNanos(this, wait);
+			if (Thread.currentThread().isInterrupted()) {
+				synchronized (this) {
+					dropped++;
+				}
+				return false;
+			}
+		}
+	}
+
+	private boolean isEmpty() {
+		return queue.isEmpty() && latest.isEmpty();
+	}
+
+	private Pending peek() {
+		if (saturation == Saturation.COALESCE)
+			return latest.isEmpty() ? null : latest.values().iterator().next();
+		return queue.peek();
+	}
+
+	private void remove(Pending pending) {
+		if (saturation == Saturation.COALESCE)
+			latest.remove(pending.topic);
+		else
+			queue.poll();
+		queued -= pending.payload.length;
+	}
+
+	/** Must be called while holding the lock. */
+	private void scheduleDrain() {
+		if (drainScheduled)
+			return;
+		Pending next = peek();
+		if (next == null)
+			return;
+		long wait = take(next.topic, next.payload.length, System.nanoTime(),
+				false);
+		drainScheduled = true;
+		// The wheel counts milliseconds, round up
+		TimerWheel.getDefault().schedule(mDrainLater,
+				(wait + 999999) / 1000000);
+	}
+
+	/**
+	 * Send the queued messages the limits allow, and schedule the next
+	 * drain for the rest.
+	 */
+	private void drain() {
+		ArrayList<Pending> ready = new ArrayList<Pending>();
+		Sender sender;
+		synchronized (this) {
+			drainScheduled = false;
+			long now = System.nanoTime();
+			Pending next;
+			while ((next = peek()) != null
+					&& take(next.topic, next.payload.length, now) == 0) {
+				remove(next);
+				ready.add(next);
+			}
+			scheduleDrain();
+			sender = mSender;
+		}
+		for (int i = 0; i < ready.size(); i++) {
+			Pending pending = ready.get(i);
+			sender.send(pending.topic, pending.payload, pending.qos,
+					pending.retain, pending.done);
+		}
+	}
+
+	/**
+	 * Take the tokens for a message from every limit it falls under, if
+	 * they all have enough. Must be called while holding the lock.
+	 *
+	 * @return 0 if taken, otherwise the nanoseconds until they will have.
+	 */
+	private long take(String topic, int length, long now) {
+		return take(topic, length, now, true);
+	}
+
+	private long take(String topic, int length, long now, boolean take) {
+		long wait = 0;
+		for (int i = 0; i < rules.size(); i++) {
+			Rule rule = rules.get(i);
+			if (!topic.startsWith(rule.prefix))
+				continue;
+			if (rule.messages != null)
+				wait = Math.max(wait, rule.messages.wait(1, now));
+			if (rule.bytes != null)
+				wait = Math.max(wait, rule.bytes.wait(length, now));
+		}
+		if (wait > 0 || !take)
+			return wait;
+
+		for (int i = 0; i < rules.size(); i++) {
+			Rule rule = rules.get(i);
+			if (!topic.startsWith(rule.prefix))
+				continue;
+			if (rule.messages != null)
+				rule.messages.tokens -= 1;
+			if (rule.bytes != null)
+				rule.bytes.tokens -= length;
+		}
+		return 0;
+	}
+
+	/** Sends the messages let through later. */
+	interface Sender {
+		void send(String topic, byte[] payload, int qos, boolean retain,
+				CompletableFuture<Void> done);
+	}
+
+	private static class Rule {
+
+		final String prefix;
+		final Bucket messages;
+		final Bucket bytes;
+
+		Rule(String prefix, Bucket messages, Bucket bytes) {
+			this.prefix = prefix;
+			this.messages = messages;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Tokens come in at a fixed rate up to one second worth. A message larger
+	 * than that is let through once the bucket is full, leaving it in debt.
+	 */
+	private static class Bucket {
+
+		final double rate;
+		final double capacity;
+		double tokens;
+		long last = System.nanoTime();
+
+		/**
+		 * @return A bucket, or null for no limit.
+		 */
+		static Bucket of(double perSecond, double least) {
+			return perSecond > 0 ? new Bucket(perSecond, least) : null;
+		}
+
+		Bucket(double perSecond, double least) {
+			rate = perSecond / 1e9;
+			capacity = Math.max(perSecond, least);
+			tokens = capacity;
+		}
+
+		/**
+		 * @return 0 if there are enough tokens for n, otherwise the
+		 *         nanoseconds until there will be.
+		 */
+		long wait(int n, long now) {
+			tokens = Math.min(capacity, tokens + (now - last) * rate);
+			last = now;
+			double needed = Math.min(n, capacity);
+			if (tokens >= needed)
+				return 0;
+			return (long) Math.ceil((needed - tokens) / rate);
+		}
+	}
+
+	private static class Pending {
+
+		final String topic;
+		final byte[] payload;
+		final int qos;
+		final boolean retain;
+		final CompletableFuture<Void> done;
+
+		Pending(String topic, byte[] payload, int qos, boolean retain,
+				CompletableFuture<Void> done) {
+			this.topic = topic;
+			this.payload = payload;
+			this.qos = qos;
+			this.retain = retain;
+			this.done = done;
+		}
+	}
+}
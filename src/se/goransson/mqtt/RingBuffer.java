@@ -0,0 +1,120 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue that any number of threads can add to and a single thread
+ * takes from, without locking.
+ *
+ * Every slot has a sequence number telling whether it's free for the
+ * producer at a given position or holds an element for the consumer at that
+ * position. Producers claim a position with a compare-and-set on the tail;
+ * the consumer owns the head.
+ *
+ * @param <T>
+ *            The type of the elements.
+ */
+public class RingBuffer<T> {
+
+	private final Object[] slots;
+
+	private final AtomicLongArray sequences;
+
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Only written by the consumer. */
+	private volatile long head = 0;
+
+	/**
+	 * @param capacity
+	 *            Rounded up to a power of two.
+	 */
+	public RingBuffer(int capacity) {
+		int n = 2;
+		while (n < capacity)
+			n <<= 1;
+		slots = new Object[n];
+		sequences = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++)
+			sequences.set(i, i);
+		mask = n - 1;
+	}
+
+	/**
+	 * Add an element, from any thread.
+	 *
+	 * @param element
+	 * @return false if the buffer is full.
+	 */
+	public boolean offer(T element) {
+		long pos = tail.get();
+		while (true) {
+			int i = (int) pos & mask;
+			long diff = sequences.get(i) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots[i] = element;
+					// Publishes the element to the consumer
+					sequences.set(i, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false; // The consumer hasn't freed the slot yet
+			} else {
+				pos = tail.get(); // Another producer took it
+			}
+		}
+	}
+
+	/**
+	 * Take the oldest element, only from the consumer thread.
+	 *
+	 * @return The element, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		long pos = head;
+		int i = (int) pos & mask;
+		if (sequences.get(i) != pos + 1)
+			return null;
+
+		T element = (T) slots[i];
+		slots[i] = null;
+		// Frees the slot for the producer one lap ahead
+		sequences.set(i, pos + mask + 1);
+		head = pos + 1;
+		return element;
+	}
+
+	/**
+	 * @return The number of elements, approximately while others are adding.
+	 */
+	public int size() {
+		long size = tail.get() - head;
+		return (int) Math.max(0, Math.min(size, slots.length));
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+}
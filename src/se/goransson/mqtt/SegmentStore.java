@@ -0,0 +1,468 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps encoded PUBLISH packages on disk while the connection is down, so
+ * they can be sent once it's back, even after the sketch was restarted. Set
+ * with {@link MQTT#setStore(SegmentStore)}.
+ *
+ * Packages are appended to segment files of a fixed size, mapped into
+ * memory. Each record is
+ *
+ * <pre>
+ * [int length][int crc32][byte done][package]
+ * </pre>
+ *
+ * and a length of 0 marks the end of a segment. A record is marked done once
+ * it has been written, for QoS 0, or acknowledged, for QoS 1 and 2; a
+ * segment is deleted once all of its records are done.
+ *
+ * The mapped files are written by the operating system even if the process
+ * dies; call {@link #sync()} to have them survive a power loss too. On
+ * opening, every record is checked against its checksum and the segment is
+ * cut at the first that doesn't match, so a half written record is never
+ * sent. Records that were sent but not yet marked done are sent again.
+ */
+public class SegmentStore {
+
+	/** What to do when the store is full. */
+	public enum Eviction {
+		/** Delete the oldest segment to make room. */
+		DROP_OLDEST,
+		/** Refuse new packages until there's room. */
+		REJECT
+	}
+
+	/** Default size of a segment file. */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/** Length, checksum and done flag in front of each package. */
+	private static final int HEADER = 9;
+
+	private static final byte LIVE = 0;
+	private static final byte DONE = 1;
+
+	private final File mDirectory;
+
+	private final int segmentSize;
+
+	private final int maxSegments;
+
+	private final Eviction eviction;
+
+	/** Oldest first, the last one is appended to. */
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+	/** The next record to hand out with next(). */
+	private Segment readSegment;
+	private int readOffset;
+
+	private int live = 0;
+
+	private long evicted = 0;
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Open a store, recovering the packages left in it.
+	 *
+	 * @param directory
+	 *            Where the segment files are kept, created if missing.
+	 * @param maxBytes
+	 *            The most disk space to use, at least two segments.
+	 * @param eviction
+	 *            What to do when it's full.
+	 * @throws IOException
+	 */
+	public SegmentStore(File directory, long maxBytes, Eviction eviction)
+			throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, maxBytes, eviction);
+	}
+
+	/**
+	 * @param directory
+	 * @param segmentSize
+	 *            The size of each segment file, the largest package that
+	 *            can be stored is a little smaller.
+	 * @param maxBytes
+	 * @param eviction
+	 * @throws IOException
+	 */
+	public SegmentStore(File directory, int segmentSize, long maxBytes,
+			Eviction eviction) throws IOException {
+		mDirectory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int) Math.max(2, maxBytes / segmentSize);
+		this.eviction = eviction;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create " + directory);
+		recover();
+	}
+
+	private void recover() throws IOException {
+		File[] files = mDirectory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".seg");
+			}
+		});
+		// The names are zero padded, so this is their order
+		Arrays.sort(files);
+
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			Segment segment = new Segment(Integer.parseInt(name.substring(0,
+					name.length() - 4)), files[i], (int) files[i].length());
+			scan(segment);
+			if (segment.live == 0 && i < files.length - 1)
+				segment.delete();
+			else
+				segments.add(segment);
+		}
+
+		if (segments.isEmpty())
+			segments.add(newSegment(0));
+		readSegment = segments.peekFirst();
+		readOffset = 0;
+	}
+
+	/**
+	 * Count the live records of a segment and find its end, cutting it at
+	 * the first record that is torn or doesn't match its checksum.
+	 */
+	private void scan(Segment segment) {
+		ByteBuffer map = segment.map;
+		int offset = 0;
+		while (offset + HEADER <= map.capacity()) {
+			int length = map.getInt(offset);
+			if (length == 0)
+				break;
+			if (length < 0 || length > map.capacity() - offset - HEADER
+					|| checksum(map, offset + HEADER, length) != map
+							.getInt(offset + 4)) {
+				// Torn when the process died, it and whatever follows
+				map.putInt(offset, 0);
+				break;
+			}
+			if (map.get(offset + 8) == LIVE) {
+				segment.live++;
+				live++;
+			}
+			offset += HEADER + length;
+		}
+		segment.end = offset;
+	}
+
+	private int checksum(ByteBuffer map, int offset, int length) {
+		ByteBuffer region = map.duplicate();
+		region.limit(offset + length).position(offset);
+		crc.reset();
+		crc.update(region);
+		return (int) crc.getValue();
+	}
+
+	private Segment newSegment(int index) throws IOException {
+		File file = new File(mDirectory, String.format("%016d.seg", index));
+		return new Segment(index, file, segmentSize);
+	}
+
+	/**
+	 * Store an encoded PUBLISH package.
+	 *
+	 * @param packet
+	 * @param offset
+	 * @param length
+	 * @return false if the store is full and set to
+	 *         {@link Eviction#REJECT}.
+	 * @throws IOException
+	 *             If the package is larger than a segment, or the disk is
+	 *             full.
+	 */
+	public synchronized boolean append(byte[] packet, int offset, int length)
+			throws IOException {
+		if (length <= 0 || length > segmentSize - HEADER)
+			throw new IOException("Can't store a package of " + length
+					+ " bytes");
+
+		Segment tail = segments.peekLast();
+		if (tail.end + HEADER + length > tail.map.capacity()) {
+			if (segments.size() >= maxSegments) {
+				if (eviction == Eviction.REJECT)
+					return false;
+				evictOldest();
+			}
+			tail = newSegment(tail.index + 1);
+			segments.add(tail);
+		}
+
+		crc.reset();
+		crc.update(packet, offset, length);
+
+		ByteBuffer map = tail.map;
+		int at = tail.end;
+		map.putInt(at + 4, (int) crc.getValue());
+		map.put(at + 8, LIVE);
+		ByteBuffer body = map.duplicate();
+		body.position(at + HEADER);
+		body.put(packet, offset, length);
+		// The length goes last, it makes the record visible
+		map.putInt(at, length);
+
+		tail.end = at + HEADER + length;
+		tail.live++;
+		live++;
+		return true;
+	}
+
+	private void evictOldest() {
+		Segment oldest = segments.pollFirst();
+		live -= oldest.live;
+		evicted += oldest.live;
+		if (readSegment == oldest) {
+			readSegment = segments.peekFirst();
+			readOffset = 0;
+		}
+		oldest.delete();
+	}
+
+	/**
+	 * Take the next stored package that hasn't been handed out yet.
+	 *
+	 * @return The record, or null if there is none.
+	 */
+	public synchronized Record next() {
+		while (readSegment != null) {
+			ByteBuffer map = readSegment.map;
+			if (readOffset < readSegment.end) {
+				int length = map.getInt(readOffset);
+				int at = readOffset;
+				readOffset += HEADER + length;
+				if (map.get(at + 8) == LIVE)
+					return new Record(readSegment, at, length);
+				continue;
+			}
+			if (readSegment == segments.peekLast())
+				return null;
+			readSegment = following(readSegment);
+			readOffset = 0;
+		}
+		return null;
+	}
+
+	/**
+	 * Hand out every live package again from the start, for when those
+	 * handed out before were never delivered.
+	 */
+	public synchronized void rewind() {
+		readSegment = segments.peekFirst();
+		readOffset = 0;
+	}
+
+	/**
+	 * Mark a record done, it is never handed out again.
+	 *
+	 * @param record
+	 */
+	public synchronized void release(Record record) {
+		Segment segment = record.segment;
+		if (segment.map == null || segment.map.get(record.offset + 8) == DONE)
+			return; // Evicted, or already released
+
+		segment.map.put(record.offset + 8, DONE);
+		segment.live--;
+		live--;
+
+		// Nothing more will be appended to it
+		if (segment.live == 0 && segment != segments.peekLast()) {
+			if (readSegment == segment) {
+				readSegment = following(segment);
+				readOffset = 0;
+			}
+			segments.remove(segment);
+			segment.delete();
+		}
+	}
+
+	private Segment following(Segment segment) {
+		Iterator<Segment> it = segments.iterator();
+		while (it.hasNext()) {
+			if (it.next() == segment)
+				return it.hasNext() ? it.next() : null;
+		}
+		return segments.peekFirst();
+	}
+
+	/**
+	 * @return The number of packages not yet done.
+	 */
+	public synchronized int size() {
+		return live;
+	}
+
+	/**
+	 * @return The number of packages dropped to make room.
+	 */
+	public synchronized long evicted() {
+		return evicted;
+	}
+
+	/**
+	 * Force the segments to disk.
+	 */
+	public synchronized void sync() {
+		for (Segment segment : segments)
+			segment.map.force();
+	}
+
+	/**
+	 * Force the segments to disk and close them, the store can't be used
+	 * afterwards.
+	 */
+	public synchronized void close() throws IOException {
+		sync();
+		for (Segment segment : segments)
+			segment.close();
+		segments.clear();
+		readSegment = null;
+	}
+
+	private static class Segment {
+
+		final int index;
+
+		final File file;
+
+		final FileChannel channel;
+
+		/** Null once deleted. */
+		MappedByteBuffer map;
+
+		/** Where the next record goes. */
+		int end = 0;
+
+		/** Records not yet done. */
+		int live = 0;
+
+		Segment(int index, File file, int size) throws IOException {
+			this.index = index;
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				// New files are filled with zeros, the end marker
+				if (raf.length() < size)
+					raf.setLength(size);
+				channel = raf.getChannel();
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		void close() throws IOException {
+			map = null;
+			channel.close();
+		}
+
+		void delete() {
+			try {
+				close();
+			} catch (IOException e) {
+			}
+			// Can't unmap before Java 9, which some systems need to delete
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * A stored package, handed out by {@link SegmentStore#next()}.
+	 */
+	public static class Record {
+
+		private final Segment segment;
+
+		/** Where the record starts in the segment. */
+		final int offset;
+
+		/** The length of the package. */
+		final int length;
+
+		/** The mapping, kept so it stays valid after eviction. */
+		private final ByteBuffer map;
+
+		Record(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.map = segment.map;
+		}
+
+		/**
+		 * @return The QoS of the package.
+		 */
+		public int qos() {
+			return (map.get(offset + HEADER) >> 1) & 0x03;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		/**
+		 * @return The package, read from the mapping.
+		 */
+		public ByteBuffer packet() {
+			ByteBuffer packet = map.duplicate();
+			packet.limit(offset + HEADER + length).position(offset + HEADER);
+			return packet.slice();
+		}
+
+		/**
+		 * @return A copy of the package.
+		 */
+		public byte[] toByteArray() {
+			byte[] copy = new byte[length];
+			packet().get(copy);
+			return copy;
+		}
+
+		/** The file the package is in, for zero copy transfers. */
+		FileChannel channel() {
+			return segment.channel;
+		}
+
+		/** Where the package starts in the file. */
+		long position() {
+			return offset + HEADER;
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import processing.core.PApplet;
+
+/**
+ * Spreads the work of one client over several connections to the broker,
+ * so publishing isn't capped by a single socket and a single session on
+ * the broker.
+ *
+ * Each shard is an {@link MQTT} client of its own, with the client id
+ * <code>baseId-n</code>. A topic always goes through the same shard, both
+ * for publishing and subscribing, so messages on a topic keep their order
+ * while different topics are spread over the connections.
+ *
+ * <pre>
+ * client = new ShardedMQTT(this, 4);
+ * client.connect("127.0.0.1", 1883, "telemetry");
+ * </pre>
+ */
+public class ShardedMQTT {
+
+	private final MQTT[] shards;
+
+	/** Messages published per shard. */
+	private final AtomicLongArray published;
+
+	/**
+	 * @param theParent
+	 *            The sketch, its methods are subscribed on every shard.
+	 * @param count
+	 *            The number of connections.
+	 */
+	public ShardedMQTT(PApplet theParent, int count) {
+		shards = new MQTT[Math.max(count, 1)];
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = new MQTT(theParent);
+		published = new AtomicLongArray(shards.length);
+	}
+
+	/**
+	 * For use outside of Processing.
+	 * 
+	 * @param count
+	 *            The number of connections.
+	 */
+	public ShardedMQTT(int count) {
+		this(null, count);
+	}
+
+	/**
+	 * Connect every shard.
+	 * 
+	 * @param host
+	 * @param port
+	 * @param baseId
+	 *            Shard n connects as <code>baseId-n</code>.
+	 */
+	public void connect(String host, int port, String baseId) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].connect(host, port, baseId + "-" + i);
+	}
+
+	public void disconnect() {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].disconnect();
+	}
+
+	/**
+	 * @return The number of shards.
+	 */
+	public int size() {
+		return shards.length;
+	}
+
+	/**
+	 * @param index
+	 * @return A shard, for settings not forwarded by this class.
+	 */
+	public MQTT shard(int index) {
+		return shards[index];
+	}
+
+	/**
+	 * @param topic
+	 * @return The shard a topic goes through.
+	 */
+	public MQTT shardFor(String topic) {
+		return shards[indexOf(topic)];
+	}
+
+	private int indexOf(String topic) {
+		int h = topic.hashCode();
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % shards.length;
+	}
+
+	/** @see MQTT#setKeepalive(int) */
+	public void setKeepalive(int seconds) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setKeepalive(seconds);
+	}
+
+	/** @see MQTT#setBatching(int, long) */
+	public void setBatching(int maxBatch, long linger) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setBatching(maxBatch, linger);
+	}
+
+	/** @see MQTT#setMaxInflight(int) */
+	public void setMaxInflight(int max) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setMaxInflight(max);
+	}
+
+	/** @see MQTT#setAutoReconnect(boolean) */
+	public void setAutoReconnect(boolean enabled) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setAutoReconnect(enabled);
+	}
+
+	/**
+	 * Serve every shard from the same loop, see
+	 * {@link MQTT#setEventLoop(EventLoop)}.
+	 */
+	public void setEventLoop(EventLoop loop) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setEventLoop(loop);
+	}
+
+	/**
+	 * Deliver the messages of every shard through the same dispatcher, see
+	 * {@link MQTT#setDispatcher(Dispatcher)}.
+	 */
+	public void setDispatcher(Dispatcher dispatcher) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setDispatcher(dispatcher);
+	}
+
+	/**
+	 * Log the events of every shard to the same logger, see
+	 * {@link MQTT#setLogger(Logger)}.
+	 */
+	public void setLogger(Logger logger) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setLogger(logger);
+	}
+
+	/** @see MQTT#setLogSampling(int) */
+	public void setLogSampling(int everyN) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setLogSampling(everyN);
+	}
+
+	/** @see MQTT#setCoalesceInterval(long) */
+	public void setCoalesceInterval(long millis) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setCoalesceInterval(millis);
+	}
+
+	/** @see MQTT#setRawListener(Consumer) */
+	public void setRawListener(Consumer<MQTTMessage> listener) {
+		for (int i = 0; i < shards.length; i++)
+			shards[i].setRawListener(listener);
+	}
+
+	public void publish(String topic, String message) {
+		publish(topic, message.getBytes(), MQTT.AT_MOST_ONCE, false);
+	}
+
+	public void publish(String topic, byte[] buffer) {
+		publish(topic, buffer, MQTT.AT_MOST_ONCE, false);
+	}
+
+	/** @see MQTT#publish(String, byte[], int, boolean) */
+	public void publish(String topic, byte[] buffer, int qos, boolean retain) {
+		int i = indexOf(topic);
+		published.incrementAndGet(i);
+		shards[i].publish(topic, buffer, qos, retain);
+	}
+
+	/** @see MQTT#publish(PublishTopic, byte[], int, boolean) */
+	public void publish(PublishTopic topic, byte[] buffer, int qos,
+			boolean retain) {
+		int i = indexOf(topic.name());
+		published.incrementAndGet(i);
+		shards[i].publish(topic, buffer, qos, retain);
+	}
+
+	/** @see MQTT#publishLatest(String, byte[], int, boolean) */
+	public void publishLatest(String topic, byte[] payload, int qos,
+			boolean retain) {
+		shardFor(topic).publishLatest(topic, payload, qos, retain);
+	}
+
+	/** @see MQTT#publishAsync(String, byte[], int) */
+	public CompletableFuture<Void> publishAsync(String topic, byte[] payload,
+			int qos) {
+		int i = indexOf(topic);
+		published.incrementAndGet(i);
+		return shards[i].publishAsync(topic, payload, qos);
+	}
+
+	/** @see MQTT#publishAsync(PublishTopic, byte[], int) */
+	public CompletableFuture<Void> publishAsync(PublishTopic topic,
+			byte[] payload, int qos) {
+		int i = indexOf(topic.name());
+		published.incrementAndGet(i);
+		return shards[i].publishAsync(topic, payload, qos);
+	}
+
+	/** @see MQTT#subscribe(String, String) */
+	public void subscribe(String topic, String method) {
+		shardFor(topic).subscribe(topic, method);
+	}
+
+	/** @see MQTT#subscribe(String, Consumer) */
+	public void subscribe(String topic, Consumer<MQTTMessage> listener) {
+		shardFor(topic).subscribe(topic, listener);
+	}
+
+	/** @see MQTT#subscribe(String, StreamListener) */
+	public void subscribe(String topic, StreamListener listener) {
+		shardFor(topic).subscribe(topic, listener);
+	}
+
+	public void unsubscribe(String topic) {
+		shardFor(topic).unsubscribe(topic);
+	}
+
+	/**
+	 * Subscribe to many topics at once, each shard packs its share of them
+	 * into as few packages as fit.
+	 * 
+	 * @see MQTT#subscribe(Map, Consumer)
+	 */
+	public CompletableFuture<Map<String, Integer>> subscribe(
+			Map<String, Integer> topics, Consumer<MQTTMessage> listener) {
+		HashMap<Integer, Map<String, Integer>> split = new HashMap<Integer, Map<String, Integer>>();
+		for (Map.Entry<String, Integer> entry : topics.entrySet()) {
+			int i = indexOf(entry.getKey());
+			Map<String, Integer> share = split.get(i);
+			if (share == null)
+				split.put(i, share = new LinkedHashMap<String, Integer>());
+			share.put(entry.getKey(), entry.getValue());
+		}
+
+		final List<CompletableFuture<Map<String, Integer>>> parts = new ArrayList<CompletableFuture<Map<String, Integer>>>();
+		for (Map.Entry<Integer, Map<String, Integer>> entry : split.entrySet())
+			parts.add(shards[entry.getKey()].subscribe(entry.getValue(),
+					listener));
+
+		return CompletableFuture.allOf(
+				parts.toArray(new CompletableFuture<?>[parts.size()]))
+				.thenApply(new Function<Void, Map<String, Integer>>() {
+					@Override
+					public Map<String, Integer> apply(Void done) {
+						Map<String, Integer> granted = new LinkedHashMap<String, Integer>();
+						for (int i = 0; i < parts.size(); i++)
+							granted.putAll(parts.get(i).join());
+						return granted;
+					}
+				});
+	}
+
+	/**
+	 * @see MQTT#unsubscribe(Collection)
+	 */
+	public CompletableFuture<Void> unsubscribe(Collection<String> topics) {
+		HashMap<Integer, List<String>> split = new HashMap<Integer, List<String>>();
+		for (String topic : topics) {
+			int i = indexOf(topic);
+			List<String> share = split.get(i);
+			if (share == null)
+				split.put(i, share = new ArrayList<String>());
+			share.add(topic);
+		}
+
+		List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<Integer, List<String>> entry : split.entrySet())
+			parts.add(shards[entry.getKey()].unsubscribe(entry.getValue()));
+		return CompletableFuture.allOf(parts
+				.toArray(new CompletableFuture<?>[parts.size()]));
+	}
+
+	/**
+	 * @return The number of connected shards.
+	 */
+	public int getConnected() {
+		int connected = 0;
+		for (int i = 0; i < shards.length; i++) {
+			if (shards[i].isConnected())
+				connected++;
+		}
+		return connected;
+	}
+
+	/**
+	 * @return The incomplete publishAsync futures of every shard.
+	 */
+	public int getPending() {
+		int pending = 0;
+		for (int i = 0; i < shards.length; i++)
+			pending += shards[i].getPending();
+		return pending;
+	}
+
+	/**
+	 * @return The messages published through every shard.
+	 */
+	public long getPublished() {
+		long total = 0;
+		for (int i = 0; i < shards.length; i++)
+			total += published.get(i);
+		return total;
+	}
+
+	/**
+	 * @param index
+	 * @return The messages published through a shard, to check that the
+	 *         topics are spread evenly.
+	 */
+	public long getPublished(int index) {
+		return published.get(index);
+	}
+}
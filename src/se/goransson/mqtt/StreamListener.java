@@ -0,0 +1,66 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives large messages piece by piece as they arrive, instead of whole,
+ * so memory is bounded by the size of the receive buffer rather than the
+ * size of the message. Subscribe with
+ * {@link MQTT#subscribe(String, StreamListener)}; messages larger than
+ * {@link MQTT#setStreamThreshold(int)} are streamed, smaller ones are
+ * passed as a single chunk.
+ *
+ * The methods are called on the reading thread, one message at a time.
+ *
+ * @see FileStreamListener
+ */
+public interface StreamListener {
+
+	/**
+	 * A message starts.
+	 *
+	 * @param topic
+	 * @param totalLength
+	 *            The length of the payload.
+	 */
+	void onStart(String topic, int totalLength);
+
+	/**
+	 * The next part of the payload, between position and limit. The buffer
+	 * is only valid during the call, copy what's needed later.
+	 *
+	 * @param chunk
+	 */
+	void onChunk(ByteBuffer chunk);
+
+	/**
+	 * The whole payload has been passed.
+	 */
+	void onEnd();
+
+	/**
+	 * The connection was lost before the end of the message.
+	 *
+	 * @param cause
+	 *            The error, or null at the end of the stream.
+	 */
+	default void onAbort(IOException cause) {
+	}
+}
@@ -0,0 +1,177 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Matches SUBACK and UNSUBACK packages to the requests they answer, by
+ * message id. A request may have been split over several packages; its
+ * future completes once every one of them has been acknowledged.
+ */
+public class SubscribeTracker {
+
+	/** Packages waiting for an acknowledgement, guarded by this. */
+	private final IntMap<Part> pending = new IntMap<Part>();
+
+	/**
+	 * Start tracking a SUBSCRIBE or UNSUBSCRIBE request.
+	 *
+	 * @param topics
+	 *            The topics, in the order they are sent.
+	 * @param parts
+	 *            The number of packages the request is sent in.
+	 * @return The request, to pass to {@link #expect}.
+	 */
+	public Request start(String[] topics, int parts) {
+		return new Request(topics, parts);
+	}
+
+	/**
+	 * Expect an acknowledgement for a package holding some of the topics of
+	 * a request.
+	 *
+	 * @param msgId
+	 *            The message id of the package.
+	 * @param request
+	 * @param from
+	 *            The first topic in the package.
+	 * @param to
+	 *            One past the last topic in the package.
+	 */
+	public synchronized void expect(int msgId, Request request, int from,
+			int to) {
+		pending.put(msgId, new Part(request, from, to));
+	}
+
+	/**
+	 * Handle a SUBACK.
+	 *
+	 * @param msgId
+	 * @param granted
+	 *            The package holding the granted QoS, one byte per topic.
+	 * @param offset
+	 * @param length
+	 */
+	public void subacked(int msgId, byte[] granted, int offset, int length) {
+		Part part;
+		synchronized (this) {
+			part = pending.remove(msgId);
+		}
+		if (part == null)
+			return; // Not asked for through here
+
+		Request request = part.request;
+		synchronized (request) {
+			for (int i = 0; i < part.to - part.from && i < length; i++)
+				request.granted.put(request.topics[part.from + i],
+						granted[offset + i] & 0xFF);
+		}
+		request.partDone();
+	}
+
+	/**
+	 * Handle an UNSUBACK.
+	 *
+	 * @param msgId
+	 */
+	public void unsubacked(int msgId) {
+		Part part;
+		synchronized (this) {
+			part = pending.remove(msgId);
+		}
+		if (part != null)
+			part.request.partDone();
+	}
+
+	/**
+	 * Fail every request still waiting, the connection is gone.
+	 *
+	 * @param cause
+	 */
+	public void clear(IOException cause) {
+		final ArrayList<Request> dropped = new ArrayList<Request>();
+		synchronized (this) {
+			pending.forEach(new ObjIntConsumer<Part>() {
+				@Override
+				public void accept(Part part, int msgId) {
+					dropped.add(part.request);
+				}
+			});
+			pending.clear();
+		}
+		for (int i = 0; i < dropped.size(); i++)
+			dropped.get(i).future.completeExceptionally(cause);
+	}
+
+	/**
+	 * A SUBSCRIBE or UNSUBSCRIBE request, possibly sent in several packages.
+	 */
+	public static class Request {
+
+		final String[] topics;
+
+		/** Granted QoS per topic, guarded by this. */
+		final Map<String, Integer> granted = new LinkedHashMap<String, Integer>();
+
+		private int parts;
+
+		final CompletableFuture<Map<String, Integer>> future = new CompletableFuture<Map<String, Integer>>();
+
+		Request(String[] topics, int parts) {
+			this.topics = topics;
+			this.parts = parts;
+		}
+
+		/**
+		 * @return Completes with the granted QoS per topic for a SUBSCRIBE,
+		 *         or an empty map for an UNSUBSCRIBE.
+		 */
+		public CompletableFuture<Map<String, Integer>> future() {
+			return future;
+		}
+
+		void partDone() {
+			Map<String, Integer> result;
+			synchronized (this) {
+				if (--parts > 0)
+					return;
+				result = Collections.unmodifiableMap(granted);
+			}
+			future.complete(result);
+		}
+	}
+
+	private static class Part {
+
+		final Request request;
+		final int from;
+		final int to;
+
+		Part(Request request, int from, int to) {
+			this.request = request;
+			this.from = from;
+			this.to = to;
+		}
+	}
+}
@@ -28,6 +28,20 @@ public class TCPConnection extends Connection {
 
 	public TCPConnection(InetAddress addr, int port) throws IOException {
 		mSocket = new Socket(addr, port);
+		// Packages are batched by OutboundQueue, Nagle would only add delay
+		mSocket.setTcpNoDelay(true);
+	}
+
+	/**
+	 * Wrap a socket that is already connected, for example one accepted by
+	 * a server socket.
+	 * 
+	 * @param socket
+	 * @throws IOException
+	 */
+	public TCPConnection(Socket socket) throws IOException {
+		mSocket = socket;
+		mSocket.setTcpNoDelay(true);
 	}
 
 	@Override
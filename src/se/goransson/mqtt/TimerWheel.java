@@ -0,0 +1,256 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import se.goransson.mqtt.Logger.Level;
+
+/**
+ * A hashed timer wheel on a single thread, shared by every client in the
+ * JVM for keepalives, ping timeouts, retransmissions and linger flushes.
+ *
+ * Timeouts are put in the bucket of the tick they expire on, modulo the
+ * number of buckets, so scheduling and cancelling are constant time however
+ * many there are. The thread sleeps until the next bucket holding a timeout
+ * rather than waking every tick, so idle clients cost almost nothing.
+ *
+ * Tasks run on the wheel's thread and must be short.
+ */
+public class TimerWheel implements Runnable {
+
+	/** Default length of a tick, in milliseconds. */
+	public static final long DEFAULT_TICK = 1;
+
+	/** Number of buckets, a power of two. */
+	private static final int WHEEL_SIZE = 4096;
+
+	private static TimerWheel defaultWheel;
+
+	private final long tickNanos;
+
+	private final long start = System.nanoTime();
+
+	/** Only touched from the wheel thread. */
+	private final ArrayList<Timeout>[] buckets = newBuckets(WHEEL_SIZE);
+
+	/** The next tick to expire, only touched from the wheel thread. */
+	private long ticks = 0;
+
+	/** Timeouts in the buckets, only touched from the wheel thread. */
+	private int stored = 0;
+
+	/** Timeouts waiting to be put in their bucket. */
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+	private final Thread mThread;
+
+	private volatile boolean finished = false;
+
+	private volatile Logger mLogger = Logger.none();
+
+	/**
+	 * The wheel shared by every client.
+	 *
+	 * @return The default wheel, started on first use.
+	 */
+	public static synchronized TimerWheel getDefault() {
+		if (defaultWheel == null)
+			defaultWheel = new TimerWheel("TimerWheel", DEFAULT_TICK);
+		return defaultWheel;
+	}
+
+	/**
+	 * Create and start a new wheel on its own daemon thread.
+	 *
+	 * @param name
+	 *            The name of the thread.
+	 * @param tick
+	 *            The resolution of the timeouts, in milliseconds.
+	 */
+	public TimerWheel(String name, long tick) {
+		tickNanos = Math.max(tick, 1) * 1000000L;
+		mThread = new Thread(null, this, name);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Set where failing tasks are reported, for the default wheel of every
+	 * client.
+	 *
+	 * Default is {@link Logger#none()}.
+	 *
+	 * @param logger
+	 */
+	public void setLogger(Logger logger) {
+		mLogger = logger != null ? logger : Logger.none();
+	}
+
+	/**
+	 * Run a task on the wheel thread after a delay.
+	 *
+	 * @param task
+	 * @param delay
+	 *            The delay in milliseconds.
+	 * @return A handle that can be used to cancel the task.
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		Timeout timeout = new Timeout(task, System.nanoTime()
+				+ Math.max(delay, 0) * 1000000L);
+		added.add(timeout);
+		if (Thread.currentThread() != mThread)
+			LockSupport.unpark(mThread);
+		return timeout;
+	}
+
+	/**
+	 * Stop the wheel, pending timeouts never run.
+	 */
+	public void stop() {
+		finished = true;
+		LockSupport.unpark(mThread);
+	}
+
+	@Override
+	public void run() {
+		while (!finished) {
+			long now = System.nanoTime();
+			long current = (now - start) / tickNanos;
+
+			// Nothing to expire on the ticks slept through while idle
+			if (stored == 0)
+				ticks = Math.max(ticks, current);
+
+			transferAdded();
+			while (ticks <= current) {
+				expire(buckets[(int) ticks & (WHEEL_SIZE - 1)]);
+				ticks++;
+				// Tasks may have scheduled timeouts for this very lap
+				transferAdded();
+			}
+
+			if (!added.isEmpty())
+				continue;
+			int next = nextOccupied();
+			if (next < 0)
+				LockSupport.park(this);
+			else
+				LockSupport.parkNanos(this, start + (ticks + next) * tickNanos
+						- System.nanoTime());
+		}
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.cancelled)
+				continue;
+
+			// The first tick at or after the deadline, but not in the past
+			long tick = (timeout.deadline - start + tickNanos - 1) / tickNanos;
+			tick = Math.max(tick, ticks);
+			timeout.rounds = (tick - ticks) / WHEEL_SIZE;
+
+			int i = (int) tick & (WHEEL_SIZE - 1);
+			if (buckets[i] == null)
+				buckets[i] = new ArrayList<Timeout>(4);
+			buckets[i].add(timeout);
+			stored++;
+		}
+	}
+
+	private void expire(ArrayList<Timeout> bucket) {
+		if (bucket == null)
+			return;
+
+		for (int i = 0; i < bucket.size();) {
+			Timeout timeout = bucket.get(i);
+			if (!timeout.cancelled && timeout.rounds > 0) {
+				timeout.rounds--;
+				i++;
+				continue;
+			}
+
+			// Remove by swapping in the last one
+			bucket.set(i, bucket.get(bucket.size() - 1));
+			bucket.remove(bucket.size() - 1);
+			stored--;
+			if (!timeout.cancelled)
+				runSafely(timeout.task);
+		}
+	}
+
+	/**
+	 * @return The number of ticks from now to the next bucket holding a
+	 *         timeout, or -1 if there is none.
+	 */
+	private int nextOccupied() {
+		if (stored == 0)
+			return -1;
+		for (int n = 0; n < WHEEL_SIZE; n++) {
+			ArrayList<Timeout> bucket = buckets[(int) (ticks + n)
+					& (WHEEL_SIZE - 1)];
+			if (bucket != null && !bucket.isEmpty())
+				return n;
+		}
+		return -1;
+	}
+
+	/** Java can't create an array of a generic type. */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ArrayList<Timeout>[] newBuckets(int size) {
+		return new ArrayList[size];
+	}
+
+	/**
+	 * A failing task must not stop the wheel, and every timer on it.
+	 */
+	private void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			mLogger.log(Level.ERROR, "A timer task failed", e);
+		}
+	}
+
+	/**
+	 * A task scheduled with {@link TimerWheel#schedule(Runnable, long)}.
+	 */
+	public static class Timeout {
+
+		private final Runnable task;
+		private final long deadline;
+
+		/** Laps left before expiring, only touched from the wheel thread. */
+		private long rounds;
+
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/** Stop the task from running, if it hasn't already. */
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Maps topic filters, with the <code>+</code> and <code>#</code> wildcards,
+ * to values and finds every value whose filter matches a topic.
+ *
+ * Filters are stored as a tree with one level per topic level, so a lookup
+ * takes time proportional to the depth of the topic rather than the number
+ * of filters. The results for recently published topics are cached.
+ *
+ * @param <T>
+ *            The type of the values.
+ */
+public class TopicTree<T> {
+
+	/** Number of topics whose matches are remembered. */
+	private static final int CACHE_SIZE = 4096;
+
+	private final Node<T> root = new Node<T>();
+
+	/** Filter levels are shared between filters, guarded by lock. */
+	private final HashMap<String, String> segments = new HashMap<String, String>();
+
+	private final ConcurrentHashMap<String, List<T>> cache = new ConcurrentHashMap<String, List<T>>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private volatile int size = 0;
+
+	/**
+	 * Check that a topic filter is well formed: <code>#</code> may only be
+	 * the last level and wildcards must fill a whole level.
+	 *
+	 * @param filter
+	 * @return true if the filter can be subscribed to.
+	 */
+	public static boolean isValidFilter(String filter) {
+		int len = filter.length();
+		if (len == 0 || len > 65535)
+			return false;
+
+		for (int i = 0; i < len; i++) {
+			char c = filter.charAt(i);
+			if (c == '+' || c == '#') {
+				boolean levelStart = i == 0 || filter.charAt(i - 1) == '/';
+				boolean levelEnd = i == len - 1 || filter.charAt(i + 1) == '/';
+				if (!levelStart || !levelEnd)
+					return false;
+				if (c == '#' && i != len - 1)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Set the value for a filter.
+	 *
+	 * @param filter
+	 * @param value
+	 * @return The previous value for the filter, or null.
+	 */
+	public T put(String filter, T value) {
+		lock.writeLock().lock();
+		try {
+			Node<T> node = root;
+			for (String level : filter.split("/", -1))
+				node = node.getOrCreate(intern(level));
+
+			T previous = node.value;
+			node.value = value;
+			if (previous == null)
+				size++;
+			cache.clear();
+			return previous;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the value for a filter.
+	 *
+	 * @param filter
+	 * @return The removed value, or null.
+	 */
+	public T remove(String filter) {
+		lock.writeLock().lock();
+		try {
+			T previous = remove(root, filter.split("/", -1), 0);
+			if (previous != null) {
+				size--;
+				cache.clear();
+			}
+			return previous;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param filter
+	 * @return The value for exactly this filter, or null.
+	 */
+	public T get(String filter) {
+		lock.readLock().lock();
+		try {
+			Node<T> node = root;
+			for (String level : filter.split("/", -1)) {
+				node = node.get(level);
+				if (node == null)
+					return null;
+			}
+			return node.value;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Every filter in the tree.
+	 */
+	public List<String> filters() {
+		List<String> filters = new ArrayList<String>();
+		lock.readLock().lock();
+		try {
+			collect(root, null, filters);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return filters;
+	}
+
+	/**
+	 * @return The number of filters in the tree.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find the values of every filter matching a topic. The returned list
+	 * is shared and must not be modified.
+	 *
+	 * @param topic
+	 *            A topic name, without wildcards.
+	 * @return The matching values, possibly empty.
+	 */
+	public List<T> match(String topic) {
+		List<T> result = cache.get(topic);
+		if (result != null)
+			return result;
+
+		lock.readLock().lock();
+		try {
+			List<T> found = new ArrayList<T>(2);
+			// Topics starting with $ are not matched by leading wildcards
+			boolean wildcards = topic.length() == 0 || topic.charAt(0) != '$';
+			match(root, topic, 0, wildcards, found);
+
+			result = found.isEmpty() ? Collections.<T> emptyList()
+					: Collections.unmodifiableList(found);
+
+			// Cached while holding the read lock, so no change can be missed
+			if (cache.size() >= CACHE_SIZE)
+				cache.clear();
+			cache.put(topic, result);
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void match(Node<T> node, String topic, int start,
+			boolean wildcards, List<T> out) {
+		if (start > topic.length()) {
+			// Every level has been matched, "a/#" also matches "a"
+			if (node.value != null)
+				out.add(node.value);
+			if (node.hash != null && node.hash.value != null)
+				out.add(node.hash.value);
+			return;
+		}
+
+		int end = topic.indexOf('/', start);
+		if (end < 0)
+			end = topic.length();
+
+		if (wildcards && node.hash != null && node.hash.value != null)
+			out.add(node.hash.value);
+
+		Node<T> child = node.find(topic, start, end);
+		if (child != null)
+			match(child, topic, end + 1, true, out);
+
+		if (wildcards && node.plus != null)
+			match(node.plus, topic, end + 1, true, out);
+	}
+
+	private T remove(Node<T> node, String[] levels, int i) {
+		if (i == levels.length) {
+			T previous = node.value;
+			node.value = null;
+			return previous;
+		}
+
+		Node<T> child = node.get(levels[i]);
+		if (child == null)
+			return null;
+
+		T previous = remove(child, levels, i + 1);
+		if (child.isEmpty())
+			node.delete(levels[i]);
+		return previous;
+	}
+
+	private void collect(Node<T> node, String prefix, List<String> out) {
+		if (node.value != null && prefix != null)
+			out.add(prefix);
+		for (int i = 0; i < node.keys.length; i++) {
+			if (node.keys[i] != null)
+				collect(node.nodes[i], join(prefix, node.keys[i]), out);
+		}
+		if (node.plus != null)
+			collect(node.plus, join(prefix, "+"), out);
+		if (node.hash != null)
+			collect(node.hash, join(prefix, "#"), out);
+	}
+
+	private static String join(String prefix, String level) {
+		return prefix == null ? level : prefix + "/" + level;
+	}
+
+	private String intern(String level) {
+		String shared = segments.get(level);
+		if (shared == null) {
+			segments.put(level, level);
+			shared = level;
+		}
+		return shared;
+	}
+
+	/**
+	 * One level of the tree. Children are kept in a small open addressing
+	 * table so that they can be looked up by a region of the topic without
+	 * creating a String for it.
+	 */
+	private static class Node<T> {
+
+		T value;
+
+		/** The "+" and "#" children. */
+		Node<T> plus;
+		Node<T> hash;
+
+		String[] keys = new String[2];
+		Node<T>[] nodes = newNodes(2);
+		int count = 0;
+
+		boolean isEmpty() {
+			return value == null && plus == null && hash == null
+					&& count == 0;
+		}
+
+		Node<T> get(String level) {
+			if ("+".equals(level))
+				return plus;
+			if ("#".equals(level))
+				return hash;
+			return find(level, 0, level.length());
+		}
+
+		Node<T> getOrCreate(String level) {
+			Node<T> node = get(level);
+			if (node != null)
+				return node;
+
+			node = new Node<T>();
+			if ("+".equals(level)) {
+				plus = node;
+			} else if ("#".equals(level)) {
+				hash = node;
+			} else {
+				if ((count + 1) * 2 > keys.length)
+					resize(keys.length * 2);
+				insert(level, node);
+			}
+			return node;
+		}
+
+		void delete(String level) {
+			if ("+".equals(level)) {
+				plus = null;
+			} else if ("#".equals(level)) {
+				hash = null;
+			} else {
+				// Rebuild without the level, removals are rare
+				String[] oldKeys = keys;
+				Node<T>[] oldNodes = nodes;
+				clear(oldKeys.length);
+				for (int i = 0; i < oldKeys.length; i++) {
+					if (oldKeys[i] != null && !oldKeys[i].equals(level))
+						insert(oldKeys[i], oldNodes[i]);
+				}
+			}
+		}
+
+		/**
+		 * Find the child for the characters between start and end.
+		 */
+		Node<T> find(String topic, int start, int end) {
+			int mask = keys.length - 1;
+			int i = hash(topic, start, end) & mask;
+			String key;
+			while ((key = keys[i]) != null) {
+				if (key.length() == end - start
+						&& key.regionMatches(0, topic, start, end - start))
+					return nodes[i];
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		private void insert(String level, Node<T> node) {
+			int mask = keys.length - 1;
+			int i = hash(level, 0, level.length()) & mask;
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = level;
+			nodes[i] = node;
+			count++;
+		}
+
+		private void resize(int capacity) {
+			String[] oldKeys = keys;
+			Node<T>[] oldNodes = nodes;
+			clear(capacity);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != null)
+					insert(oldKeys[i], oldNodes[i]);
+			}
+		}
+
+		private void clear(int capacity) {
+			keys = new String[capacity];
+			nodes = newNodes(capacity);
+			count = 0;
+		}
+
+		/** Java can't create an array of a generic type. */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static <T> Node<T>[] newNodes(int capacity) {
+			return new Node[capacity];
+		}
+
+		/** Same as String.hashCode, spread, over a region. */
+		private static int hash(String s, int start, int end) {
+			int h = 0;
+			for (int i = start; i < end; i++)
+				h = 31 * h + s.charAt(i);
+			return h ^ (h >>> 16);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CoalescerTest {
+
+	/** Records what the coalescer publishes, optionally holding it up. */
+	private static class Recorder extends MQTT {
+
+		private final List<String> sent = new ArrayList<String>();
+
+		volatile CountDownLatch entered;
+
+		volatile CountDownLatch released;
+
+		@Override
+		public void publish(String topic, byte[] buffer, int qos,
+				boolean retain) {
+			CountDownLatch hold = released;
+			if (hold != null) {
+				entered.countDown();
+				try {
+					hold.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (this) {
+				sent.add(topic + "=" + new String(buffer));
+				notifyAll();
+			}
+		}
+
+		synchronized List<String> await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (sent.size() < count) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					break;
+				wait(wait);
+			}
+			return new ArrayList<String>(sent);
+		}
+	}
+
+	@Test
+	public void keepsTheLatestValue() throws InterruptedException {
+		Recorder client = new Recorder();
+		Coalescer latest = new Coalescer(client);
+		latest.setInterval(100);
+
+		latest.put("a", "1".getBytes(), 0, false);
+		latest.put("b", "1".getBytes(), 0, false);
+		latest.put("a", "2".getBytes(), 0, false);
+		latest.put("a", "3".getBytes(), 0, false);
+		assertEquals(2, latest.pending());
+		assertEquals(2, latest.coalesced());
+
+		// In the order the topics changed first
+		List<String> sent = client.await(2);
+		assertEquals(2, sent.size());
+		assertEquals("a=3", sent.get(0));
+		assertEquals("b=1", sent.get(1));
+
+		// Sent once, a flush has nothing left to send
+		assertEquals(0, latest.pending());
+		latest.flushNow();
+		assertEquals(2, client.await(2).size());
+
+		latest.put("a", "4".getBytes(), 0, false);
+		sent = client.await(3);
+		assertEquals(3, sent.size());
+		assertEquals("a=4", sent.get(2));
+	}
+
+	@Test
+	public void collectsWhileFlushing() throws InterruptedException {
+		Recorder client = new Recorder();
+		client.entered = new CountDownLatch(1);
+		client.released = new CountDownLatch(1);
+		Coalescer latest = new Coalescer(client);
+
+		latest.put("a", "1".getBytes(), 0, false);
+		assertTrue(client.entered.await(5, TimeUnit.SECONDS));
+
+		// Published while the flush is held up
+		for (int i = 2; i <= 100; i++)
+			latest.put("a", ("" + i).getBytes(), 0, false);
+		assertEquals(1, latest.pending());
+		assertEquals(98, latest.coalesced());
+
+		client.released.countDown();
+		List<String> sent = client.await(2);
+		assertEquals(2, sent.size());
+		assertEquals("a=1", sent.get(0));
+		assertEquals("a=100", sent.get(1));
+	}
+
+	@Test
+	public void publishLatestSkipsUnknownQos() throws InterruptedException {
+		Recorder client = new Recorder();
+		client.setLogger(Logger.none());
+		client.publishLatest("a", "1".getBytes(), 3, false);
+		client.publishLatest("b", "1".getBytes(), -1, false);
+		client.publishLatest("c", "2".getBytes(), 0, false);
+
+		// Refused, or they would have been sent before it
+		assertEquals("c=2", client.await(1).get(0));
+		assertEquals(1, client.await(1).size());
+	}
+}
@@ -0,0 +1,295 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeliveryEngineTest {
+
+	private static final byte[] PAYLOAD = { 1, 2, 3 };
+
+	private RecordingConnection connection;
+
+	private OutboundQueue queue;
+
+	private DeliveryEngine engine;
+
+	@Before
+	public void setUp() {
+		connection = new RecordingConnection();
+		queue = new OutboundQueue(connection);
+		engine = new DeliveryEngine();
+		engine.setRetryInterval(60000);
+		engine.attach(queue);
+	}
+
+	private CompletableFuture<Void> publish(int qos) throws IOException {
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		engine.publish("t", PAYLOAD, 0, PAYLOAD.length, qos, false, done);
+		queue.flush();
+		return done;
+	}
+
+	/** The packages written since the last call. */
+	private List<byte[]> sent() {
+		List<byte[]> packets = connection.packets();
+		connection.clear();
+		return packets;
+	}
+
+	private static int type(byte[] packet) {
+		return (packet[0] & 0xFF) >> 4;
+	}
+
+	/** The id of a PUBLISH on topic "t", or of an acknowledgement. */
+	private static int id(byte[] packet) {
+		int at = type(packet) == Messages.PUBLISH ? 5 : 2;
+		return ((packet[at] & 0xFF) << 8) | (packet[at + 1] & 0xFF);
+	}
+
+	@Test
+	public void qos0IsWrittenRightAway() throws IOException {
+		CompletableFuture<Void> done = publish(Messages.AT_MOST_ONCE);
+		assertTrue(done.isDone());
+		List<byte[]> packets = sent();
+		assertEquals(1, packets.size());
+		assertEquals(Messages.PUBLISH, type(packets.get(0)));
+		assertEquals(0, engine.inflight());
+	}
+
+	@Test
+	public void qos0IsRefusedWhileTheQueueIsFull() throws IOException {
+		// Nothing is written, like behind a stalled write
+		queue.setBatching(8, 10000);
+		int packet = 2 + 3 + PAYLOAD.length;
+		for (int i = 0; i < 8 * OutboundQueue.MAX_STAGED_BATCHES / packet; i++)
+			engine.publish("t", PAYLOAD, 0, PAYLOAD.length,
+					Messages.AT_MOST_ONCE, false, null);
+
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		try {
+			engine.publish("t", PAYLOAD, 0, PAYLOAD.length,
+					Messages.AT_MOST_ONCE, false, done);
+			fail();
+		} catch (IOException e) {
+			assertFalse(done.isDone());
+		}
+		assertEquals(8 * OutboundQueue.MAX_STAGED_BATCHES, queue.size());
+	}
+
+	@Test
+	public void qos1CompletesOnPuback() throws IOException {
+		CompletableFuture<Void> done = publish(Messages.AT_LEAST_ONCE);
+		byte[] packet = sent().get(0);
+		assertEquals(Messages.PUBLISH, type(packet));
+		assertEquals(Messages.AT_LEAST_ONCE, (packet[0] >> 1) & 0x03);
+		assertFalse(done.isDone());
+		assertEquals(1, engine.inflight());
+
+		engine.acknowledged(Messages.PUBACK, id(packet));
+		assertTrue(done.isDone());
+		assertEquals(0, engine.inflight());
+	}
+
+	@Test
+	public void qos2ReleasesOnPubrecAndCompletesOnPubcomp()
+			throws IOException {
+		CompletableFuture<Void> done = publish(Messages.EXACTLY_ONCE);
+		int id = id(sent().get(0));
+
+		engine.acknowledged(Messages.PUBREC, id);
+		List<byte[]> packets = sent();
+		assertEquals(1, packets.size());
+		assertEquals(Messages.PUBREL, type(packets.get(0)));
+		assertEquals(id, id(packets.get(0)));
+		assertFalse(done.isDone());
+
+		engine.acknowledged(Messages.PUBCOMP, id);
+		assertTrue(done.isDone());
+		assertEquals(0, engine.inflight());
+	}
+
+	@Test
+	public void retransmitSetsDupAndResendsPubrel() throws IOException {
+		publish(Messages.AT_LEAST_ONCE);
+		publish(Messages.EXACTLY_ONCE);
+		List<byte[]> first = sent();
+		engine.acknowledged(Messages.PUBREC, id(first.get(1)));
+		sent();
+
+		engine.resume();
+		List<byte[]> again = sent();
+		assertEquals(2, again.size());
+		assertEquals(Messages.PUBLISH, type(again.get(0)));
+		assertTrue((again.get(0)[0] & 0x08) != 0);
+		assertEquals(id(first.get(0)), id(again.get(0)));
+		// Only the PUBREL once PUBREC came in
+		assertEquals(Messages.PUBREL, type(again.get(1)));
+	}
+
+	@Test
+	public void incomingQos1IsAcked() throws IOException {
+		assertTrue(engine.received(Messages.AT_LEAST_ONCE, 7));
+		List<byte[]> packets = sent();
+		assertEquals(Messages.PUBACK, type(packets.get(0)));
+		assertEquals(7, id(packets.get(0)));
+	}
+
+	@Test
+	public void incomingQos2IsPassedOnOnce() throws IOException {
+		assertTrue(engine.received(Messages.EXACTLY_ONCE, 9));
+		assertEquals(Messages.PUBREC, type(sent().get(0)));
+		// Redelivered before PUBREL, acknowledged again but not passed on
+		assertFalse(engine.received(Messages.EXACTLY_ONCE, 9));
+		assertEquals(Messages.PUBREC, type(sent().get(0)));
+
+		engine.acknowledged(Messages.PUBREL, 9);
+		byte[] pubcomp = sent().get(0);
+		assertEquals(Messages.PUBCOMP, type(pubcomp));
+		assertEquals(9, id(pubcomp));
+		// A new message may reuse the id
+		assertTrue(engine.received(Messages.EXACTLY_ONCE, 9));
+	}
+
+	@Test
+	public void windowHoldsBackTheRest() throws IOException {
+		engine.setMaxInflight(2);
+		for (int i = 0; i < 5; i++)
+			publish(Messages.AT_LEAST_ONCE);
+		List<byte[]> packets = sent();
+		assertEquals(2, packets.size());
+		assertEquals(2, engine.inflight());
+		assertEquals(3, engine.waiting());
+
+		engine.acknowledged(Messages.PUBACK, id(packets.get(0)));
+		queue.flush();
+		assertEquals(1, sent().size());
+		assertEquals(2, engine.inflight());
+		assertEquals(2, engine.waiting());
+	}
+
+	@Test
+	public void unknownAcksAreIgnored() throws IOException {
+		engine.acknowledged(Messages.PUBACK, 1234);
+		engine.acknowledged(Messages.PUBCOMP, 1234);
+		assertEquals(0, engine.inflight());
+		assertTrue(sent().isEmpty());
+	}
+
+	@Test
+	public void idsWrapAround() {
+		int first = engine.nextMessageId();
+		assertEquals(1, first);
+		for (int i = 2; i <= 65535; i++)
+			assertEquals(i, engine.nextMessageId());
+		assertEquals(1, engine.nextMessageId());
+	}
+
+	@Test
+	public void idsInFlightAreSkipped() throws IOException {
+		engine.setMaxInflight(10);
+		publish(Messages.AT_LEAST_ONCE); // Takes id 1
+		int id = id(sent().get(0));
+		for (int i = id + 1; i <= 65535; i++)
+			engine.nextMessageId();
+		// 1 is still waiting for its PUBACK
+		assertEquals(id + 1, engine.nextMessageId());
+	}
+
+	@Test
+	public void retransmitLeavesTheWheelFree() throws Exception {
+		engine.setRetryInterval(20);
+		publish(Messages.AT_LEAST_ONCE);
+		CountDownLatch writing = connection.hold();
+		assertTrue(writing.await(2, TimeUnit.SECONDS));
+
+		// The resend is stuck, other timers still fire
+		final CountDownLatch fired = new CountDownLatch(1);
+		TimerWheel.getDefault().schedule(new Runnable() {
+			@Override
+			public void run() {
+				fired.countDown();
+			}
+		}, 10);
+		try {
+			assertTrue(fired.await(2, TimeUnit.SECONDS));
+		} finally {
+			connection.release();
+		}
+		engine.clear(new IOException("Done"));
+	}
+
+	@Test(timeout = 20000)
+	public void windowNeverTakesEveryId() throws IOException {
+		engine.setMaxInflight(Integer.MAX_VALUE);
+		for (int i = 0; i < 65535; i++)
+			engine.publish("t", PAYLOAD, 0, PAYLOAD.length,
+					Messages.AT_LEAST_ONCE, false, null);
+		assertEquals(DeliveryEngine.MAX_INFLIGHT, engine.inflight());
+		assertEquals(1, engine.waiting());
+		// The one id left over is still found
+		engine.nextMessageId();
+	}
+
+	@Test
+	public void topicNameAndPublishTopicEncodeAlike() throws IOException {
+		PublishTopic topic = new PublishTopic("a/\u00e5");
+		for (int qos = Messages.AT_MOST_ONCE; qos <= Messages.EXACTLY_ONCE; qos++) {
+			for (int retain = 0; retain < 2; retain++) {
+				engine.publish(topic.name(), PAYLOAD, 0, PAYLOAD.length, qos,
+						retain == 1, null);
+				engine.publish(topic, PAYLOAD, 0, PAYLOAD.length, qos,
+						retain == 1, null);
+				queue.flush();
+				List<byte[]> packets = sent();
+				assertEquals(2, packets.size());
+
+				// Equal but for the message id
+				byte[] first = packets.get(0);
+				byte[] second = packets.get(1);
+				if (qos > Messages.AT_MOST_ONCE) {
+					int at = first.length - PAYLOAD.length - 2;
+					second[at] = first[at];
+					second[at + 1] = first[at + 1];
+				}
+				assertArrayEquals(first, second);
+
+				byte[] expected = new byte[Messages.publishLength(
+						topic.name(), PAYLOAD.length, qos)];
+				Messages.encodePublish(ByteBuffer.wrap(expected),
+						topic.name(), PAYLOAD, 0, PAYLOAD.length, qos, 0,
+						retain == 1);
+				assertEquals(expected.length, first.length);
+				assertEquals(expected[0], first[0]);
+			}
+		}
+	}
+}
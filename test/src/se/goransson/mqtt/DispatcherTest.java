@@ -0,0 +1,256 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import se.goransson.mqtt.Dispatcher.Overflow;
+
+public class DispatcherTest {
+
+	private Dispatcher dispatcher;
+
+	/** What the deliveries ran, guarded by itself. */
+	private final List<String> ran = new ArrayList<String>();
+
+	/** Released to let a held delivery finish. */
+	private final CountDownLatch gate = new CountDownLatch(1);
+
+	@After
+	public void tearDown() {
+		gate.countDown();
+		if (dispatcher != null)
+			dispatcher.shutdown();
+	}
+
+	private Runnable record(final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ran) {
+					ran.add(name);
+					ran.notifyAll();
+				}
+			}
+		};
+	}
+
+	private List<String> ran() {
+		synchronized (ran) {
+			return new ArrayList<String>(ran);
+		}
+	}
+
+	/** Dispatch a delivery that holds its thread until the gate opens. */
+	private void hold(String topic) throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		dispatcher.dispatch(topic, new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Wait until some number of deliveries have run, without dispatching
+	 * anything that a full queue could drop.
+	 */
+	private List<String> awaitRan(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		synchronized (ran) {
+			while (ran.size() < count) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					break;
+				ran.wait(wait);
+			}
+			return new ArrayList<String>(ran);
+		}
+	}
+
+	/** Wait until everything dispatched on a topic so far has run. */
+	private void drain(String topic) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		dispatcher.dispatch(topic, new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void inlineRunsOnTheCallingThread() {
+		final Thread[] thread = new Thread[1];
+		Dispatcher.inline().dispatch("t", new Runnable() {
+			@Override
+			public void run() {
+				thread[0] = Thread.currentThread();
+			}
+		});
+		assertSame(Thread.currentThread(), thread[0]);
+	}
+
+	@Test
+	public void orderedKeepsTheOrder() throws InterruptedException {
+		dispatcher = Dispatcher.ordered(16, Overflow.BLOCK);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			// Different topics, still one after the other
+			dispatcher.dispatch("t" + i % 7, record(Integer.toString(i)));
+			expected.add(Integer.toString(i));
+		}
+		drain("t");
+		assertEquals(expected, ran());
+	}
+
+	@Test
+	public void stripedKeepsTheOrderOfEachTopic() throws InterruptedException {
+		dispatcher = Dispatcher.striped(4, 16, Overflow.BLOCK);
+		final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+		final List<List<Thread>> threads = new ArrayList<List<Thread>>();
+		for (int t = 0; t < 16; t++) {
+			seen.add(new ArrayList<Integer>());
+			threads.add(new ArrayList<Thread>());
+		}
+
+		for (int i = 0; i < 200; i++) {
+			for (int t = 0; t < 16; t++) {
+				final int topic = t;
+				final int n = i;
+				dispatcher.dispatch("topic/" + t, new Runnable() {
+					@Override
+					public void run() {
+						synchronized (seen) {
+							seen.get(topic).add(n);
+							threads.get(topic).add(Thread.currentThread());
+						}
+					}
+				});
+			}
+		}
+		for (int t = 0; t < 16; t++)
+			drain("topic/" + t);
+
+		synchronized (seen) {
+			for (int t = 0; t < 16; t++) {
+				List<Integer> numbers = seen.get(t);
+				assertEquals(200, numbers.size());
+				for (int i = 0; i < 200; i++)
+					assertEquals(i, (int) numbers.get(i));
+				// A topic sticks to its thread
+				for (Thread thread : threads.get(t))
+					assertSame(threads.get(t).get(0), thread);
+				assertNotSame(Thread.currentThread(), threads.get(t).get(0));
+			}
+		}
+	}
+
+	@Test
+	public void dropNewestKeepsTheQueued() throws InterruptedException {
+		dispatcher = Dispatcher.ordered(2, Overflow.DROP_NEWEST);
+		hold("t");
+		dispatcher.dispatch("t", record("a"));
+		dispatcher.dispatch("t", record("b"));
+		dispatcher.dispatch("t", record("c"));
+		assertEquals(1, dispatcher.dropped());
+
+		gate.countDown();
+		assertEquals(Arrays.asList("a", "b"), awaitRan(2));
+	}
+
+	@Test
+	public void dropOldestMakesRoom() throws InterruptedException {
+		dispatcher = Dispatcher.ordered(2, Overflow.DROP_OLDEST);
+		hold("t");
+		dispatcher.dispatch("t", record("a"));
+		dispatcher.dispatch("t", record("b"));
+		dispatcher.dispatch("t", record("c"));
+		assertEquals(1, dispatcher.dropped());
+
+		gate.countDown();
+		assertEquals(Arrays.asList("b", "c"), awaitRan(2));
+	}
+
+	@Test
+	public void blockWaitsForRoom() throws InterruptedException {
+		dispatcher = Dispatcher.ordered(2, Overflow.BLOCK);
+		hold("t");
+		dispatcher.dispatch("t", record("a"));
+		dispatcher.dispatch("t", record("b"));
+
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatcher.dispatch("t", record("c"));
+			}
+		});
+		reader.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (reader.getState() != Thread.State.WAITING
+				&& System.currentTimeMillis() < deadline)
+			Thread.yield();
+		// Held up until the worker takes something
+		assertEquals(Thread.State.WAITING, reader.getState());
+
+		gate.countDown();
+		reader.join(5000);
+		drain("t");
+		assertEquals(Arrays.asList("a", "b", "c"), ran());
+		assertEquals(0, dispatcher.dropped());
+	}
+
+	@Test
+	public void failingListenerIsLoggedAndTheNextRuns()
+			throws InterruptedException {
+		dispatcher = Dispatcher.ordered(16, Overflow.BLOCK);
+		RecordingLogger logger = new RecordingLogger();
+		dispatcher.setLogger(logger);
+		dispatcher.dispatch("t", new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("Broken listener");
+			}
+		});
+		dispatcher.dispatch("t", record("after"));
+		drain("t");
+
+		assertEquals(Arrays.asList("after"), ran());
+		assertEquals(Arrays.asList("ERROR A listener failed"), logger.events());
+		assertTrue(logger.errors().get(0) instanceof IllegalStateException);
+	}
+}
@@ -0,0 +1,716 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A small MQTT broker running in the same process, for testing the client
+ * without a broker on the network: throughput, reconnects and backpressure.
+ *
+ * Clients connect over local TCP, see {@link #listen(int)}, or over an
+ * in-memory {@link PipeConnection}, see {@link #connect()}. It supports QoS
+ * 0, 1 and 2 in both directions, retained messages, wildcards, and
+ * persistent sessions whose unacknowledged messages are sent again on
+ * reconnect.
+ *
+ * For load tests it can publish messages itself at a given rate, see
+ * {@link #generate(String, int, int, int, int)}, delay everything it sends,
+ * drop incoming messages at random, and cut every connection at once.
+ *
+ * <pre>
+ * EmbeddedBroker broker = new EmbeddedBroker();
+ * client.connect(broker.connect(), "test");
+ * broker.generate("sensors", 100, 10000, 64, 0);
+ * </pre>
+ */
+public class EmbeddedBroker {
+
+	/** The sessions subscribed to each filter, with the QoS granted. */
+	private final TopicTree<ConcurrentHashMap<Session, Integer>> subscriptions = new TopicTree<ConcurrentHashMap<Session, Integer>>();
+
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	private final ConcurrentHashMap<String, Retained> retained = new ConcurrentHashMap<String, Retained>();
+
+	private final List<Link> links = new ArrayList<Link>();
+
+	private ServerSocket mServer;
+
+	private volatile long latency = 0;
+
+	private volatile double dropRate = 0;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Accept clients over TCP on the loopback interface.
+	 * 
+	 * @param port
+	 *            The port, or 0 for any free port.
+	 * @return The port.
+	 * @throws IOException
+	 */
+	public synchronized int listen(int port) throws IOException {
+		mServer = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		final ServerSocket server = mServer;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						Socket socket = server.accept();
+						serve(new TCPConnection(socket));
+					} catch (IOException e) {
+						return;
+					}
+				}
+			}
+		}, "EmbeddedBroker-accept");
+		thread.setDaemon(true);
+		thread.start();
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Connect to the broker over an in-memory pipe.
+	 * 
+	 * @return The client's end, to pass to
+	 *         {@link MQTT#connect(Connection, String)}.
+	 */
+	public Connection connect() {
+		PipeConnection[] ends = PipeConnection.pair();
+		serve(ends[1]);
+		return ends[0];
+	}
+
+	/**
+	 * Serve a client on a connection, read on a thread of its own.
+	 * 
+	 * @param connection
+	 */
+	public void serve(Connection connection) {
+		Link link = new Link(connection);
+		synchronized (links) {
+			links.add(link);
+		}
+		Thread thread = new Thread(link, "EmbeddedBroker-client");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param millis
+	 *            Delay everything the broker sends by this much.
+	 */
+	public void setLatency(long millis) {
+		latency = millis;
+	}
+
+	/**
+	 * @param rate
+	 *            The share of incoming PUBLISH packages to drop as if lost,
+	 *            between 0 and 1. They aren't acknowledged either.
+	 */
+	public void setDropRate(double rate) {
+		dropRate = rate;
+	}
+
+	/**
+	 * Cut every connection, as if the network failed. Sessions that aren't
+	 * clean are kept for the reconnect.
+	 */
+	public void disconnectAll() {
+		List<Link> all;
+		synchronized (links) {
+			all = new ArrayList<Link>(links);
+		}
+		for (int i = 0; i < all.size(); i++)
+			all.get(i).close();
+	}
+
+	/**
+	 * Stop listening and cut every connection.
+	 */
+	public synchronized void stop() {
+		if (mServer != null) {
+			try {
+				mServer.close();
+			} catch (IOException e) {
+			}
+		}
+		disconnectAll();
+	}
+
+	/**
+	 * Publish a message from the broker itself, to every matching
+	 * subscriber.
+	 * 
+	 * @param topic
+	 * @param payload
+	 * @param qos
+	 * @param retain
+	 */
+	public void publish(String topic, byte[] payload, int qos, boolean retain) {
+		if (retain) {
+			if (payload.length == 0)
+				retained.remove(topic);
+			else
+				retained.put(topic, new Retained(payload, qos));
+		}
+
+		// A session subscribed through several filters gets it once
+		List<ConcurrentHashMap<Session, Integer>> matches = subscriptions
+				.match(topic);
+		HashMap<Session, Integer> targets = new HashMap<Session, Integer>();
+		for (int i = 0; i < matches.size(); i++) {
+			for (Map.Entry<Session, Integer> entry : matches.get(i).entrySet()) {
+				Integer granted = targets.get(entry.getKey());
+				if (granted == null || granted < entry.getValue())
+					targets.put(entry.getKey(), entry.getValue());
+			}
+		}
+		for (Map.Entry<Session, Integer> entry : targets.entrySet())
+			entry.getKey().deliver(topic, payload,
+					Math.min(qos, entry.getValue()), false);
+	}
+
+	/**
+	 * Publish generated messages at a steady rate, round robin over a
+	 * number of topics.
+	 * 
+	 * @param prefix
+	 *            The topics are <code>prefix/0</code> to
+	 *            <code>prefix/(topics - 1)</code>.
+	 * @param topics
+	 *            The number of topics to spread the messages over.
+	 * @param rate
+	 *            Messages per second.
+	 * @param payloadSize
+	 * @param qos
+	 * @return The running load, stop it with {@link Load#stop()}.
+	 */
+	public Load generate(String prefix, int topics, int rate,
+			int payloadSize, int qos) {
+		Load load = new Load(prefix, topics, rate, new byte[payloadSize], qos);
+		Thread thread = new Thread(load, "EmbeddedBroker-load");
+		thread.setDaemon(true);
+		thread.start();
+		return load;
+	}
+
+	/** @return The PUBLISH packages received from clients. */
+	public long received() {
+		return received.get();
+	}
+
+	/** @return The PUBLISH packages sent to subscribers. */
+	public long delivered() {
+		return delivered.get();
+	}
+
+	/** @return The PUBLISH packages dropped, see setDropRate. */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of sessions, connected or not.
+	 */
+	public int sessions() {
+		return sessions.size();
+	}
+
+	private synchronized void subscribe(Session session, String filter,
+			int qos) {
+		ConcurrentHashMap<Session, Integer> subscribers = subscriptions
+				.get(filter);
+		if (subscribers == null) {
+			subscribers = new ConcurrentHashMap<Session, Integer>();
+			subscriptions.put(filter, subscribers);
+		}
+		subscribers.put(session, qos);
+		session.filters.add(filter);
+	}
+
+	private synchronized void unsubscribe(Session session, String filter) {
+		ConcurrentHashMap<Session, Integer> subscribers = subscriptions
+				.get(filter);
+		if (subscribers != null) {
+			subscribers.remove(session);
+			if (subscribers.isEmpty())
+				subscriptions.remove(filter);
+		}
+		session.filters.remove(filter);
+	}
+
+	/**
+	 * Send the retained messages matching a new subscription.
+	 */
+	private void sendRetained(Session session, String filter, int qos) {
+		TopicTree<Boolean> one = new TopicTree<Boolean>();
+		one.put(filter, Boolean.TRUE);
+		for (Map.Entry<String, Retained> entry : retained.entrySet()) {
+			if (!one.match(entry.getKey()).isEmpty())
+				session.deliver(entry.getKey(), entry.getValue().payload,
+						Math.min(qos, entry.getValue().qos), true);
+		}
+	}
+
+	private static class Retained {
+
+		final byte[] payload;
+		final int qos;
+
+		Retained(byte[] payload, int qos) {
+			this.payload = payload;
+			this.qos = qos;
+		}
+	}
+
+	/**
+	 * The state of a client id, kept between connections unless the
+	 * client asked for a clean session.
+	 */
+	private class Session {
+
+		final String clientId;
+
+		boolean clean;
+
+		/** The current connection, null while disconnected. */
+		volatile Link link;
+
+		final HashSet<String> filters = new HashSet<String>();
+
+		/** Sent packages waiting for PUBACK, PUBREC or PUBCOMP. */
+		final IntMap<byte[]> unacked = new IntMap<byte[]>();
+
+		/** Ids of received QoS 2 messages waiting for PUBREL. */
+		final IntMap<Boolean> inbound = new IntMap<Boolean>();
+
+		private int lastId = 0;
+
+		Session(String clientId, boolean clean) {
+			this.clientId = clientId;
+			this.clean = clean;
+		}
+
+		void deliver(String topic, byte[] payload, int qos, boolean retain) {
+			Link to;
+			byte[] packet = new byte[Messages.publishLength(topic,
+					payload.length, qos)];
+			synchronized (this) {
+				int msgId = 0;
+				if (qos > Messages.AT_MOST_ONCE) {
+					do {
+						lastId = lastId % 65535 + 1;
+					} while (unacked.containsKey(lastId));
+					msgId = lastId;
+				}
+				Messages.encodePublish(ByteBuffer.wrap(packet), topic,
+						payload, 0, payload.length, qos, msgId, retain);
+				if (qos > Messages.AT_MOST_ONCE)
+					unacked.put(msgId, packet);
+				to = link;
+			}
+			if (to != null) {
+				delivered.incrementAndGet();
+				to.send(packet);
+			}
+		}
+
+		/**
+		 * Send the unacknowledged packages again, on reconnect.
+		 */
+		void resend(final Link to) {
+			final List<byte[]> again = new ArrayList<byte[]>();
+			synchronized (this) {
+				unacked.forEach(new ObjIntConsumer<byte[]>() {
+					@Override
+					public void accept(byte[] packet, int msgId) {
+						again.add(packet);
+					}
+				});
+			}
+			for (int i = 0; i < again.size(); i++) {
+				byte[] packet = again.get(i).clone();
+				if ((packet[0] >> 4 & 0x0F) == Messages.PUBLISH)
+					packet[0] |= 0x08; // DUP
+				to.send(packet);
+			}
+		}
+	}
+
+	/**
+	 * One connection, read on its own thread.
+	 */
+	private class Link implements Runnable {
+
+		final Connection connection;
+
+		Session session;
+
+		private final PacketReader reader = new PacketReader();
+
+		private final PacketView view = new PacketView();
+
+		/** Packages waiting for the latency to pass, null until needed. */
+		private LinkedBlockingQueue<Delayed> delayed;
+
+		private volatile boolean closed = false;
+
+		Link(Connection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void run() {
+			try {
+				InputStream in = connection.getInputStream();
+				while (!closed && reader.fill(in) >= 0) {
+					while (reader.next())
+						handle(view.wrap(reader.buffer(), reader.offset(),
+								reader.length()));
+				}
+			} catch (IOException e) {
+				// The client is gone
+			} finally {
+				close();
+			}
+		}
+
+		private void handle(PacketView packet) throws IOException {
+			switch (packet.type()) {
+			case Messages.CONNECT:
+				connected(packet);
+				break;
+			case Messages.PUBLISH:
+				published(packet);
+				break;
+			case Messages.PUBACK:
+			case Messages.PUBCOMP:
+				synchronized (session) {
+					session.unacked.remove(packet.messageId());
+				}
+				break;
+			case Messages.PUBREC: {
+				byte[] pubrel = ack(Messages.PUBREL, packet.messageId());
+				synchronized (session) {
+					session.unacked.put(packet.messageId(), pubrel);
+				}
+				send(pubrel);
+				break;
+			}
+			case Messages.PUBREL:
+				synchronized (session) {
+					session.inbound.remove(packet.messageId());
+				}
+				send(ack(Messages.PUBCOMP, packet.messageId()));
+				break;
+			case Messages.SUBSCRIBE:
+				subscribed(packet);
+				break;
+			case Messages.UNSUBSCRIBE:
+				unsubscribed(packet);
+				break;
+			case Messages.PINGREQ:
+				send(new byte[] { (byte) (Messages.PINGRESP << 4), 0 });
+				break;
+			case Messages.DISCONNECT:
+				close();
+				break;
+			}
+		}
+
+		private void connected(PacketView packet) throws IOException {
+			// Protocol name, version, flags and keepalive, then the id
+			byte[] b = packet.array();
+			int i = packet.payloadOffset();
+			i += 2 + ((b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF));
+			boolean clean = (b[i + 1] & 0x02) != 0;
+			i += 4;
+			int len = (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+			String clientId = new String(b, i + 2, len, "UTF-8");
+
+			Session previous;
+			synchronized (EmbeddedBroker.this) {
+				previous = sessions.get(clientId);
+				if (previous != null && clean) {
+					dropSession(previous);
+					previous = null;
+				}
+				if (previous == null) {
+					session = new Session(clientId, clean);
+					sessions.put(clientId, session);
+				} else {
+					session = previous;
+					session.clean = clean;
+				}
+			}
+
+			// A client connecting again takes over the session
+			Link old = session.link;
+			session.link = this;
+			if (old != null)
+				old.close();
+
+			send(new byte[] { (byte) (Messages.CONNACK << 4), 2, 0, 0 });
+			if (previous != null)
+				session.resend(this);
+		}
+
+		private void published(PacketView packet) throws IOException {
+			if (dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate) {
+				dropped.incrementAndGet();
+				return;
+			}
+			received.incrementAndGet();
+
+			int qos = packet.qos();
+			if (qos == Messages.EXACTLY_ONCE) {
+				boolean seen;
+				synchronized (session) {
+					seen = session.inbound.put(packet.messageId(),
+							Boolean.TRUE) != null;
+				}
+				send(ack(Messages.PUBREC, packet.messageId()));
+				if (seen)
+					return; // Sent again, already passed on
+			} else if (qos == Messages.AT_LEAST_ONCE) {
+				send(ack(Messages.PUBACK, packet.messageId()));
+			}
+
+			ByteBuffer payload = packet.payload();
+			byte[] copy = new byte[payload.remaining()];
+			payload.get(copy);
+			publish(packet.topic(), copy, qos, packet.retain());
+		}
+
+		private void subscribed(PacketView packet) throws IOException {
+			byte[] b = packet.array();
+			int i = packet.payloadOffset();
+			int end = i + packet.payloadLength();
+			List<String> filters = new ArrayList<String>();
+			List<Integer> granted = new ArrayList<Integer>();
+			while (i < end) {
+				int len = (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+				String filter = new String(b, i + 2, len, "UTF-8");
+				int qos = Math.min(b[i + 2 + len] & 0x03, Messages.EXACTLY_ONCE);
+				i += 2 + len + 1;
+				filters.add(filter);
+				granted.add(qos);
+				subscribe(session, filter, qos);
+			}
+
+			ByteBuffer suback = ByteBuffer.allocate(5 + 2 + filters.size());
+			suback.put((byte) (Messages.SUBACK << 4));
+			Messages.putRemainingLength(suback, 2 + filters.size());
+			suback.put((byte) (packet.messageId() >> 8));
+			suback.put((byte) packet.messageId());
+			for (int n = 0; n < granted.size(); n++)
+				suback.put((byte) (int) granted.get(n));
+			byte[] ack = new byte[suback.position()];
+			System.arraycopy(suback.array(), 0, ack, 0, ack.length);
+			send(ack);
+
+			for (int n = 0; n < filters.size(); n++)
+				sendRetained(session, filters.get(n), granted.get(n));
+		}
+
+		private void unsubscribed(PacketView packet) throws IOException {
+			byte[] b = packet.array();
+			int i = packet.payloadOffset();
+			int end = i + packet.payloadLength();
+			while (i < end) {
+				int len = (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+				unsubscribe(session, new String(b, i + 2, len, "UTF-8"));
+				i += 2 + len;
+			}
+			send(ack(Messages.UNSUBACK, packet.messageId()));
+		}
+
+		private byte[] ack(int type, int msgId) {
+			ByteBuffer dst = ByteBuffer.allocate(Messages.ACK_LENGTH);
+			Messages.encodeAck(dst, type, msgId);
+			return dst.array();
+		}
+
+		/**
+		 * Write a package, after the latency if one is set.
+		 */
+		void send(byte[] packet) {
+			if (closed)
+				return;
+			long delay = latency;
+			if (delay <= 0 && delayed == null) {
+				try {
+					synchronized (this) {
+						connection.write(ByteBuffer.wrap(packet));
+					}
+				} catch (IOException e) {
+					close();
+				}
+				return;
+			}
+
+			synchronized (this) {
+				if (delayed == null) {
+					// Keeps the order, every package waits as long
+					delayed = new LinkedBlockingQueue<Delayed>();
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							writeDelayed();
+						}
+					}, "EmbeddedBroker-latency");
+					thread.setDaemon(true);
+					thread.start();
+				}
+			}
+			delayed.add(new Delayed(System.nanoTime() + delay * 1000000L,
+					packet));
+		}
+
+		private void writeDelayed() {
+			try {
+				while (!closed) {
+					Delayed next = delayed.take();
+					long wait = next.due - System.nanoTime();
+					if (wait > 0)
+						LockSupport.parkNanos(wait);
+					synchronized (this) {
+						connection.write(ByteBuffer.wrap(next.packet));
+					}
+				}
+			} catch (InterruptedException e) {
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void close() {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				connection.close();
+			} catch (IOException e) {
+			}
+			synchronized (links) {
+				links.remove(this);
+			}
+
+			if (session != null && session.link == this) {
+				session.link = null;
+				if (session.clean) {
+					synchronized (EmbeddedBroker.this) {
+						dropSession(session);
+					}
+				}
+			}
+		}
+	}
+
+	/** Must be called while holding the broker's lock. */
+	private void dropSession(Session session) {
+		sessions.remove(session.clientId, session);
+		for (String filter : new ArrayList<String>(session.filters))
+			unsubscribe(session, filter);
+	}
+
+	private static class Delayed {
+
+		final long due;
+		final byte[] packet;
+
+		Delayed(long due, byte[] packet) {
+			this.due = due;
+			this.packet = packet;
+		}
+	}
+
+	/**
+	 * Messages published by the broker at a steady rate.
+	 */
+	public class Load implements Runnable {
+
+		private final String prefix;
+		private final int topics;
+		private final int rate;
+		private final byte[] payload;
+		private final int qos;
+
+		private final AtomicLong sent = new AtomicLong();
+
+		private volatile boolean stopped = false;
+
+		Load(String prefix, int topics, int rate, byte[] payload, int qos) {
+			this.prefix = prefix;
+			this.topics = Math.max(topics, 1);
+			this.rate = Math.max(rate, 1);
+			this.payload = payload;
+			this.qos = qos;
+		}
+
+		@Override
+		public void run() {
+			String[] names = new String[topics];
+			for (int i = 0; i < topics; i++)
+				names[i] = prefix + "/" + i;
+
+			long interval = 1000000000L / rate;
+			long next = System.nanoTime();
+			long n = 0;
+			while (!stopped) {
+				publish(names[(int) (n++ % topics)], payload, qos, false);
+				sent.incrementAndGet();
+				next += interval;
+				long wait = next - System.nanoTime();
+				if (wait > 0)
+					LockSupport.parkNanos(wait);
+			}
+		}
+
+		/** @return The messages published so far. */
+		public long sent() {
+			return sent.get();
+		}
+
+		public void stop() {
+			stopped = true;
+		}
+	}
+}
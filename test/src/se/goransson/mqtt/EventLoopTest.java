@@ -0,0 +1,157 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.IllegalSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class EventLoopTest {
+
+	/** A selector whose every select fails. */
+	private static class FailingSelector extends AbstractSelector {
+
+		final AtomicInteger selects = new AtomicInteger();
+
+		FailingSelector() {
+			super(SelectorProvider.provider());
+		}
+
+		@Override
+		protected void implCloseSelector() {
+		}
+
+		@Override
+		protected SelectionKey register(AbstractSelectableChannel ch,
+				int ops, Object att) {
+			throw new IllegalSelectorException();
+		}
+
+		@Override
+		public Set<SelectionKey> keys() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public Set<SelectionKey> selectedKeys() {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public int selectNow() throws IOException {
+			return select();
+		}
+
+		@Override
+		public int select(long timeout) throws IOException {
+			return select();
+		}
+
+		@Override
+		public int select() throws IOException {
+			selects.incrementAndGet();
+			throw new IOException("Expected by the test");
+		}
+
+		@Override
+		public Selector wakeup() {
+			return this;
+		}
+	}
+
+	@Test
+	public void runsTasksOnItsThread() throws Exception {
+		final EventLoop loop = new EventLoop("EventLoopTest");
+		try {
+			final CountDownLatch ran = new CountDownLatch(1);
+			final boolean[] inLoop = { false };
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					inLoop[0] = loop.inEventLoop();
+					ran.countDown();
+				}
+			});
+			assertTrue(ran.await(2, TimeUnit.SECONDS));
+			assertTrue(inLoop[0]);
+		} finally {
+			loop.stop();
+		}
+	}
+
+	@Test
+	public void failingTaskDoesNotStopTheLoop() throws Exception {
+		EventLoop loop = new EventLoop("EventLoopTest");
+		try {
+			RecordingLogger logger = new RecordingLogger();
+			loop.setLogger(logger);
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					throw new IllegalStateException("Expected by the test");
+				}
+			});
+			final CountDownLatch after = new CountDownLatch(1);
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					after.countDown();
+				}
+			});
+			assertTrue(after.await(2, TimeUnit.SECONDS));
+			assertEquals(1, logger.await(1).size());
+		} finally {
+			loop.stop();
+		}
+	}
+
+	@Test
+	public void givesUpOnAFailingSelector() throws Exception {
+		FailingSelector selector = new FailingSelector();
+		EventLoop loop = new EventLoop("EventLoopTest", selector);
+
+		// Once it has given up, tasks run on the caller
+		long deadline = System.currentTimeMillis() + 5000;
+		final Thread[] ranOn = new Thread[1];
+		while (ranOn[0] != Thread.currentThread()
+				&& System.currentTimeMillis() < deadline) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					ranOn[0] = Thread.currentThread();
+				}
+			});
+			Thread.sleep(5);
+		}
+		assertEquals(Thread.currentThread(), ranOn[0]);
+		assertEquals(EventLoop.MAX_SELECT_FAILURES, selector.selects.get());
+	}
+}
@@ -0,0 +1,101 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameDispatcherTest {
+
+	private final List<String> delivered = new ArrayList<String>();
+
+	private Runnable delivery(final String value) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				delivered.add(value);
+			}
+		};
+	}
+
+	@Test
+	public void drainsInOrderWithinBudget() {
+		FrameDispatcher dispatcher = new FrameDispatcher(null, 16, false);
+		for (int i = 0; i < 10; i++)
+			dispatcher.dispatch("t", delivery("" + i));
+		assertEquals(10, dispatcher.size());
+
+		assertEquals(4, dispatcher.drain(4));
+		assertEquals(6, dispatcher.size());
+		assertEquals(6, dispatcher.drain(100));
+		assertEquals(0, dispatcher.drain(100));
+		for (int i = 0; i < 10; i++)
+			assertEquals("" + i, delivered.get(i));
+	}
+
+	@Test
+	public void dropsWhileFull() {
+		FrameDispatcher dispatcher = new FrameDispatcher(null, 4, false);
+		for (int i = 0; i < 6; i++)
+			dispatcher.dispatch("t", delivery("" + i));
+		assertEquals(2, dispatcher.dropped());
+		assertEquals(4, dispatcher.drain(100));
+		assertEquals("3", delivered.get(3));
+	}
+
+	@Test
+	public void coalescingKeepsTheNewest() {
+		FrameDispatcher dispatcher = new FrameDispatcher(null, 4, true);
+		dispatcher.dispatch("a", delivery("a1"));
+		dispatcher.dispatch("b", delivery("b1"));
+		dispatcher.dispatch("a", delivery("a2"));
+		dispatcher.dispatch("a", delivery("a3"));
+		assertEquals(2, dispatcher.dropped());
+
+		assertEquals(2, dispatcher.drain(100));
+		assertEquals("a3", delivered.get(0));
+		assertEquals("b1", delivered.get(1));
+
+		// A topic can be queued again once delivered
+		dispatcher.dispatch("a", delivery("a4"));
+		assertEquals(1, dispatcher.drain(100));
+		assertEquals("a4", delivered.get(2));
+	}
+
+	@Test
+	public void failingDeliveryDoesNotStopTheRest() {
+		FrameDispatcher dispatcher = new FrameDispatcher(null, 4, false);
+		RecordingLogger logger = new RecordingLogger();
+		dispatcher.setLogger(logger);
+		dispatcher.dispatch("t", new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("Expected by the test");
+			}
+		});
+		dispatcher.dispatch("t", delivery("after"));
+		assertEquals(2, dispatcher.drain(100));
+		assertEquals("after", delivered.get(0));
+		assertEquals(1, logger.errors().size());
+		assertTrue(logger.events().get(0).startsWith("ERROR"));
+	}
+}
@@ -0,0 +1,126 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	private final Histogram histogram = new Histogram();
+
+	@Test
+	public void emptyReadsZero() {
+		assertEquals(0, histogram.count());
+		assertEquals(0, histogram.mean());
+		assertEquals(0, histogram.max());
+		assertEquals(0, histogram.percentile(99));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		for (int i = 0; i < 8; i++)
+			histogram.record(i);
+		assertEquals(8, histogram.count());
+		assertEquals(3, histogram.mean());
+		assertEquals(7, histogram.max());
+		assertEquals(3, histogram.percentile(50));
+		assertEquals(0, histogram.percentile(0));
+		assertEquals(7, histogram.percentile(100));
+	}
+
+	@Test
+	public void percentilesAreWithinAnEighth() {
+		long[] values = { 8, 9, 15, 16, 17, 100, 1000, 12345, 1000000007L,
+				Long.MAX_VALUE / 3, Long.MAX_VALUE - 1 };
+		for (long value : values) {
+			Histogram h = new Histogram();
+			h.record(value);
+			h.record(Long.MAX_VALUE);
+			// The end of the bucket, unless that's past the largest value
+			long p50 = h.percentile(50);
+			assertTrue(value + " read as " + p50, p50 >= value);
+			assertTrue(value + " read as " + p50, p50 - value <= value / 8);
+		}
+	}
+
+	@Test
+	public void percentileIsCappedByTheMax() {
+		histogram.record(1000);
+		assertEquals(1000, histogram.percentile(50));
+		assertEquals(1000, histogram.percentile(100));
+	}
+
+	@Test
+	public void percentilesSplitTheValues() {
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+		assertEquals(1000, histogram.count());
+		assertEquals(500500, histogram.mean());
+		assertEquals(1000000, histogram.max());
+		assertWithin(500000, histogram.percentile(50));
+		assertWithin(990000, histogram.percentile(99));
+		assertWithin(999000, histogram.percentile(99.9));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(expected + " read as " + actual, actual >= expected
+				&& actual - expected <= expected / 8);
+	}
+
+	@Test
+	public void negativeValuesCountAsZero() {
+		histogram.record(-5);
+		assertEquals(1, histogram.count());
+		assertEquals(0, histogram.max());
+		assertEquals(0, histogram.percentile(100));
+	}
+
+	@Test
+	public void resetForgetsEverything() {
+		histogram.record(100);
+		histogram.reset();
+		assertEquals(0, histogram.count());
+		assertEquals(0, histogram.max());
+		assertEquals(0, histogram.percentile(50));
+		histogram.record(3);
+		assertEquals(3, histogram.percentile(50));
+	}
+
+	@Test
+	public void concurrentRecordsAreAllCounted() throws InterruptedException {
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final long base = t * 1000000L;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++)
+						histogram.record(base + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(40000, histogram.count());
+		assertEquals(3009999, histogram.max());
+		assertEquals(3009999, histogram.percentile(100));
+	}
+}
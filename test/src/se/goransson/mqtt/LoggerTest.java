@@ -0,0 +1,179 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import se.goransson.mqtt.Logger.Level;
+
+public class LoggerTest {
+
+	/** Collects the output, the first write waits until released. */
+	private static class Gate extends OutputStream {
+
+		final CountDownLatch entered = new CountDownLatch(1);
+
+		final CountDownLatch released = new CountDownLatch(1);
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			entered.countDown();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			synchronized (out) {
+				out.write(b, off, len);
+			}
+		}
+
+		int lines() {
+			synchronized (out) {
+				String text = out.toString();
+				int lines = 0;
+				for (int i = 0; i < text.length(); i++)
+					if (text.charAt(i) == '\n')
+						lines++;
+				return lines;
+			}
+		}
+
+		String text() {
+			synchronized (out) {
+				return out.toString();
+			}
+		}
+	}
+
+	private Logger logger;
+
+	@After
+	public void tearDown() {
+		if (logger != null)
+			logger.shutdown();
+	}
+
+	private static void awaitLines(Gate gate, int lines)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (gate.lines() < lines && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(lines, gate.lines());
+	}
+
+	@Test
+	public void dropsWhileFull() throws InterruptedException {
+		Gate gate = new Gate();
+		logger = Logger.async(new PrintStream(gate), Level.INFO, 4);
+
+		// The printing thread holds on to the first event
+		logger.log(Level.INFO, "event {2}", 0);
+		assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+
+		// Three more fit, the rest are dropped without waiting
+		for (int i = 1; i < 10; i++)
+			logger.log(Level.INFO, "event {2}", i);
+		assertEquals(6, logger.dropped());
+
+		gate.released.countDown();
+		awaitLines(gate, 4);
+		String text = gate.text();
+		for (int i = 0; i < 4; i++)
+			assertTrue(text.contains("event " + i + "\n"));
+		assertFalse(text.contains("event 4"));
+
+		// Room again once printed
+		logger.log(Level.INFO, "event {2}", 10);
+		awaitLines(gate, 5);
+		assertTrue(gate.text().contains("event 10\n"));
+		assertEquals(6, logger.dropped());
+	}
+
+	@Test
+	public void keepsEveryEventFromManyThreads() throws InterruptedException {
+		final Gate gate = new Gate();
+		gate.released.countDown();
+		logger = Logger.async(new PrintStream(gate), Level.INFO, 8192);
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++)
+						logger.log(Level.INFO, "event {2}", i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		awaitLines(gate, 4000);
+		assertEquals(0, logger.dropped());
+	}
+
+	@Test
+	public void shutdownPrintsWhatIsWaiting() throws InterruptedException {
+		Gate gate = new Gate();
+		logger = Logger.async(new PrintStream(gate), Level.INFO, 16);
+		logger.log(Level.INFO, "first");
+		assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+		logger.log(Level.INFO, "second");
+		logger.log(Level.INFO, "third");
+
+		logger.shutdown();
+		gate.released.countDown();
+		awaitLines(gate, 3);
+		assertTrue(gate.text().endsWith("third\n"));
+	}
+
+	@Test
+	public void levelsBelowAreSkipped() throws InterruptedException {
+		Gate gate = new Gate();
+		gate.released.countDown();
+		logger = Logger.async(new PrintStream(gate), Level.WARN, 16);
+		assertFalse(logger.isEnabled(Level.INFO));
+		assertTrue(logger.isEnabled(Level.ERROR));
+		assertFalse(logger.isEnabled(Level.OFF));
+
+		logger.log(Level.INFO, "skipped");
+		logger.log(Level.WARN, "kept");
+		awaitLines(gate, 1);
+		assertTrue(gate.text().endsWith("kept\n"));
+	}
+}
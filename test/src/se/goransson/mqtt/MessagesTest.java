@@ -0,0 +1,138 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * The expected packages are what the encoder that built them with streams,
+ * before the ByteBuffer encoders, wrote for the same input.
+ */
+public class MessagesTest {
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++)
+			bytes[i] = (byte) values[i];
+		return bytes;
+	}
+
+	@Test
+	public void connectMatchesTheLegacyEncoder() throws IOException {
+		assertArrayEquals(bytes(16, 20, 0, 6, 77, 81, 73, 115, 100, 112, 3,
+				2, 0, 10, 0, 6, 99, 108, 105, 101, 110, 116),
+				Messages.connect("client"));
+	}
+
+	@Test
+	public void emptyPackagesMatchTheLegacyEncoder() throws IOException {
+		assertArrayEquals(bytes(-32, 0), Messages.disconnect());
+		assertArrayEquals(bytes(-64, 0), Messages.ping());
+	}
+
+	@Test
+	public void publishMatchesTheLegacyEncoder() throws IOException {
+		assertArrayEquals(bytes(48, 8, 0, 3, 97, 47, 98, 1, 2, 3),
+				Messages.publish("a/b", bytes(1, 2, 3)));
+	}
+
+	@Test
+	public void longRemainingLengthMatchesTheLegacyEncoder()
+			throws IOException {
+		byte[] packet = Messages.publish("t", new byte[200]);
+		assertEquals(206, packet.length);
+		assertArrayEquals(bytes(48, -53, 1, 0, 1, 116),
+				Arrays.copyOf(packet, 6));
+	}
+
+	@Test
+	public void subscribeMatchesTheLegacyEncoder() throws IOException {
+		assertArrayEquals(bytes(-126, 8, 1, 2, 0, 3, 97, 47, 43, 1),
+				Messages.subscribe(258, "a/+", 1));
+	}
+
+	@Test
+	public void unsubscribeMatchesTheLegacyEncoder() throws IOException {
+		assertArrayEquals(bytes(-94, 10, 0, 7, 0, 1, 97, 0, 3, 98, 47, 99),
+				Messages.unsubscribe(7, "a", "b/c"));
+	}
+
+	@Test
+	public void packedSubscribeTakesARange() {
+		String[] topics = { "skip", "a", "b/c" };
+		int[] qos = { 0, 1, 2 };
+		ByteBuffer dst = ByteBuffer.allocate(Messages.subscribeLength(topics,
+				1, 3));
+		Messages.encodeSubscribe(dst, 5, topics, qos, 1, 3);
+		assertEquals(0, dst.remaining());
+		assertArrayEquals(bytes(-126, 12, 0, 5, 0, 1, 97, 1, 0, 3, 98, 47, 99,
+				2), dst.array());
+	}
+
+	@Test
+	public void publishWithIdCarriesIt() {
+		byte[] payload = bytes(9, 9, 1, 2, 9);
+		ByteBuffer dst = ByteBuffer.allocate(Messages.publishLength("a", 2,
+				Messages.AT_LEAST_ONCE));
+		Messages.encodePublish(dst, "a", payload, 2, 2,
+				Messages.AT_LEAST_ONCE, 0x0102, true);
+		assertEquals(0, dst.remaining());
+		assertArrayEquals(bytes(51, 7, 0, 1, 97, 1, 2, 1, 2), dst.array());
+	}
+
+	@Test
+	public void topicsAreEncodedAsUtf8() {
+		String topic = "r\u00e4ksm\u00f6rg\u00e5s/\u20ac";
+		assertEquals(topic.getBytes(StandardCharsets.UTF_8).length,
+				Messages.utf8Length(topic));
+		ByteBuffer dst = ByteBuffer.allocate(Messages.publishLength(topic, 0,
+				Messages.AT_MOST_ONCE));
+		Messages.encodePublish(dst, topic, new byte[0], 0, 0,
+				Messages.AT_MOST_ONCE, 0, false);
+		assertEquals(topic, Messages.decode(dst.array()).variableHeader
+				.get("topic_name"));
+	}
+
+	@Test
+	public void publishTopicEncodesLikeTheName() {
+		byte[] payload = bytes(1, 2, 3);
+		for (int qos = 0; qos <= 2; qos++) {
+			for (String name : new String[] { "a/b", "\u00e5/\u20ac" }) {
+				ByteBuffer expected = ByteBuffer.allocate(Messages
+						.publishLength(name, payload.length, qos));
+				Messages.encodePublish(expected, name, payload, 0,
+						payload.length, qos, 7, qos == 1);
+
+				PublishTopic topic = new PublishTopic(name);
+				assertEquals(expected.capacity(), Messages.publishLength(
+						topic, payload.length, qos));
+				ByteBuffer actual = ByteBuffer.allocate(expected.capacity());
+				Messages.encodePublish(actual, topic, payload, 0,
+						payload.length, qos, 7, qos == 1);
+				assertArrayEquals(expected.array(), actual.array());
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.SortedMap;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+	private final Metrics metrics = new Metrics();
+
+	@Test
+	public void snapshotHasCountersAndLatencies() {
+		metrics.sent(Messages.PUBLISH, 10);
+		metrics.sent(Messages.PUBLISH, 20);
+		metrics.received(Messages.PUBACK, 4);
+		metrics.reconnected();
+		for (int i = 1; i <= 100; i++)
+			metrics.callback.record(i * 1000L);
+
+		SortedMap<String, Long> values = metrics.snapshot();
+		assertEquals(2, (long) values.get("packets.out.PUBLISH"));
+		assertEquals(30, (long) values.get("bytes.out.PUBLISH"));
+		assertEquals(30, (long) values.get("bytes.out"));
+		assertEquals(1, (long) values.get("packets.in.PUBACK"));
+		assertEquals(4, (long) values.get("bytes.in"));
+		assertEquals(1, (long) values.get("reconnects"));
+		assertEquals(100, (long) values.get("latency.callback.count"));
+		assertEquals(100000, (long) values.get("latency.callback.max"));
+		long p50 = values.get("latency.callback.p50");
+		assertTrue(p50 >= 50000 && p50 <= 50000 + 50000 / 8);
+		assertEquals(0, (long) values.get("latency.ping.count"));
+	}
+
+	@Test
+	public void gaugesAreReadOnEverySnapshot() {
+		final long[] length = { 3 };
+		metrics.gauge("queue.length", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return length[0];
+			}
+		});
+		assertEquals(3, (long) metrics.snapshot().get("queue.length"));
+		length[0] = 5;
+		assertEquals(5, (long) metrics.snapshot().get("queue.length"));
+	}
+
+	@Test
+	public void resetClearsCountersAndLatencies() {
+		metrics.sent(Messages.PUBLISH, 10);
+		metrics.encode.record(100);
+		metrics.reset();
+		SortedMap<String, Long> values = metrics.snapshot();
+		assertEquals(0, (long) values.get("packets.out.PUBLISH"));
+		assertEquals(0, (long) values.get("latency.encode.count"));
+	}
+
+	@Test
+	public void registeredWithJmx() throws Exception {
+		metrics.sent(Messages.SUBSCRIBE, 12);
+		ObjectName name = metrics.register("MetricsTest");
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(1L, server.getAttribute(name,
+					"packets.out.SUBSCRIBE"));
+			server.invoke(name, "reset", null, null);
+			assertEquals(0L, server.getAttribute(name,
+					"packets.out.SUBSCRIBE"));
+		} finally {
+			metrics.unregister();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NIOConnectionTest {
+
+	/** More than the socket buffers on both ends can hold. */
+	private static final int TOTAL = 32 * 1024 * 1024;
+
+	private static final int PACKAGE = 65536;
+
+	private EventLoop loop;
+
+	private ServerSocket server;
+
+	private Socket peer;
+
+	private NIOConnection connection;
+
+	private OutboundQueue queue;
+
+	@Before
+	public void setUp() throws IOException {
+		loop = new EventLoop("NIOConnectionTest");
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		server.setReceiveBufferSize(16384);
+		connection = new NIOConnection(InetAddress.getLoopbackAddress(),
+				server.getLocalPort(), loop);
+		peer = server.accept();
+		connection.start(new Connection.Receiver() {
+			@Override
+			public void received(ReadableByteChannel channel) {
+			}
+
+			@Override
+			public void closed(IOException cause) {
+			}
+		});
+		connection.setMaxBuffered(PACKAGE);
+		queue = new OutboundQueue(connection);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		connection.close();
+		peer.close();
+		server.close();
+		loop.stop();
+	}
+
+	/** Write more than the network takes while the peer doesn't read. */
+	private List<CompletableFuture<Void>> fill() throws IOException {
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		byte[] payload = new byte[PACKAGE];
+		for (int i = 0; i < TOTAL / PACKAGE; i++) {
+			CompletableFuture<Void> done = new CompletableFuture<Void>();
+			synchronized (queue) {
+				queue.reserve(PACKAGE).put(payload);
+				queue.completeOnWrite(done);
+				queue.commit();
+			}
+			futures.add(done);
+			queue.flush();
+		}
+		return futures;
+	}
+
+	private Thread throttled(final AtomicReference<Throwable> result) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connection.throttle();
+				} catch (Throwable e) {
+					result.set(e);
+				}
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void writtenOnlyOnceSent() throws Exception {
+		List<CompletableFuture<Void>> futures = fill();
+		assertTrue(connection.buffered() > PACKAGE);
+		assertFalse(futures.get(futures.size() - 1).isDone());
+
+		AtomicReference<Throwable> result = new AtomicReference<Throwable>();
+		Thread publisher = throttled(result);
+		publisher.join(200);
+		assertTrue("Not held back", publisher.isAlive());
+
+		// Reading it all lets everything through
+		InputStream in = peer.getInputStream();
+		byte[] chunk = new byte[65536];
+		long read = 0;
+		while (read < TOTAL) {
+			int n = in.read(chunk);
+			assertTrue(n > 0);
+			read += n;
+		}
+
+		publisher.join(5000);
+		assertFalse(publisher.isAlive());
+		assertEquals(null, result.get());
+		for (int i = 0; i < futures.size(); i++)
+			futures.get(i).get(5, TimeUnit.SECONDS);
+		assertEquals(0, connection.buffered());
+	}
+
+	@Test
+	public void closingFailsWhatIsQueued() throws Exception {
+		List<CompletableFuture<Void>> futures = fill();
+		AtomicReference<Throwable> result = new AtomicReference<Throwable>();
+		Thread publisher = throttled(result);
+		publisher.join(200);
+		assertTrue(publisher.isAlive());
+
+		connection.close();
+		publisher.join(2000);
+		assertFalse(publisher.isAlive());
+		assertTrue(result.get() instanceof IOException);
+		assertTrue(futures.get(futures.size() - 1)
+				.isCompletedExceptionally());
+	}
+}
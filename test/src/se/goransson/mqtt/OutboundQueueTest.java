@@ -0,0 +1,284 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+	private RecordingConnection connection;
+
+	private OutboundQueue queue;
+
+	@Before
+	public void setUp() {
+		connection = new RecordingConnection();
+		queue = new OutboundQueue(connection);
+	}
+
+	/** A PUBLISH package of the given length, filled with a marker. */
+	private static byte[] packet(int length, int marker) {
+		byte[] packet = new byte[length];
+		packet[0] = (byte) (Messages.PUBLISH << 4);
+		packet[1] = (byte) (length - 2);
+		for (int i = 2; i < length; i++)
+			packet[i] = (byte) marker;
+		return packet;
+	}
+
+	private boolean add(byte[] packet) {
+		synchronized (queue) {
+			queue.reserve(packet.length).put(packet);
+			return queue.commit();
+		}
+	}
+
+	@Test
+	public void withoutLingerEveryPackageFlushes() {
+		assertTrue(add(packet(10, 1)));
+		assertTrue(add(packet(10, 2)));
+	}
+
+	@Test
+	public void lingerBatchesUntilFull() throws IOException {
+		queue.setBatching(100, 10000);
+		for (int i = 0; i < 9; i++)
+			assertFalse(add(packet(10, i)));
+		assertEquals(90, queue.size());
+		assertTrue(add(packet(10, 9)));
+
+		queue.flush();
+		assertEquals(1, connection.writes().size());
+		assertEquals(100, connection.writes().get(0).length);
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void stagingIsBounded() {
+		queue.setBatching(100, 10000);
+		int limit = 100 * OutboundQueue.MAX_STAGED_BATCHES;
+		synchronized (queue) {
+			// However large, the first package is let in
+			assertTrue(queue.hasRoom(limit * 2));
+		}
+		for (int i = 0; i < limit / 10 - 1; i++)
+			add(packet(10, i));
+		synchronized (queue) {
+			assertTrue(queue.hasRoom(10));
+			assertFalse(queue.hasRoom(11));
+		}
+	}
+
+	@Test
+	public void lingerFlushesOnItsOwn() throws Exception {
+		queue.setBatching(1000, 20);
+		assertFalse(add(packet(10, 1)));
+		long deadline = System.currentTimeMillis() + 2000;
+		while (connection.writes().isEmpty()
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(1, connection.writes().size());
+	}
+
+	@Test
+	public void lingerFlushLeavesTheWheelFree() throws Exception {
+		CountDownLatch writing = connection.hold();
+		queue.setBatching(1000, 20);
+		assertFalse(add(packet(10, 1)));
+		assertTrue(writing.await(2, TimeUnit.SECONDS));
+
+		// The write is stuck, other timers still fire
+		final CountDownLatch fired = new CountDownLatch(1);
+		TimerWheel.getDefault().schedule(new Runnable() {
+			@Override
+			public void run() {
+				fired.countDown();
+			}
+		}, 10);
+		try {
+			assertTrue(fired.await(2, TimeUnit.SECONDS));
+		} finally {
+			connection.release();
+		}
+		long deadline = System.currentTimeMillis() + 2000;
+		while (connection.writes().isEmpty()
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(1, connection.writes().size());
+	}
+
+	@Test
+	public void batchKeepsOrder() throws IOException {
+		byte[] a = packet(5, 1), b = packet(120, 2), c = packet(7, 3);
+		add(a);
+		add(b);
+		add(c);
+		queue.flush();
+
+		List<byte[]> packets = connection.packets();
+		assertEquals(3, packets.size());
+		assertArrayEquals(a, packets.get(0));
+		assertArrayEquals(b, packets.get(1));
+		assertArrayEquals(c, packets.get(2));
+		assertEquals(1, connection.writes().size());
+	}
+
+	@Test
+	public void growsPastInitialCapacity() throws IOException {
+		byte[] big = packet(100000, 7);
+		add(packet(10, 1));
+		synchronized (queue) {
+			queue.reserve(big.length).put(big);
+			queue.commit();
+		}
+		queue.flush();
+		assertEquals(100010, connection.bytes().length);
+	}
+
+	@Test
+	public void addedDuringWriteGoesInNextBatch() throws Exception {
+		add(packet(10, 1));
+		CountDownLatch writing = connection.hold();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					queue.flush();
+				} catch (IOException e) {
+				}
+			}
+		});
+		writer.start();
+		assertTrue(writing.await(2, TimeUnit.SECONDS));
+
+		// The first batch is swapped out, this goes in the other buffer
+		add(packet(10, 2));
+		add(packet(10, 3));
+		assertEquals(20, queue.size());
+
+		connection.release();
+		writer.join(2000);
+		queue.flush();
+
+		List<byte[]> writes = connection.writes();
+		assertEquals(2, writes.size());
+		assertEquals(10, writes.get(0).length);
+		assertEquals(20, writes.get(1).length);
+		List<byte[]> packets = connection.packets();
+		for (int i = 0; i < 3; i++)
+			assertEquals(i + 1, packets.get(i)[2]);
+	}
+
+	@Test
+	public void futureCompletesOnceWritten() throws IOException {
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		synchronized (queue) {
+			queue.reserve(10).put(packet(10, 1));
+			queue.completeOnWrite(done);
+			queue.commit();
+		}
+		assertFalse(done.isDone());
+		queue.flush();
+		assertTrue(done.isDone());
+		assertFalse(done.isCompletedExceptionally());
+	}
+
+	@Test
+	public void futureFailsWhenWriteFails() throws InterruptedException {
+		IOException broken = new IOException("Broken pipe");
+		connection.fail(broken);
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		synchronized (queue) {
+			queue.reserve(10).put(packet(10, 1));
+			queue.completeOnWrite(done);
+			queue.commit();
+		}
+		try {
+			queue.flush();
+		} catch (IOException e) {
+			assertSame(broken, e);
+		}
+		try {
+			done.get();
+		} catch (ExecutionException e) {
+			assertSame(broken, e.getCause());
+			return;
+		}
+		throw new AssertionError("Completed without the write");
+	}
+
+	@Test
+	public void futureMayAddAndFlush() throws IOException {
+		final int n = 200;
+		final CountDownLatch completed = new CountDownLatch(2 * n);
+		for (int i = 0; i < n; i++) {
+			CompletableFuture<Void> done = new CompletableFuture<Void>();
+			synchronized (queue) {
+				queue.reserve(10).put(packet(10, 1));
+				queue.completeOnWrite(done);
+				queue.commit();
+			}
+			done.thenRun(new Runnable() {
+				@Override
+				public void run() {
+					completed.countDown();
+					// Written while the first batch is being completed
+					CompletableFuture<Void> again = new CompletableFuture<Void>();
+					synchronized (queue) {
+						queue.reserve(10).put(packet(10, 2));
+						queue.completeOnWrite(again);
+						queue.commit();
+					}
+					again.thenRun(new Runnable() {
+						@Override
+						public void run() {
+							completed.countDown();
+						}
+					});
+					try {
+						queue.flush();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+		queue.flush();
+
+		assertEquals(0, completed.getCount());
+		List<byte[]> packets = connection.packets();
+		assertEquals(2 * n, packets.size());
+		for (int i = 0; i < n; i++)
+			assertEquals(1, packets.get(i)[2]);
+		for (int i = n; i < 2 * n; i++)
+			assertEquals(2, packets.get(i)[2]);
+	}
+}
@@ -0,0 +1,207 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PacketReaderTest {
+
+	/** A QoS 0 PUBLISH with a payload of the given length. */
+	private static byte[] publish(String topic, int payloadLength) {
+		byte[] name = topic.getBytes();
+		int len = 2 + name.length + payloadLength;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(Messages.PUBLISH << 4);
+		do {
+			int digit = len % 128;
+			len /= 128;
+			out.write(len > 0 ? digit | 128 : digit);
+		} while (len > 0);
+		out.write(name.length >> 8);
+		out.write(name.length & 0xFF);
+		out.write(name, 0, name.length);
+		for (int i = 0; i < payloadLength; i++)
+			out.write(i);
+		return out.toByteArray();
+	}
+
+	private static void feed(PacketReader reader, byte[] bytes, int from,
+			int to) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes, from, to
+				- from);
+		while (in.available() > 0)
+			reader.fill(in);
+	}
+
+	private static byte[] current(PacketReader reader) {
+		return Arrays.copyOfRange(reader.buffer(), reader.offset(),
+				reader.offset() + reader.length());
+	}
+
+	@Test
+	public void framesPacketsSplitAcrossReads() throws IOException {
+		byte[] first = publish("a/b", 10);
+		byte[] second = { (byte) 0xC0, 0 }; // PINGREQ
+		byte[] stream = new byte[first.length + second.length];
+		System.arraycopy(first, 0, stream, 0, first.length);
+		System.arraycopy(second, 0, stream, first.length, second.length);
+
+		PacketReader reader = new PacketReader(8);
+		feed(reader, stream, 0, 1);
+		assertFalse(reader.next());
+		feed(reader, stream, 1, 7);
+		assertFalse(reader.next());
+		feed(reader, stream, 7, stream.length);
+
+		assertTrue(reader.next());
+		assertEquals(PacketReader.PACKET, reader.kind());
+		assertArrayEquals(first, current(reader));
+		assertTrue(reader.next());
+		assertArrayEquals(second, current(reader));
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void acceptsFourLengthBytes() throws IOException {
+		// 0x80 0x80 0x80 0x01 is 2097152
+		PacketReader reader = new PacketReader(16);
+		feed(reader, new byte[] { (byte) 0xC0, (byte) 0x80, (byte) 0x80,
+				(byte) 0x80, 0x01 }, 0, 5);
+		assertFalse(reader.next());
+		assertTrue(reader.buffer().length >= 2097152 + 5);
+	}
+
+	@Test
+	public void rejectsFifthLengthByte() throws IOException {
+		PacketReader reader = new PacketReader(16);
+		feed(reader, new byte[] { (byte) 0xC0, (byte) 0x80, (byte) 0x80,
+				(byte) 0x80, (byte) 0x80, 0x01 }, 0, 6);
+		try {
+			reader.next();
+			fail("Expected a malformed length");
+		} catch (IOException e) {
+			assertEquals("Malformed remaining length", e.getMessage());
+		}
+	}
+
+	@Test
+	public void waitsForTheRestOfTheLength() throws IOException {
+		PacketReader reader = new PacketReader(16);
+		feed(reader, new byte[] { (byte) 0xC0, (byte) 0x80 }, 0, 2);
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void streamsLargePublish() throws IOException {
+		byte[] packet = publish("big", 1000);
+		PacketReader reader = new PacketReader(64);
+		reader.setStreamThreshold(100);
+
+		feed(reader, packet, 0, 40);
+		assertTrue(reader.next());
+		assertEquals(PacketReader.HEAD, reader.kind());
+		// Header byte, two length bytes, topic length and topic
+		assertEquals(3 + 2 + 3, reader.length());
+		reader.stream();
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		int at = 40;
+		while (true) {
+			while (reader.next()) {
+				assertEquals(PacketReader.CHUNK, reader.kind());
+				payload.write(reader.buffer(), reader.offset(),
+						reader.length());
+			}
+			if (at == packet.length)
+				break;
+			int to = Math.min(at + 50, packet.length);
+			feed(reader, packet, at, to);
+			at = to;
+		}
+
+		assertEquals(0, reader.remaining());
+		assertArrayEquals(Arrays.copyOfRange(packet, 8, packet.length),
+				payload.toByteArray());
+		// The buffer held parts only, never the whole packet
+		assertEquals(64, reader.buffer().length);
+	}
+
+	@Test
+	public void headNotStreamedComesWhole() throws IOException {
+		byte[] packet = publish("big", 1000);
+		PacketReader reader = new PacketReader(64);
+		reader.setStreamThreshold(100);
+
+		feed(reader, packet, 0, 40);
+		assertTrue(reader.next());
+		assertEquals(PacketReader.HEAD, reader.kind());
+
+		assertFalse(reader.next());
+		feed(reader, packet, 40, packet.length);
+		assertTrue(reader.next());
+		assertEquals(PacketReader.PACKET, reader.kind());
+		assertArrayEquals(packet, current(reader));
+	}
+
+	@Test
+	public void smallPublishIsNotStreamed() throws IOException {
+		byte[] packet = publish("small", 50);
+		PacketReader reader = new PacketReader();
+		reader.setStreamThreshold(100);
+
+		feed(reader, packet, 0, packet.length);
+		assertTrue(reader.next());
+		assertEquals(PacketReader.PACKET, reader.kind());
+	}
+
+	@Test
+	public void thresholdAppliesToLaterPackets() throws IOException {
+		byte[] packet = publish("big", 1000);
+		byte[] stream = new byte[packet.length * 2];
+		System.arraycopy(packet, 0, stream, 0, packet.length);
+		System.arraycopy(packet, 0, stream, packet.length, packet.length);
+
+		PacketReader reader = new PacketReader();
+		feed(reader, stream, 0, stream.length);
+		assertTrue(reader.next());
+		assertEquals(PacketReader.PACKET, reader.kind());
+
+		reader.setStreamThreshold(100);
+		assertTrue(reader.next());
+		assertEquals(PacketReader.HEAD, reader.kind());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void streamNeedsHead() throws IOException {
+		PacketReader reader = new PacketReader();
+		feed(reader, publish("a", 1), 0, publish("a", 1).length);
+		assertTrue(reader.next());
+		reader.stream();
+	}
+}
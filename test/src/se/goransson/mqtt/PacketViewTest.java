@@ -0,0 +1,154 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class PacketViewTest {
+
+	private final PacketView view = new PacketView();
+
+	/** A PUBLISH package, placed some way into a larger buffer. */
+	private static byte[] publish(String topic, byte[] payload, int qos,
+			int msgId, boolean retain, int at) {
+		ByteBuffer dst = ByteBuffer.allocate(at
+				+ Messages.publishLength(topic, payload.length, qos) + 3);
+		dst.position(at);
+		Messages.encodePublish(dst, topic, payload, 0, payload.length, qos,
+				msgId, retain);
+		return dst.array();
+	}
+
+	private static byte[] ack(int type, int msgId) {
+		ByteBuffer dst = ByteBuffer.allocate(Messages.ACK_LENGTH);
+		Messages.encodeAck(dst, type, msgId);
+		return dst.array();
+	}
+
+	@Test
+	public void readsAPublish() {
+		byte[] payload = { 1, 2, 3, 4 };
+		int length = Messages.publishLength("a/b", payload.length, 1);
+		byte[] buffer = publish("a/b", payload, 1, 0x1234, true, 5);
+		view.wrap(buffer, 5, length);
+
+		assertEquals(Messages.PUBLISH, view.type());
+		assertEquals(1, view.qos());
+		assertTrue(view.retain());
+		assertFalse(view.dup());
+		assertEquals(length - 2, view.remainingLength());
+		assertEquals(3, view.topicLength());
+		assertEquals("a/b", view.topic());
+		assertEquals(0x1234, view.messageId());
+		assertEquals(-1, view.returnCode());
+		assertSame(buffer, view.array());
+		assertEquals(payload.length, view.payloadLength());
+
+		ByteBuffer read = view.payload();
+		assertTrue(read.isReadOnly());
+		byte[] copy = new byte[read.remaining()];
+		read.get(copy);
+		assertArrayEquals(payload, copy);
+	}
+
+	@Test
+	public void qos0PublishHasNoId() {
+		byte[] buffer = publish("t", new byte[] { 7 }, 0, 0, false, 0);
+		view.wrap(buffer, 0, buffer.length - 3);
+		assertEquals(-1, view.messageId());
+		assertEquals(1 + 1 + 2 + 1, view.payloadOffset());
+		assertEquals(1, view.payloadLength());
+	}
+
+	@Test
+	public void readsAcknowledgements() {
+		view.wrap(ack(Messages.PUBACK, 42), 0, Messages.ACK_LENGTH);
+		assertEquals(Messages.PUBACK, view.type());
+		assertEquals(42, view.messageId());
+		assertNull(view.topic());
+		assertEquals(-1, view.topicLength());
+		assertEquals(0, view.payloadLength());
+
+		view.wrap(ack(Messages.PUBREL, 0xFFFF), 0, Messages.ACK_LENGTH);
+		assertEquals(1, view.qos());
+		assertEquals(0xFFFF, view.messageId());
+	}
+
+	@Test
+	public void readsAConnack() {
+		byte[] connack = { Messages.CONNACK << 4, 2, 0, 5 };
+		view.wrap(connack, 0, connack.length);
+		assertEquals(5, view.returnCode());
+		assertEquals(-1, view.messageId());
+	}
+
+	@Test
+	public void readsALongRemainingLength() {
+		byte[] payload = new byte[300];
+		payload[299] = 9;
+		byte[] buffer = publish("t", payload, 0, 0, false, 0);
+		view.wrap(buffer, 0, buffer.length - 3);
+		assertEquals(2 + 1 + 300, view.remainingLength());
+		assertEquals(300, view.payloadLength());
+		assertEquals(9, view.payload().get(299 + view.payloadOffset()));
+	}
+
+	@Test
+	public void seenTopicsAreReused() {
+		byte[] first = publish("sensors/1", new byte[0], 0, 0, false, 0);
+		byte[] second = publish("sensors/1", new byte[0], 0, 0, false, 7);
+		String topic = view.wrap(first, 0, first.length - 3).topic();
+		assertSame(topic, view.wrap(second, 7, second.length - 10).topic());
+
+		// Same length, other bytes
+		byte[] other = publish("sensors/2", new byte[0], 0, 0, false, 0);
+		String otherTopic = view.wrap(other, 0, other.length - 3).topic();
+		assertEquals("sensors/2", otherTopic);
+		assertNotSame(topic, otherTopic);
+	}
+
+	@Test
+	public void topicsAreUtf8() {
+		String name = "\u00e5/\u20ac";
+		byte[] buffer = publish(name, new byte[0], 0, 0, false, 0);
+		assertEquals(name, view.wrap(buffer, 0, buffer.length - 3).topic());
+	}
+
+	@Test
+	public void toMessageCopies() {
+		byte[] buffer = publish("t", new byte[] { 1, 2 }, 2, 9, false, 0);
+		MQTTMessage message = view.wrap(buffer, 0, buffer.length - 3)
+				.toMessage();
+		buffer[buffer.length - 4] = 0;
+
+		assertEquals(Messages.PUBLISH, message.type);
+		assertEquals(2, message.QoS);
+		assertEquals("t", message.variableHeader.get("topic_name"));
+		assertEquals("9", message.variableHeader.get("message_id"));
+		assertArrayEquals(new byte[] { 1, 2 }, message.payload);
+	}
+}
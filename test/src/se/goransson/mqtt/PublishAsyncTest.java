@@ -0,0 +1,92 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublishAsyncTest {
+
+	private EmbeddedBroker broker;
+
+	private MQTT client;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		broker = new EmbeddedBroker();
+		client = new MQTT();
+		client.setLogger(Logger.none());
+		client.connect(broker.connect(), "test");
+		long deadline = System.currentTimeMillis() + 2000;
+		while (!client.isConnected() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue(client.isConnected());
+	}
+
+	@After
+	public void tearDown() {
+		client.disconnect();
+		broker.stop();
+	}
+
+	/**
+	 * Wait until the broker has read everything published so far, by
+	 * publishing one more message at QoS 1 and waiting for its PUBACK.
+	 */
+	private void awaitBroker() throws Exception {
+		client.publishAsync("fence", new byte[0], MQTT.AT_LEAST_ONCE).get(5,
+				TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void publishFromCompletion() throws Exception {
+		final int n = 200;
+		final CountDownLatch completed = new CountDownLatch(n);
+		for (int i = 0; i < n; i++) {
+			final byte[] payload = ("" + i).getBytes();
+			client.publishAsync("async", payload, MQTT.AT_MOST_ONCE)
+					.thenRun(new Runnable() {
+						@Override
+						public void run() {
+							client.publish("again", payload);
+							completed.countDown();
+						}
+					});
+		}
+
+		assertTrue(completed.await(5, TimeUnit.SECONDS));
+		awaitBroker();
+		assertEquals(2 * n + 1, broker.received());
+		assertEquals(0, client.getPending());
+	}
+
+	@Test
+	public void qos1And2Complete() throws Exception {
+		client.publishAsync("one", new byte[] { 1 }, MQTT.AT_LEAST_ONCE)
+				.get(5, TimeUnit.SECONDS);
+		client.publishAsync("two", new byte[] { 2 }, MQTT.EXACTLY_ONCE)
+				.get(5, TimeUnit.SECONDS);
+		assertEquals(2, broker.received());
+	}
+}
@@ -0,0 +1,165 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublishSizeTest {
+
+	/** One byte more than a PUBLISH on "big" can carry at QoS 0. */
+	private static final int OVERSIZED = Messages.MAX_REMAINING_LENGTH - 5 + 1;
+
+	private EmbeddedBroker broker;
+
+	private MQTT client;
+
+	private RecordingLogger logger;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		broker = new EmbeddedBroker();
+		client = new MQTT();
+		client.setLogger(Logger.none());
+		client.connect(broker.connect(), "test");
+		long deadline = System.currentTimeMillis() + 2000;
+		while (!client.isConnected() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue(client.isConnected());
+		logger = new RecordingLogger();
+		client.setLogger(logger);
+	}
+
+	@After
+	public void tearDown() {
+		client.disconnect();
+		broker.stop();
+	}
+
+	@Test
+	public void everyPathRefusesOversizedPayloads() throws Exception {
+		byte[] payload = new byte[OVERSIZED];
+		client.publish("big", payload, MQTT.AT_MOST_ONCE, false);
+		client.publish(new PublishTopic("big"), payload, MQTT.AT_MOST_ONCE,
+				false);
+		client.publishLatest("big", payload, MQTT.AT_MOST_ONCE, false);
+		client.publish("big", ByteBuffer.wrap(payload), MQTT.AT_MOST_ONCE,
+				false);
+		payload = null;
+
+		File file = File.createTempFile("payload", ".bin");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// Sparse, nothing is written to the disk
+			raf.setLength(OVERSIZED);
+			client.publish("big", raf.getChannel(), 0, OVERSIZED);
+		} finally {
+			file.delete();
+		}
+
+		List<String> refused = new ArrayList<String>();
+		for (String event : logger.events())
+			if (event.startsWith("WARN") && event.contains("too large"))
+				refused.add(event);
+		assertEquals(5, refused.size());
+
+		// Anything sent before this would have reached the broker first
+		client.publishAsync("small", new byte[1], MQTT.AT_LEAST_ONCE).get(5,
+				TimeUnit.SECONDS);
+		assertEquals(1, broker.received());
+	}
+
+	@Test
+	public void publishAsyncFailsOversizedPayloads() throws Exception {
+		try {
+			client.publishAsync("big", new byte[OVERSIZED], MQTT.AT_MOST_ONCE)
+					.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		assertEquals(0, broker.received());
+	}
+
+	@Test
+	public void byteBufferPayloadArrives() throws Exception {
+		BlockingQueue<MQTTMessage> received = subscribe("buffer");
+		byte[] bytes = "0123456789".getBytes("UTF-8");
+		ByteBuffer payload = ByteBuffer.wrap(bytes, 2, 5);
+
+		client.publish("buffer", payload, MQTT.AT_MOST_ONCE, false);
+
+		MQTTMessage message = received.poll(5, TimeUnit.SECONDS);
+		assertArrayEquals("23456".getBytes("UTF-8"), message.payload);
+		// The buffer is left as it was
+		assertEquals(2, payload.position());
+	}
+
+	@Test
+	public void fileRegionArrives() throws Exception {
+		BlockingQueue<MQTTMessage> received = subscribe("file");
+		byte[] bytes = new byte[4096];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) i;
+
+		File file = File.createTempFile("payload", ".bin");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.write(bytes);
+			FileChannel channel = raf.getChannel();
+			client.publish("file", channel, 1000, 2000);
+
+			MQTTMessage message = received.poll(5, TimeUnit.SECONDS);
+			byte[] expected = new byte[2000];
+			System.arraycopy(bytes, 1000, expected, 0, expected.length);
+			assertArrayEquals(expected, message.payload);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private BlockingQueue<MQTTMessage> subscribe(String topic)
+			throws Exception {
+		final BlockingQueue<MQTTMessage> received = new ArrayBlockingQueue<MQTTMessage>(
+				16);
+		client.subscribe(Collections.singletonMap(topic, MQTT.AT_MOST_ONCE),
+				new Consumer<MQTTMessage>() {
+					@Override
+					public void accept(MQTTMessage message) {
+						received.add(message);
+					}
+				}).get(5, TimeUnit.SECONDS);
+		return received;
+	}
+}
@@ -0,0 +1,189 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	/** Records what the limiter lets through later. */
+	private static class Recorder implements RateLimiter.Sender {
+
+		private final List<String> sent = new ArrayList<String>();
+
+		@Override
+		public synchronized void send(String topic, byte[] payload, int qos,
+				boolean retain, CompletableFuture<Void> done) {
+			sent.add(topic + "=" + new String(payload));
+			notifyAll();
+			if (done != null)
+				done.complete(null);
+		}
+
+		synchronized List<String> await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (sent.size() < count) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					break;
+				wait(wait);
+			}
+			return new ArrayList<String>(sent);
+		}
+	}
+
+	private static RateLimiter limiter(RateLimiter.Saturation saturation,
+			Recorder recorder) {
+		RateLimiter limiter = new RateLimiter(saturation);
+		limiter.bind(recorder);
+		return limiter;
+	}
+
+	@Test
+	public void burstGoesRightAway() {
+		RateLimiter limiter = limiter(RateLimiter.Saturation.QUEUE,
+				new Recorder());
+		limiter.setLimit(10, 0);
+		for (int i = 0; i < 10; i++)
+			assertTrue(limiter.admit("t", new byte[1], 0, false, null));
+		assertFalse(limiter.admit("t", new byte[1], 0, false, null));
+		assertEquals(1, limiter.queued());
+	}
+
+	@Test
+	public void queueSendsInOrder() throws Exception {
+		Recorder recorder = new Recorder();
+		RateLimiter limiter = limiter(RateLimiter.Saturation.QUEUE, recorder);
+		limiter.setLimit(20, 0);
+		for (int i = 0; i < 20; i++)
+			assertTrue(limiter.admit("burst", new byte[1], 0, false, null));
+
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 5; i++) {
+			CompletableFuture<Void> done = new CompletableFuture<Void>();
+			futures.add(done);
+			assertFalse(limiter.admit("t", ("" + i).getBytes(), 1, false,
+					done));
+		}
+		assertEquals(5, limiter.queued());
+
+		List<String> sent = recorder.await(5);
+		assertEquals(5, sent.size());
+		for (int i = 0; i < 5; i++)
+			assertEquals("t=" + i, sent.get(i));
+		for (CompletableFuture<Void> done : futures)
+			done.get(5, TimeUnit.SECONDS);
+		assertEquals(0, limiter.queued());
+		assertEquals(0, limiter.dropped());
+	}
+
+	@Test
+	public void queueRespectsCapacity() throws InterruptedException {
+		RateLimiter limiter = limiter(RateLimiter.Saturation.QUEUE,
+				new Recorder());
+		limiter.setLimit(1, 0);
+		limiter.setQueueCapacity(10);
+		assertTrue(limiter.admit("t", new byte[4], 0, false, null));
+
+		assertFalse(limiter.admit("t", new byte[4], 0, false, null));
+		assertFalse(limiter.admit("t", new byte[4], 0, false, null));
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		assertFalse(limiter.admit("t", new byte[4], 0, false, done));
+
+		assertEquals(8, limiter.queued());
+		assertEquals(1, limiter.dropped());
+		assertTrue(done.isCompletedExceptionally());
+		try {
+			done.get();
+			fail("Expected the message to be dropped");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+
+	@Test
+	public void coalesceKeepsTheLatest() throws InterruptedException {
+		Recorder recorder = new Recorder();
+		RateLimiter limiter = limiter(RateLimiter.Saturation.COALESCE,
+				recorder);
+		limiter.setLimit(5, 0);
+		for (int i = 0; i < 5; i++)
+			assertTrue(limiter.admit("burst", new byte[1], 0, false, null));
+
+		CompletableFuture<Void> replaced = new CompletableFuture<Void>();
+		assertFalse(limiter.admit("a", "1".getBytes(), 0, false, replaced));
+		assertFalse(limiter.admit("b", "1".getBytes(), 0, false, null));
+		assertFalse(limiter.admit("a", "22".getBytes(), 0, false, null));
+
+		assertTrue(replaced.isCancelled());
+		assertEquals(1, limiter.dropped());
+		assertEquals(3, limiter.queued());
+
+		// a keeps its place ahead of b
+		List<String> sent = recorder.await(2);
+		assertEquals(2, sent.size());
+		assertEquals("a=22", sent.get(0));
+		assertEquals("b=1", sent.get(1));
+		assertEquals(0, limiter.queued());
+	}
+
+	@Test
+	public void prefixLimitOnlyAppliesToItsTopics() {
+		RateLimiter limiter = limiter(RateLimiter.Saturation.QUEUE,
+				new Recorder());
+		limiter.setLimit("slow/", 1, 0);
+		assertTrue(limiter.admit("slow/1", new byte[1], 0, false, null));
+		assertFalse(limiter.admit("slow/1", new byte[1], 0, false, null));
+		// Anything queued goes first, whatever its topic
+		assertFalse(limiter.admit("fast", new byte[1], 0, false, null));
+
+		RateLimiter other = limiter(RateLimiter.Saturation.QUEUE,
+				new Recorder());
+		other.setLimit("slow/", 1, 0);
+		assertTrue(other.admit("slow/1", new byte[1], 0, false, null));
+		for (int i = 0; i < 100; i++)
+			assertTrue(other.admit("fast", new byte[1], 0, false, null));
+	}
+
+	@Test
+	public void byteLimit() {
+		RateLimiter limiter = limiter(RateLimiter.Saturation.QUEUE,
+				new Recorder());
+		limiter.setLimit(0, 100);
+		assertTrue(limiter.admit("t", new byte[60], 0, false, null));
+		assertFalse(limiter.admit("t", new byte[60], 0, false, null));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void servesOneClient() {
+		RateLimiter limiter = new RateLimiter(RateLimiter.Saturation.QUEUE);
+		limiter.bind(new Recorder());
+		limiter.bind(new Recorder());
+	}
+}
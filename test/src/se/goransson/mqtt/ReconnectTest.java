@@ -0,0 +1,119 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReconnectTest {
+
+	private EmbeddedBroker broker;
+
+	private MQTT client;
+
+	@Before
+	public void setUp() throws Exception {
+		broker = new EmbeddedBroker();
+		int port = broker.listen(0);
+		client = new MQTT();
+		client.setLogger(Logger.none());
+		client.setAutoReconnect(true);
+		client.setReconnectBackoff(10, 100);
+		client.connect("127.0.0.1", port, "test");
+		long deadline = System.currentTimeMillis() + 2000;
+		while (!client.isConnected() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue(client.isConnected());
+	}
+
+	@After
+	public void tearDown() {
+		client.disconnect();
+		broker.stop();
+	}
+
+	/** Wait until a metric of the client has reached a value. */
+	private void awaitMetric(String name, long value)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (client.getMetrics().snapshot().get(name) < value
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(value, (long) client.getMetrics().snapshot().get(name));
+	}
+
+	@Test
+	public void subscriptionsAreSentAgain() throws Exception {
+		final BlockingQueue<MQTTMessage> received = new LinkedBlockingQueue<MQTTMessage>();
+		client.subscribe(Collections.singletonMap("a/+", MQTT.AT_LEAST_ONCE),
+				new Consumer<MQTTMessage>() {
+					@Override
+					public void accept(MQTTMessage message) {
+						received.add(message);
+					}
+				}).get(5, TimeUnit.SECONDS);
+
+		broker.disconnectAll();
+		awaitMetric("reconnects", 1);
+		// The SUBSCRIBE of the resumed session has been queued
+		awaitMetric("packets.out.SUBSCRIBE", 2);
+		// Acknowledged in order, so "a/+" is subscribed once this is
+		client.subscribe(Collections.singletonMap("sync", MQTT.AT_MOST_ONCE),
+				new Consumer<MQTTMessage>() {
+					@Override
+					public void accept(MQTTMessage message) {
+					}
+				}).get(5, TimeUnit.SECONDS);
+
+		broker.publish("a/b", new byte[] { 7 }, MQTT.AT_LEAST_ONCE, false);
+		MQTTMessage message = received.poll(5, TimeUnit.SECONDS);
+		assertEquals("a/b", message.variableHeader.get("topic_name"));
+		assertEquals(7, message.payload[0]);
+	}
+
+	@Test
+	public void unacknowledgedMessagesAreSentAgain() throws Exception {
+		// Lost on the way, so never acknowledged
+		broker.setDropRate(1);
+		CompletableFuture<Void> done = client.publishAsync("q",
+				new byte[] { 1 }, MQTT.AT_LEAST_ONCE);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (broker.dropped() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(1, broker.dropped());
+		assertFalse(done.isDone());
+
+		broker.setDropRate(0);
+		broker.disconnectAll();
+
+		done.get(5, TimeUnit.SECONDS);
+		assertEquals(1, broker.received());
+		assertEquals(1, (long) client.getMetrics().snapshot().get("reconnects"));
+	}
+}
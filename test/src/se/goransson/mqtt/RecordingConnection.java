@@ -0,0 +1,166 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A connection that keeps everything written to it, for testing what the
+ * client sends without a broker. Writes can be held back with
+ * {@link #hold()} to test what happens while a write is in progress.
+ */
+public class RecordingConnection extends Connection {
+
+	/** Each call to write, guarded by this. */
+	private final List<byte[]> writes = new ArrayList<byte[]>();
+
+	private volatile CountDownLatch gate;
+
+	/** Counted down once a held write has started. */
+	private volatile CountDownLatch started;
+
+	private volatile IOException failure;
+
+	private final OutputStream mOutputStream = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			RecordingConnection.this.write(ByteBuffer.wrap(b, off, len));
+		}
+	};
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		throw new IOException("Nothing to read");
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return mOutputStream;
+	}
+
+	@Override
+	public void write(ByteBuffer src) throws IOException {
+		CountDownLatch gate = this.gate;
+		if (gate != null) {
+			started.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+		if (failure != null)
+			throw failure;
+
+		byte[] copy = new byte[src.remaining()];
+		src.get(copy);
+		synchronized (this) {
+			writes.add(copy);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	/**
+	 * Make the next writes wait until {@link #release()}.
+	 *
+	 * @return Counted down once a write is waiting.
+	 */
+	public CountDownLatch hold() {
+		started = new CountDownLatch(1);
+		gate = new CountDownLatch(1);
+		return started;
+	}
+
+	public void release() {
+		CountDownLatch gate = this.gate;
+		this.gate = null;
+		if (gate != null)
+			gate.countDown();
+	}
+
+	/**
+	 * Make every write from now on fail.
+	 *
+	 * @param cause
+	 */
+	public void fail(IOException cause) {
+		failure = cause;
+	}
+
+	/**
+	 * @return A copy of each write so far.
+	 */
+	public synchronized List<byte[]> writes() {
+		return new ArrayList<byte[]>(writes);
+	}
+
+	/**
+	 * @return Everything written so far, in one array.
+	 */
+	public synchronized byte[] bytes() {
+		int length = 0;
+		for (int i = 0; i < writes.size(); i++)
+			length += writes.get(i).length;
+		ByteBuffer all = ByteBuffer.allocate(length);
+		for (int i = 0; i < writes.size(); i++)
+			all.put(writes.get(i));
+		return all.array();
+	}
+
+	/**
+	 * Split what was written into packages.
+	 *
+	 * @return The packages, each with its fixed header.
+	 */
+	public List<byte[]> packets() {
+		ByteBuffer all = ByteBuffer.wrap(bytes());
+		List<byte[]> packets = new ArrayList<byte[]>();
+		while (all.hasRemaining()) {
+			int start = all.position();
+			all.get();
+			int length = 0, shift = 0, b;
+			do {
+				b = all.get() & 0xFF;
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			byte[] packet = new byte[all.position() - start + length];
+			all.position(start);
+			all.get(packet);
+			packets.add(packet);
+		}
+		return packets;
+	}
+
+	public synchronized void clear() {
+		writes.clear();
+	}
+}
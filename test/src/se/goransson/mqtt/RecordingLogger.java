@@ -0,0 +1,74 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A logger that keeps every event, for testing what gets reported.
+ */
+public class RecordingLogger extends Logger {
+
+	/** The events, as "LEVEL message", guarded by this. */
+	private final List<String> events = new ArrayList<String>();
+
+	/** The errors of the events that had one, guarded by this. */
+	private final List<Throwable> errors = new ArrayList<Throwable>();
+
+	@Override
+	public boolean isEnabled(Level level) {
+		return level != Level.OFF;
+	}
+
+	@Override
+	public synchronized void log(Level level, String format, Object arg0,
+			Object arg1, long arg2, Throwable error) {
+		StringBuilder line = new StringBuilder();
+		line.append(level).append(' ');
+		format(line, format, arg0, arg1, arg2);
+		events.add(line.toString());
+		if (error != null)
+			errors.add(error);
+		notifyAll();
+	}
+
+	public synchronized List<String> events() {
+		return new ArrayList<String>(events);
+	}
+
+	public synchronized List<Throwable> errors() {
+		return new ArrayList<Throwable>(errors);
+	}
+
+	/**
+	 * Wait until at least some number of events have been logged.
+	 *
+	 * @return The events so far.
+	 */
+	public synchronized List<String> await(int count)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (events.size() < count) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				break;
+			wait(wait);
+		}
+		return new ArrayList<String>(events);
+	}
+}
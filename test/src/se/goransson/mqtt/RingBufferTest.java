@@ -0,0 +1,114 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void capacityIsAPowerOfTwo() {
+		assertEquals(2, new RingBuffer<Integer>(0).capacity());
+		assertEquals(8, new RingBuffer<Integer>(5).capacity());
+		assertEquals(8, new RingBuffer<Integer>(8).capacity());
+	}
+
+	@Test
+	public void firstInFirstOutAcrossLaps() {
+		RingBuffer<Integer> ring = new RingBuffer<Integer>(4);
+		int added = 0;
+		int taken = 0;
+		while (added < 100) {
+			// Add three and take two, so the elements move around the ring
+			for (int i = 0; i < 3 && ring.size() < ring.capacity(); i++)
+				assertTrue(ring.offer(added++));
+			if (ring.size() == ring.capacity())
+				assertFalse(ring.offer(-1));
+			for (int i = 0; i < 2; i++)
+				assertEquals(taken++, (int) ring.poll());
+		}
+		Integer element;
+		while ((element = ring.poll()) != null)
+			assertEquals(taken++, (int) element);
+		assertEquals(added, taken);
+	}
+
+	@Test
+	public void fullUntilPolled() {
+		RingBuffer<String> ring = new RingBuffer<String>(2);
+		assertTrue(ring.offer("a"));
+		assertTrue(ring.offer("b"));
+		assertFalse(ring.offer("c"));
+		assertEquals(2, ring.size());
+
+		assertEquals("a", ring.poll());
+		assertTrue(ring.offer("c"));
+		assertEquals("b", ring.poll());
+		assertEquals("c", ring.poll());
+		assertNull(ring.poll());
+		assertEquals(0, ring.size());
+	}
+
+	@Test
+	public void manyProducers() throws InterruptedException {
+		final RingBuffer<Integer> ring = new RingBuffer<Integer>(64);
+		final int producers = 4;
+		final int each = 20000;
+		Thread[] threads = new Thread[producers];
+		for (int t = 0; t < producers; t++) {
+			final int id = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < each; i++) {
+						while (!ring.offer(id * each + i))
+							Thread.yield();
+					}
+				}
+			});
+			threads[t].start();
+		}
+
+		// Each producer's elements come in its order
+		int[] last = new int[producers];
+		for (int t = 0; t < producers; t++)
+			last[t] = -1;
+		int taken = 0;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (taken < producers * each
+				&& System.currentTimeMillis() < deadline) {
+			Integer element = ring.poll();
+			if (element == null) {
+				Thread.yield();
+				continue;
+			}
+			int id = element / each;
+			assertTrue(element % each > last[id]);
+			last[id] = element % each;
+			taken++;
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(producers * each, taken);
+		assertNull(ring.poll());
+	}
+}
@@ -0,0 +1,209 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentStoreTest {
+
+	/** Holds two 100 byte packages. */
+	private static final int SEGMENT_SIZE = 256;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+
+	private SegmentStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = new File(folder.getRoot(), "store");
+		store = open(SegmentStore.Eviction.REJECT);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (store != null)
+			store.close();
+	}
+
+	private SegmentStore open(SegmentStore.Eviction eviction)
+			throws IOException {
+		return new SegmentStore(directory, SEGMENT_SIZE, 2 * SEGMENT_SIZE,
+				eviction);
+	}
+
+	private SegmentStore reopen() throws IOException {
+		store.close();
+		store = open(SegmentStore.Eviction.REJECT);
+		return store;
+	}
+
+	/** A PUBLISH of 100 bytes, the payload filled with a marker. */
+	private static byte[] packet(int qos, int marker) {
+		byte[] payload = new byte[100 - 2 - 1 - 2 - (qos > 0 ? 2 : 0)];
+		for (int i = 0; i < payload.length; i++)
+			payload[i] = (byte) marker;
+		byte[] packet = new byte[Messages.publishLength("t", payload.length,
+				qos)];
+		Messages.encodePublish(ByteBuffer.wrap(packet), "t", payload, 0,
+				payload.length, qos, 0, false);
+		assertEquals(100, packet.length);
+		return packet;
+	}
+
+	private boolean append(byte[] packet) throws IOException {
+		return store.append(packet, 0, packet.length);
+	}
+
+	private static int marker(SegmentStore.Record record) {
+		return record.packet().get(record.length() - 1);
+	}
+
+	@Test
+	public void handsOutInOrder() throws IOException {
+		assertTrue(append(packet(0, 1)));
+		assertTrue(append(packet(1, 2)));
+		assertTrue(append(packet(2, 3)));
+		assertEquals(3, store.size());
+
+		SegmentStore.Record record = store.next();
+		assertEquals(0, record.qos());
+		assertArrayEquals(packet(0, 1), record.toByteArray());
+		record = store.next();
+		assertEquals(1, record.qos());
+		assertEquals(2, marker(record));
+		record = store.next();
+		assertEquals(2, record.qos());
+		assertEquals(3, marker(record));
+		assertNull(store.next());
+		// Handed out isn't done
+		assertEquals(3, store.size());
+	}
+
+	@Test
+	public void releasedAreNotHandedOutAgain() throws IOException {
+		append(packet(1, 1));
+		append(packet(1, 2));
+		store.release(store.next());
+		assertEquals(1, store.size());
+
+		store.rewind();
+		assertEquals(2, marker(store.next()));
+		assertNull(store.next());
+	}
+
+	@Test
+	public void emptySegmentIsDeleted() throws IOException {
+		for (int i = 1; i <= 3; i++)
+			append(packet(1, i));
+		assertEquals(2, directory.list().length);
+
+		SegmentStore.Record first = store.next();
+		SegmentStore.Record second = store.next();
+		store.release(second);
+		store.release(first);
+		// Releasing twice changes nothing
+		store.release(first);
+		assertEquals(1, store.size());
+		assertEquals(1, directory.list().length);
+		assertEquals(3, marker(store.next()));
+	}
+
+	@Test
+	public void survivesReopening() throws IOException {
+		for (int i = 1; i <= 3; i++)
+			append(packet(1, i));
+		store.release(store.next());
+
+		reopen();
+		assertEquals(2, store.size());
+		assertEquals(2, marker(store.next()));
+		assertEquals(3, marker(store.next()));
+		assertNull(store.next());
+
+		// Appending carries on after what was recovered
+		append(packet(1, 4));
+		assertEquals(4, marker(store.next()));
+	}
+
+	@Test
+	public void tornRecordIsCut() throws IOException {
+		append(packet(1, 1));
+		append(packet(1, 2));
+		store.close();
+		store = null;
+
+		// Damage the payload of the second record
+		File segment = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			raf.seek(9 + 100 + 9 + 50);
+			raf.write(0x55);
+		} finally {
+			raf.close();
+		}
+
+		store = open(SegmentStore.Eviction.REJECT);
+		assertEquals(1, store.size());
+		assertEquals(1, marker(store.next()));
+		assertNull(store.next());
+		append(packet(1, 3));
+		assertEquals(3, marker(store.next()));
+	}
+
+	@Test
+	public void rejectsWhenFull() throws IOException {
+		for (int i = 1; i <= 4; i++)
+			assertTrue(append(packet(1, i)));
+		assertFalse(append(packet(1, 5)));
+		assertEquals(4, store.size());
+		assertEquals(0, store.evicted());
+	}
+
+	@Test
+	public void dropsTheOldestWhenFull() throws IOException {
+		store.close();
+		store = open(SegmentStore.Eviction.DROP_OLDEST);
+		for (int i = 1; i <= 5; i++)
+			assertTrue(append(packet(1, i)));
+		assertEquals(3, store.size());
+		assertEquals(2, store.evicted());
+		assertEquals(3, marker(store.next()));
+	}
+
+	@Test(expected = IOException.class)
+	public void packageLargerThanASegment() throws IOException {
+		store.append(new byte[SEGMENT_SIZE], 0, SEGMENT_SIZE);
+	}
+}
@@ -0,0 +1,140 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedMQTTTest {
+
+	private static final int SHARDS = 4;
+
+	private static final int TOPICS = 64;
+
+	private EmbeddedBroker broker;
+
+	private ShardedMQTT client;
+
+	@Before
+	public void setUp() throws Exception {
+		broker = new EmbeddedBroker();
+		int port = broker.listen(0);
+		client = new ShardedMQTT(SHARDS);
+		client.setLogger(Logger.none());
+		client.connect("127.0.0.1", port, "test");
+		long deadline = System.currentTimeMillis() + 2000;
+		while (client.getConnected() < SHARDS
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(SHARDS, client.getConnected());
+	}
+
+	@After
+	public void tearDown() {
+		client.disconnect();
+		broker.stop();
+	}
+
+	private static long sent(MQTT shard, String type) {
+		return shard.getMetrics().snapshot().get("packets.out." + type);
+	}
+
+	@Test
+	public void aTopicAlwaysGoesThroughTheSameShard() throws Exception {
+		int[] expected = new int[SHARDS];
+		List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>>();
+		for (int t = 0; t < TOPICS; t++) {
+			String topic = "sensor/" + t;
+			MQTT shard = client.shardFor(topic);
+			assertSame(shard, client.shardFor(topic));
+			for (int i = 0; i < SHARDS; i++)
+				if (client.shard(i) == shard)
+					expected[i] += 2;
+
+			// Both kinds of topic take the same route
+			done.add(client.publishAsync(topic, new byte[] { 1 },
+					MQTT.AT_LEAST_ONCE));
+			done.add(client.publishAsync(new PublishTopic(topic),
+					new byte[] { 2 }, MQTT.AT_LEAST_ONCE));
+		}
+		for (int i = 0; i < done.size(); i++)
+			done.get(i).get(5, TimeUnit.SECONDS);
+
+		int used = 0;
+		for (int i = 0; i < SHARDS; i++) {
+			assertEquals(expected[i], client.getPublished(i));
+			assertEquals(expected[i], sent(client.shard(i), "PUBLISH"));
+			if (expected[i] > 0)
+				used++;
+		}
+		assertEquals(2 * TOPICS, client.getPublished());
+		assertTrue("Topics should be spread, used " + used, used > 1);
+	}
+
+	@Test
+	public void subscribingSplitsTheTopicsOverTheShards() throws Exception {
+		Map<String, Integer> topics = new LinkedHashMap<String, Integer>();
+		for (int t = 0; t < TOPICS; t++)
+			topics.put("sensor/" + t, MQTT.AT_LEAST_ONCE);
+
+		final Set<String> received = new HashSet<String>();
+		final CountDownLatch all = new CountDownLatch(TOPICS);
+		Map<String, Integer> granted = client.subscribe(topics,
+				new Consumer<MQTTMessage>() {
+					@Override
+					public void accept(MQTTMessage message) {
+						synchronized (received) {
+							if (received.add((String) message.variableHeader
+									.get("topic_name")))
+								all.countDown();
+						}
+					}
+				}).get(5, TimeUnit.SECONDS);
+		assertEquals(topics, granted);
+
+		// One packed SUBSCRIBE per shard that owns any of the topics
+		Set<MQTT> owners = new HashSet<MQTT>();
+		for (String topic : topics.keySet())
+			owners.add(client.shardFor(topic));
+		for (int i = 0; i < SHARDS; i++)
+			assertEquals(owners.contains(client.shard(i)) ? 1 : 0,
+					sent(client.shard(i), "SUBSCRIBE"));
+
+		for (String topic : topics.keySet())
+			broker.publish(topic, new byte[] { 3 }, MQTT.AT_LEAST_ONCE, false);
+		assertTrue(all.await(5, TimeUnit.SECONDS));
+		synchronized (received) {
+			assertEquals(topics.keySet(), received);
+		}
+	}
+}
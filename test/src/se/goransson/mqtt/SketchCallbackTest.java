@@ -0,0 +1,143 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import processing.core.PApplet;
+
+public class SketchCallbackTest {
+
+	/** Not public, like most sketches. */
+	static class Sketch extends PApplet {
+
+		final BlockingQueue<MQTTMessage> readings = new LinkedBlockingQueue<MQTTMessage>();
+
+		final BlockingQueue<MQTTMessage> raw = new LinkedBlockingQueue<MQTTMessage>();
+
+		public void onReading(MQTTMessage message) {
+			readings.add(message);
+		}
+
+		public void onBroken(MQTTMessage message) {
+			throw new IllegalStateException("Broken sketch");
+		}
+
+		public void rawMQTT(MQTTMessage message) {
+			raw.add(message);
+		}
+	}
+
+	private EmbeddedBroker broker;
+
+	private Sketch sketch;
+
+	private MQTT client;
+
+	private RecordingLogger logger;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		broker = new EmbeddedBroker();
+		sketch = new Sketch();
+		client = new MQTT(sketch);
+		logger = new RecordingLogger();
+		client.setLogger(logger);
+		client.connect(broker.connect(), "test");
+		long deadline = System.currentTimeMillis() + 2000;
+		while (!client.isConnected() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue(client.isConnected());
+	}
+
+	@After
+	public void tearDown() {
+		client.disconnect();
+		broker.stop();
+	}
+
+	/**
+	 * Wait for every SUBSCRIBE sent so far to reach the broker, they are
+	 * acknowledged in order.
+	 */
+	private void awaitSubscriptions() throws Exception {
+		client.subscribe(Collections.singletonMap("sync", MQTT.AT_MOST_ONCE),
+				new Consumer<MQTTMessage>() {
+					@Override
+					public void accept(MQTTMessage message) {
+					}
+				}).get(5, TimeUnit.SECONDS);
+	}
+
+	private static String topic(MQTTMessage message) {
+		return (String) message.variableHeader.get("topic_name");
+	}
+
+	@Test
+	public void sketchMethodsGetMessages() throws Exception {
+		client.subscribe("readings", "onReading");
+		awaitSubscriptions();
+
+		broker.publish("readings", new byte[] { 42 }, 0, false);
+
+		MQTTMessage message = sketch.readings.poll(5, TimeUnit.SECONDS);
+		assertEquals("readings", topic(message));
+		assertEquals(42, message.payload[0]);
+		// rawMQTT gets everything too
+		assertEquals("readings", topic(sketch.raw.poll(5, TimeUnit.SECONDS)));
+	}
+
+	@Test
+	public void missingMethodIsReported() throws Exception {
+		client.subscribe("readings", "noSuchMethod");
+		boolean reported = false;
+		for (String event : logger.events())
+			reported |= event.startsWith("WARN")
+					&& event.contains("forgot to add the subscription method");
+		assertTrue(reported);
+		List<Throwable> errors = logger.errors();
+		assertTrue(errors.get(errors.size() - 1) instanceof NoSuchMethodException);
+	}
+
+	@Test
+	public void failingMethodDoesNotStopTheReading() throws Exception {
+		client.subscribe("broken", "onBroken");
+		client.subscribe("readings", "onReading");
+		awaitSubscriptions();
+
+		broker.publish("broken", new byte[] { 1 }, 0, false);
+		broker.publish("readings", new byte[] { 2 }, 0, false);
+
+		assertEquals(2, sketch.readings.poll(5, TimeUnit.SECONDS).payload[0]);
+		boolean reported = false;
+		for (Throwable error : logger.errors())
+			reported |= error instanceof IllegalStateException;
+		assertTrue(reported);
+	}
+}
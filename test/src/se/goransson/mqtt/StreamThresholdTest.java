@@ -0,0 +1,97 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamThresholdTest {
+
+	private EmbeddedBroker broker;
+
+	private MQTT client;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		broker = new EmbeddedBroker();
+		client = new MQTT();
+		client.setLogger(Logger.none());
+		client.connect(broker.connect(), "test");
+		long deadline = System.currentTimeMillis() + 2000;
+		while (!client.isConnected() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue(client.isConnected());
+	}
+
+	@After
+	public void tearDown() {
+		client.disconnect();
+		broker.stop();
+	}
+
+	@Test
+	public void thresholdSetWhileConnected() throws Exception {
+		final AtomicInteger total = new AtomicInteger();
+		final AtomicInteger chunks = new AtomicInteger();
+		final AtomicInteger bytes = new AtomicInteger();
+		final CountDownLatch ended = new CountDownLatch(1);
+		client.subscribe("big", new StreamListener() {
+			@Override
+			public void onStart(String topic, int totalLength) {
+				total.set(totalLength);
+			}
+
+			@Override
+			public void onChunk(ByteBuffer chunk) {
+				chunks.incrementAndGet();
+				bytes.addAndGet(chunk.remaining());
+			}
+
+			@Override
+			public void onEnd() {
+				ended.countDown();
+			}
+		});
+		// Acknowledged in order, so "big" is subscribed once this is
+		client.subscribe(Collections.singletonMap("sync", MQTT.AT_MOST_ONCE),
+				new Consumer<MQTTMessage>() {
+					@Override
+					public void accept(MQTTMessage message) {
+					}
+				}).get(5, TimeUnit.SECONDS);
+
+		client.setStreamThreshold(1024);
+		broker.publish("big", new byte[32 * 1024], 0, false);
+
+		assertTrue(ended.await(5, TimeUnit.SECONDS));
+		assertEquals(32 * 1024, total.get());
+		assertEquals(32 * 1024, bytes.get());
+		// Below the default threshold, whole it would be a single chunk
+		assertTrue(chunks.get() > 1);
+	}
+}
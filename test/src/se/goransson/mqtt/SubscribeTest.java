@@ -0,0 +1,133 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubscribeTest {
+
+	private static final Consumer<MQTTMessage> IGNORE = new Consumer<MQTTMessage>() {
+		@Override
+		public void accept(MQTTMessage message) {
+		}
+	};
+
+	private EmbeddedBroker broker;
+
+	private MQTT client;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		broker = new EmbeddedBroker();
+		client = new MQTT();
+		client.setLogger(Logger.none());
+		// Small batches, so many topics take several packages
+		client.setBatching(128, 0);
+		client.connect(broker.connect(), "test");
+		long deadline = System.currentTimeMillis() + 2000;
+		while (!client.isConnected() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue(client.isConnected());
+	}
+
+	@After
+	public void tearDown() {
+		client.disconnect();
+		broker.stop();
+	}
+
+	@Test
+	public void emptySubscribeCompletesRightAway() throws Exception {
+		CompletableFuture<Map<String, Integer>> granted = client.subscribe(
+				Collections.<String, Integer> emptyMap(), IGNORE);
+		assertTrue(granted.isDone());
+		assertTrue(granted.get().isEmpty());
+	}
+
+	@Test
+	public void emptyUnsubscribeCompletesRightAway() throws Exception {
+		CompletableFuture<Void> done = client.unsubscribe(Collections
+				.<String> emptyList());
+		assertTrue(done.isDone());
+		done.get();
+	}
+
+	@Test
+	public void manyTopicsInSeveralPackages() throws Exception {
+		Map<String, Integer> topics = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < 100; i++)
+			topics.put("sensors/" + i + "/temperature", i % 3);
+
+		Map<String, Integer> granted = client.subscribe(topics, IGNORE).get(
+				5, TimeUnit.SECONDS);
+		assertEquals(topics, granted);
+		// In the order asked for
+		assertEquals(new ArrayList<String>(topics.keySet()),
+				new ArrayList<String>(granted.keySet()));
+
+		List<String> filters = new ArrayList<String>(topics.keySet());
+		client.unsubscribe(filters).get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void subscribedTopicsAreDelivered() throws Exception {
+		final List<String> received = Collections
+				.synchronizedList(new ArrayList<String>());
+		final CountDownLatch fenced = new CountDownLatch(1);
+		Map<String, Integer> topics = new LinkedHashMap<String, Integer>();
+		topics.put("a/+", 1);
+		topics.put("b/#", 0);
+		topics.put("fence", 0);
+		client.subscribe(topics, new Consumer<MQTTMessage>() {
+			@Override
+			public void accept(MQTTMessage message) {
+				String topic = (String) message.variableHeader
+						.get("topic_name");
+				if (topic.equals("fence"))
+					fenced.countDown();
+				else
+					received.add(topic);
+			}
+		}).get(5, TimeUnit.SECONDS);
+
+		broker.publish("a/1", new byte[1], 1, false);
+		broker.publish("b/2/3", new byte[1], 0, false);
+		broker.publish("c", new byte[1], 0, false);
+		// Delivered in order, anything for "c" would have come before it
+		broker.publish("fence", new byte[1], 0, false);
+		assertTrue(fenced.await(5, TimeUnit.SECONDS));
+		Collections.sort(received);
+		assertEquals(2, received.size());
+		assertEquals("a/1", received.get(0));
+		assertEquals("b/2/3", received.get(1));
+	}
+}
@@ -0,0 +1,159 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	private TimerWheel wheel;
+
+	@Before
+	public void setUp() {
+		wheel = new TimerWheel("TimerWheelTest", 5);
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	private Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+	}
+
+	@Test
+	public void neverFiresEarly() throws InterruptedException {
+		final long[] firedAt = new long[1];
+		final CountDownLatch fired = new CountDownLatch(1);
+		long start = System.nanoTime();
+		wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				firedAt[0] = System.nanoTime();
+				fired.countDown();
+			}
+		}, 50);
+
+		assertTrue(fired.await(2, TimeUnit.SECONDS));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(firedAt[0] - start);
+		assertTrue("Fired after " + elapsed + " ms", elapsed >= 50);
+	}
+
+	@Test
+	public void firesInDeadlineOrder() throws InterruptedException {
+		final List<Integer> order = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch fired = new CountDownLatch(3);
+		for (final int delay : new int[] { 90, 30, 60 }) {
+			wheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					order.add(delay);
+					fired.countDown();
+				}
+			}, delay);
+		}
+		assertTrue(fired.await(2, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(30, 60, 90), order);
+	}
+
+	@Test
+	public void cancelledNeverFires() throws InterruptedException {
+		CountDownLatch cancelled = new CountDownLatch(1);
+		CountDownLatch later = new CountDownLatch(1);
+		wheel.schedule(countDown(cancelled), 20).cancel();
+		wheel.schedule(countDown(later), 60);
+		assertTrue(later.await(2, TimeUnit.SECONDS));
+		assertEquals(1, cancelled.getCount());
+	}
+
+	@Test
+	public void taskMayScheduleAnother() throws InterruptedException {
+		final CountDownLatch second = new CountDownLatch(1);
+		wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				wheel.schedule(countDown(second), 0);
+			}
+		}, 10);
+		assertTrue(second.await(2, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+		RecordingLogger logger = new RecordingLogger();
+		wheel.setLogger(logger);
+		CountDownLatch after = new CountDownLatch(1);
+		wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("Expected by the test");
+			}
+		}, 10);
+		wheel.schedule(countDown(after), 30);
+		assertTrue(after.await(2, TimeUnit.SECONDS));
+
+		assertEquals(1, logger.events().size());
+		assertTrue(logger.events().get(0).startsWith("ERROR"));
+		assertEquals("Expected by the test", logger.errors().get(0)
+				.getMessage());
+	}
+
+	@Test
+	public void waitsFullLapsForLongDelays() throws InterruptedException {
+		// 4096 buckets of 1 ms, this one goes around the wheel once
+		TimerWheel fine = new TimerWheel("TimerWheelTest-fine", 1);
+		try {
+			CountDownLatch fired = new CountDownLatch(1);
+			long start = System.nanoTime();
+			fine.schedule(countDown(fired), 4200);
+			assertFalse(fired.await(4000, TimeUnit.MILLISECONDS));
+			assertTrue(fired.await(2, TimeUnit.SECONDS));
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+					.toNanos(4200));
+		} finally {
+			fine.stop();
+		}
+	}
+
+	@Test
+	public void stoppedWheelRunsNothing() throws InterruptedException {
+		CountDownLatch fired = new CountDownLatch(1);
+		wheel.schedule(countDown(fired), 50);
+		wheel.stop();
+		assertFalse(fired.await(200, TimeUnit.MILLISECONDS));
+	}
+}
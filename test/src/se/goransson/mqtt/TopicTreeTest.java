@@ -0,0 +1,143 @@
+package se.goransson.mqtt;
+
+/*
+ * Copyright (C) 2012 Andreas Goransson, David Cuartielles
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TopicTreeTest {
+
+	private final TopicTree<String> tree = new TopicTree<String>();
+
+	/** The filters matching a topic, each filter is its own value. */
+	private List<String> match(String topic) {
+		List<String> matched = new ArrayList<String>(tree.match(topic));
+		Collections.sort(matched);
+		return matched;
+	}
+
+	private void put(String... filters) {
+		for (String filter : filters)
+			tree.put(filter, filter);
+	}
+
+	@Test
+	public void exactTopics() {
+		put("a/b", "a/c", "a/b/c");
+		assertEquals(Arrays.asList("a/b"), match("a/b"));
+		assertEquals(Arrays.asList("a/b/c"), match("a/b/c"));
+		assertTrue(match("a").isEmpty());
+		assertTrue(match("a/b/c/d").isEmpty());
+	}
+
+	@Test
+	public void plusMatchesOneLevel() {
+		put("a/+/c", "+/b/+");
+		assertEquals(Arrays.asList("+/b/+", "a/+/c"), match("a/b/c"));
+		assertEquals(Arrays.asList("a/+/c"), match("a/x/c"));
+		assertTrue(match("a/c").isEmpty());
+		assertTrue(match("a/b/c/d").isEmpty());
+	}
+
+	@Test
+	public void plusMatchesEmptyLevel() {
+		put("a/+/c");
+		assertEquals(Arrays.asList("a/+/c"), match("a//c"));
+	}
+
+	@Test
+	public void hashMatchesAnyDepth() {
+		put("a/#");
+		assertEquals(Arrays.asList("a/#"), match("a/b"));
+		assertEquals(Arrays.asList("a/#"), match("a/b/c/d"));
+		assertTrue(match("b/a").isEmpty());
+	}
+
+	@Test
+	public void hashMatchesParentLevel() {
+		put("a/b/#", "+/#");
+		assertEquals(Arrays.asList("+/#", "a/b/#"), match("a/b"));
+		assertEquals(Arrays.asList("+/#"), match("a"));
+	}
+
+	@Test
+	public void hashAloneMatchesEverything() {
+		put("#");
+		assertEquals(Arrays.asList("#"), match("a"));
+		assertEquals(Arrays.asList("#"), match("a/b/c"));
+		assertEquals(Arrays.asList("#"), match("/a"));
+	}
+
+	@Test
+	public void dollarTopicsNeedTheirFirstLevel() {
+		put("#", "+/info", "$SYS/#", "$SYS/+");
+		assertEquals(Arrays.asList("$SYS/#", "$SYS/+"), match("$SYS/info"));
+		assertEquals(Arrays.asList("#", "+/info"), match("SYS/info"));
+	}
+
+	@Test
+	public void removeForgetsCachedMatches() {
+		put("a/+", "a/#");
+		assertEquals(2, match("a/b").size());
+		assertEquals("a/+", tree.remove("a/+"));
+		assertEquals(Arrays.asList("a/#"), match("a/b"));
+		assertNull(tree.remove("a/+"));
+		assertEquals(1, tree.size());
+	}
+
+	@Test
+	public void putReplaces() {
+		assertNull(tree.put("a/b", "first"));
+		assertEquals("first", tree.put("a/b", "second"));
+		assertEquals(Arrays.asList("second"), tree.match("a/b"));
+		assertEquals(1, tree.size());
+	}
+
+	@Test
+	public void manyChildrenOnOneLevel() {
+		for (int i = 0; i < 1000; i++)
+			put("sensor/" + i);
+		assertEquals(1000, tree.size());
+		for (int i = 0; i < 1000; i++)
+			assertEquals(Arrays.asList("sensor/" + i), match("sensor/" + i));
+		for (int i = 0; i < 1000; i += 2)
+			tree.remove("sensor/" + i);
+		assertTrue(match("sensor/0").isEmpty());
+		assertEquals(Arrays.asList("sensor/1"), match("sensor/1"));
+		assertEquals(500, tree.filters().size());
+	}
+
+	@Test
+	public void validFilters() {
+		assertTrue(TopicTree.isValidFilter("a/b"));
+		assertTrue(TopicTree.isValidFilter("+/+/#"));
+		assertTrue(TopicTree.isValidFilter("#"));
+		assertFalse(TopicTree.isValidFilter(""));
+		assertFalse(TopicTree.isValidFilter("a/#/b"));
+		assertFalse(TopicTree.isValidFilter("a/b#"));
+		assertFalse(TopicTree.isValidFilter("a+/b"));
+	}
+}